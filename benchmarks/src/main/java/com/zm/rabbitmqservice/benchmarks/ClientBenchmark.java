@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.benchmarks;
+
+import com.zm.rabbitmqservice.RMQConnectionFactory;
+import com.zm.rabbitmqservice.service.RMQApplication;
+import com.zm.rabbitmqservice.service.RMQApplicationConfig;
+import com.zm.rabbitmqservice.stubs.InProcessBroker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Calls from a client to a service through the in-process broker: the client's publish, the consumer's dispatch and
+ * reply, and the client completing the call on the reply consumer. The service is started with RMQApplication like
+ * any other, each trial runs in its own fork so the application is gone with it.
+ *
+ * @author zmiller
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-XX:+IgnoreUnrecognizedVMOptions", "--add-opens=java.base/java.lang=ALL-UNNAMED"})
+@State(Scope.Benchmark)
+public class ClientBenchmark {
+
+    private static final String HOST = "in-process-client";
+    private static final String QUEUE = "echo";
+    private static final int WORKERS = 4;
+
+    @Param({"false", "true"})
+    public boolean publisherConfirms;
+
+    @Param({"16"})
+    public int tags;
+
+    private EchoClient client;
+    private EchoApi.Payload payload;
+
+    @Setup
+    public void setup() throws Exception {
+        InProcessBroker broker = new InProcessBroker();
+        RMQConnectionFactory.setConnectionFactory(HOST, broker);
+
+        RMQApplicationConfig config = new RMQApplicationConfig();
+        config.setPrefetch(WORKERS);
+        config.setWorkers(WORKERS);
+        RMQApplication.start(HOST, QUEUE, new EchoApi.Service(), EchoApi.class, config);
+        broker.awaitConsumer(QUEUE, 10, TimeUnit.SECONDS);
+
+        client = new EchoClient(HOST, QUEUE);
+        client.setPublisherConfirms(publisherConfirms);
+        payload = EchoApi.Payload.sample(tags);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        client.close();
+    }
+
+    @Benchmark
+    public EchoApi.Payload call() {
+        return client.echo(payload);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public EchoApi.Payload concurrentCalls() {
+        return client.echo(payload);
+    }
+}
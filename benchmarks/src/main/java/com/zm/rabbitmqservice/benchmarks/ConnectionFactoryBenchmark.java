@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.benchmarks;
+
+import com.rabbitmq.client.Channel;
+import com.zm.rabbitmqservice.RMQConnectionFactory;
+import com.zm.rabbitmqservice.stubs.InProcessBroker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Channel lookups of consumers and publishers with every benchmark thread hitting the same connection. The channels
+ * are opened during setup, so the numbers are those of the steady state: the lookup of an open consumer channel and
+ * a lease from a warm pool.
+ *
+ * @author zmiller
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-XX:+IgnoreUnrecognizedVMOptions", "--add-opens=java.base/java.lang=ALL-UNNAMED"})
+@Threads(8)
+@State(Scope.Benchmark)
+public class ConnectionFactoryBenchmark {
+
+    private static final String HOST = "in-process-connection-factory";
+
+    @Param({"1", "64"})
+    public int queues;
+
+    private String[] names;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int position = ThreadLocalRandom.current().nextInt(1024);
+
+        private String next(String[] names) {
+            return names[(position++ & Integer.MAX_VALUE) % names.length];
+        }
+    }
+
+    @Setup
+    public void setup() throws IOException, TimeoutException {
+        RMQConnectionFactory.setConnectionFactory(HOST, new InProcessBroker());
+        names = new String[queues];
+        for(int i = 0; i < queues; i++) {
+            names[i] = "queue-" + i;
+            RMQConnectionFactory.create(HOST, names[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for(String name : names) {
+            RMQConnectionFactory.close(HOST, name);
+        }
+    }
+
+    @Benchmark
+    public Channel create(Cursor cursor) throws IOException, TimeoutException {
+        return RMQConnectionFactory.create(HOST, cursor.next(names));
+    }
+
+    @Benchmark
+    public Channel lease(Cursor cursor) throws IOException, TimeoutException, InterruptedException {
+        String queue = cursor.next(names);
+        try (RMQConnectionFactory.Lease lease = RMQConnectionFactory.lease(HOST, queue, 1, TimeUnit.MINUTES)) {
+            return lease.getChannel();
+        }
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.benchmarks;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.reflect.TypeToken;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.zm.rabbitmqservice.RMQConnectionFactory;
+import com.zm.rabbitmqservice.RPCRequest;
+import com.zm.rabbitmqservice.RPCResponse;
+import com.zm.rabbitmqservice.codec.Codecs;
+import com.zm.rabbitmqservice.service.RMQApplication;
+import com.zm.rabbitmqservice.service.RMQApplicationConfig;
+import com.zm.rabbitmqservice.stubs.InProcessBroker;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A delivery handled by the consumer from start to end: decoding the request, invoking the api method, encoding the
+ * response and publishing it. The service is started with RMQApplication on the in-process broker, and deliveries
+ * are handed straight to the consumer it subscribes. With a single worker methods are invoked on the calling thread,
+ * and the broker drops the replies since nobody consumes them.
+ *
+ * @author zmiller
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-XX:+IgnoreUnrecognizedVMOptions", "--add-opens=java.base/java.lang=ALL-UNNAMED"})
+@State(Scope.Thread)
+public class ConsumerBenchmark {
+
+    private static final String HOST = "in-process-consumer";
+    private static final AtomicInteger queues = new AtomicInteger();
+    private static final Gson gson = new Gson();
+    private static final Type BATCH = new TypeToken<List<RPCRequest>>(){}.getType();
+
+    /**
+     * Number of requests per message, 1 sends a plain request
+     */
+    @Param({"1", "10"})
+    public int batchSize;
+
+    @Param({"false", "true"})
+    public boolean nativeFormat;
+
+    @Param({"16"})
+    public int tags;
+
+    private Consumer consumer;
+    private Envelope envelope;
+    private AMQP.BasicProperties properties;
+    private byte[] body;
+
+    @Setup
+    public void setup() throws Exception {
+        InProcessBroker broker = new InProcessBroker();
+        RMQConnectionFactory.setConnectionFactory(HOST, broker);
+
+        // Every thread gets a service of its own
+        String queue = "consumer-" + queues.incrementAndGet();
+        RMQApplication.start(HOST, queue, new EchoApi.Service(), EchoApi.class, new RMQApplicationConfig());
+        consumer = broker.awaitConsumer(queue, 10, TimeUnit.SECONDS);
+
+        List<RPCRequest> requests = new ArrayList<>(batchSize);
+        for(int i = 0; i < batchSize; i++) {
+            RPCRequest request = new RPCRequest();
+            request.id = String.valueOf(i);
+            request.method = "echo";
+            request.params = new JsonArray();
+            request.params.add(gson.toJsonTree(EchoApi.Payload.sample(tags)));
+            requests.add(request);
+        }
+
+        body = batchSize == 1
+                ? Codecs.JSON.encode(requests.get(0), RPCRequest.class)
+                : Codecs.JSON.encode(requests, BATCH);
+
+        properties = new AMQP.BasicProperties
+                .Builder()
+                .contentType(Codecs.JSON.getContentType())
+                .correlationId("benchmark")
+                .replyTo("amq.rabbitmq.reply-to.benchmark")
+                .headers(nativeFormat
+                        ? Collections.singletonMap(RPCResponse.ACCEPT_FORMAT_HEADER, RPCResponse.NATIVE_FORMAT)
+                        : null)
+                .build();
+
+        envelope = new Envelope(1, false, "", "benchmark");
+    }
+
+    @Benchmark
+    public void handleDelivery() throws IOException {
+        consumer.handleDelivery("benchmark", envelope, properties, body);
+    }
+}
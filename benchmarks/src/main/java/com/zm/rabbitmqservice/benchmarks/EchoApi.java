@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Api the benchmarks call, shaped like a generated api: a data model passed in and returned as is.
+ *
+ * @author zmiller
+ */
+public interface EchoApi {
+
+    Payload echo(Payload payload);
+
+    class Payload {
+        public int id;
+        public String name;
+        public List<String> tags;
+
+        /**
+         * @param tags - number of tags, to scale the size of the payload
+         * @return payload filled with sample data
+         */
+        public static Payload sample(int tags) {
+            Payload payload = new Payload();
+            payload.id = 42;
+            payload.name = "benchmark";
+            payload.tags = new ArrayList<>(tags);
+            for(int i = 0; i < tags; i++) {
+                payload.tags.add("tag-" + i);
+            }
+
+            return payload;
+        }
+    }
+
+    class Service implements EchoApi {
+
+        @Override
+        public Payload echo(Payload payload) {
+            return payload;
+        }
+    }
+}
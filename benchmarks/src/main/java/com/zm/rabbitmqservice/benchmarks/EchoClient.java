@@ -14,28 +14,37 @@
  * You should have received a copy of the GNU General Public License
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
-package com.zm.rabbitmqservice;
+package com.zm.rabbitmqservice.benchmarks;
 
 import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.zm.rabbitmqservice.client.RMQClient;
 
 /**
+ * Client of the EchoApi, written the way the generated clients are.
  *
  * @author zmiller
  */
-public class RPCResponse {
+public class EchoClient extends RMQClient implements EchoApi {
 
-    public final String jsonrpc = "2.0";
-    public String id;
-    public RPCError<?> error;
-    private String result;
+    private static final Gson gson = new Gson();
 
-    public void setResult(Object result) {
-        if(result != null) {
-            this.result = new Gson().toJson(result, result.getClass());
-        }
+    public EchoClient(String host, String queue) {
+        super(host, queue);
     }
 
-    public <T> T getResult(Class<T> type) {
-        return new Gson().fromJson(this.result, type);
+    @Override
+    public Payload echo(Payload payload) {
+        JsonArray params = new JsonArray();
+        params.add(gson.toJsonTree(payload));
+        try {
+            return call("echo", params, Payload.class);
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (Throwable t) {
+            throw new IllegalStateException(t);
+        }
     }
 }
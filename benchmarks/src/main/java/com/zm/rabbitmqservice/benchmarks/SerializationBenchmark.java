@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.benchmarks;
+
+import com.zm.rabbitmqservice.RPCError;
+import com.zm.rabbitmqservice.RPCResponse;
+import com.zm.rabbitmqservice.codec.Codec;
+import com.zm.rabbitmqservice.codec.Codecs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding of responses carrying a result or an error, in both codecs and both response formats.
+ *
+ * @author zmiller
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-XX:+IgnoreUnrecognizedVMOptions", "--add-opens=java.base/java.lang=ALL-UNNAMED"})
+@State(Scope.Thread)
+public class SerializationBenchmark {
+
+    @Param({"json", "cbor"})
+    public String codec;
+
+    @Param({"false", "true"})
+    public boolean nativeFormat;
+
+    @Param({"16"})
+    public int tags;
+
+    private Codec encoder;
+    private RPCResponse result;
+    private RPCResponse error;
+    private byte[] encodedResult;
+    private byte[] encodedError;
+
+    @Setup
+    public void setup() throws IOException {
+        encoder = "cbor".equals(codec) ? Codecs.CBOR : Codecs.JSON;
+
+        result = new RPCResponse();
+        result.id = "result";
+        result.setResult(EchoApi.Payload.sample(tags));
+        result.setNativeFormat(nativeFormat);
+
+        error = new RPCResponse();
+        error.id = "error";
+        error.error = new RPCError<>(new IllegalArgumentException("Payload 42 was rejected"));
+        error.setNativeFormat(nativeFormat);
+
+        encodedResult = encoder.encode(result, RPCResponse.class);
+        encodedError = encoder.encode(error, RPCResponse.class);
+    }
+
+    @Benchmark
+    public byte[] encodeResult() throws IOException {
+        return encoder.encode(result, RPCResponse.class);
+    }
+
+    @Benchmark
+    public byte[] encodeError() throws IOException {
+        return encoder.encode(error, RPCResponse.class);
+    }
+
+    @Benchmark
+    public EchoApi.Payload decodeResult() throws IOException {
+        return decode(encodedResult).getResult(EchoApi.Payload.class);
+    }
+
+    @Benchmark
+    public Throwable decodeError() throws IOException, ClassNotFoundException {
+        return decode(encodedError).error.getReason();
+    }
+
+    /**
+     * Decode a response the way the client does, which learns the format from the reply's headers.
+     */
+    private RPCResponse decode(byte[] body) throws IOException {
+        RPCResponse response = encoder.decode(body, RPCResponse.class);
+        response.setNativeFormat(nativeFormat);
+        return response;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.ToLongFunction;
+
+/**
+ * Bounded cache whose entries expire after their time to live. The cache holds at most maxEntries entries weighing
+ * at most maxBytes in total, and evicts approximately the least recently used entries first when either bound is
+ * exceeded. Expired entries are dropped when they are read, or evicted before any other entry.
+ * <p>
+ * Lookups do not take a lock: entries live in a ConcurrentHashMap and a lookup only stamps the entry with the time
+ * it was read. Only puts that exceed a bound take the eviction lock, which evicts the least recently read entry of a
+ * pool of candidates sampled by a hand that sweeps over the whole cache, so every entry is eventually considered. A
+ * cache of up to SAMPLE entries is therefore evicted in exact LRU order.
+ *
+ * @author zmiller
+ */
+public class ExpiringCache<K, V> {
+
+    static final int SAMPLE = 16;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final ToLongFunction<? super V> weigher;
+    private final ConcurrentHashMap<K, Entry<K, V>> entries = new ConcurrentHashMap<>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final Object evictionLock = new Object();
+    private final List<Entry<K, V>> candidates = new ArrayList<>();
+    private Iterator<Entry<K, V>> hand;
+
+    /**
+     * @param maxEntries - maximum number of entries
+     * @param maxBytes - maximum total weight of the entries
+     * @param weigher - approximate size of a value in bytes
+     */
+    public ExpiringCache(int maxEntries, long maxBytes, ToLongFunction<? super V> weigher) {
+        if(maxEntries < 1 || maxBytes < 1) {
+            throw new IllegalArgumentException("maxEntries and maxBytes must be at least 1");
+        }
+
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.weigher = weigher;
+    }
+
+    private static class Entry<K, V> {
+        private final K key;
+        private final V value;
+        private final long weight;
+        private final long expires;
+        private volatile long accessed;
+
+        private Entry(K key, V value, long weight, long expires, long accessed) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+            this.expires = expires;
+            this.accessed = accessed;
+        }
+
+        private boolean isExpired(long now) {
+            return expires - now <= 0;
+        }
+    }
+
+    /**
+     * @param key - key of the entry
+     * @return the value, or null if there is no entry or it has expired
+     */
+    public V get(K key) {
+        Entry<K, V> entry = entries.get(key);
+        if(entry == null) {
+            return null;
+        }
+
+        long now = System.nanoTime();
+        if(entry.isExpired(now)) {
+            unlink(entry);
+            return null;
+        }
+
+        entry.accessed = now;
+        return entry.value;
+    }
+
+    /**
+     * Add or replace an entry. A value heavier than the whole cache is not cached.
+     *
+     * @param key - key of the entry
+     * @param value - value of the entry
+     * @param ttl - time to live of the entry
+     * @param unit - unit of the time to live
+     */
+    public void put(K key, V value, long ttl, TimeUnit unit) {
+        long weight = weigher.applyAsLong(value);
+        if(weight > maxBytes) {
+            return;
+        }
+
+        long now = System.nanoTime();
+        Entry<K, V> previous = entries.put(key, new Entry<>(key, value, weight, now + unit.toNanos(ttl), now));
+        bytes.addAndGet(previous == null ? weight : weight - previous.weight);
+
+        if(isOverBounds()) {
+            evict();
+        }
+    }
+
+    /**
+     * @param key - key of the entry to remove
+     */
+    public void remove(K key) {
+        Entry<K, V> entry = entries.remove(key);
+        if(entry != null) {
+            bytes.addAndGet(-entry.weight);
+        }
+    }
+
+    public void clear() {
+        for(Entry<K, V> entry : entries.values()) {
+            unlink(entry);
+        }
+
+        synchronized (evictionLock) {
+            candidates.clear();
+            hand = null;
+        }
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private boolean isOverBounds() {
+        return entries.size() > maxEntries || bytes.get() > maxBytes;
+    }
+
+    /**
+     * Remove the entry unless it has been replaced since it was read.
+     */
+    private void unlink(Entry<K, V> entry) {
+        if(entries.remove(entry.key, entry)) {
+            bytes.addAndGet(-entry.weight);
+        }
+    }
+
+    /**
+     * Evict entries until the cache is within its bounds. Each eviction adds the next SAMPLE entries under the hand
+     * to the candidates kept from earlier evictions, and evicts the first expired one or else the least recently used
+     * candidate. Only the SAMPLE least recently used candidates are kept for the next eviction.
+     */
+    private void evict() {
+        synchronized (evictionLock) {
+            while(isOverBounds()) {
+                Entry<K, V> victim = null;
+                long now = System.nanoTime();
+                int sample = Math.min(SAMPLE, entries.size());
+                for(int i = 0; i < sample && victim == null; i++) {
+                    if(hand == null || !hand.hasNext()) {
+                        hand = entries.values().iterator();
+                        if(!hand.hasNext()) {
+                            break;
+                        }
+                    }
+
+                    Entry<K, V> entry = hand.next();
+                    if(entry.isExpired(now)) {
+                        victim = entry;
+                    }
+                    else if(!candidates.contains(entry)) {
+                        candidates.add(entry);
+                    }
+                }
+
+                candidates.removeIf(candidate -> entries.get(candidate.key) != candidate);
+                if(victim == null) {
+                    if(candidates.isEmpty()) {
+                        return;
+                    }
+
+                    candidates.sort((a, b) -> Long.signum(a.accessed - b.accessed));
+                    victim = candidates.remove(0);
+                    while(candidates.size() > SAMPLE) {
+                        candidates.remove(candidates.size() - 1);
+                    }
+                }
+
+                unlink(victim);
+            }
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Tracks publisher confirms of a channel in confirm mode. Every publish is registered under its sequence number in a
+ * sorted map, and the broker's acks and nacks complete the matching futures asynchronously, a whole range at a time
+ * when the broker confirms multiple messages at once. Publishes are never held back waiting for their confirm. The
+ * futures are completed on the common pool, never on the connection's I/O thread.
+ *
+ * Exactly one instance is attached to a channel. The caller must own the channel while publishing, otherwise the
+ * sequence number may belong to another thread's message.
+ *
+ * @author zmiller
+ */
+public class PublisherConfirms implements ConfirmListener {
+
+    private static final ConcurrentHashMap<Channel, PublisherConfirms> confirms = new ConcurrentHashMap<>();
+
+    private final ConcurrentSkipListMap<Long, CompletableFuture<Void>> outstanding = new ConcurrentSkipListMap<>();
+
+    private PublisherConfirms() {
+    }
+
+    /**
+     * Get the confirm tracker of the channel, putting the channel in confirm mode if it isn't yet.
+     *
+     * @param channel - channel messages are published on
+     * @return confirm tracker of the channel
+     * @throws IOException if the channel could not be put in confirm mode
+     */
+    public static PublisherConfirms forChannel(Channel channel) throws IOException {
+        PublisherConfirms tracker = confirms.get(channel);
+        if(tracker != null) {
+            return tracker;
+        }
+
+        synchronized (channel) {
+            tracker = confirms.get(channel);
+            if(tracker == null) {
+                PublisherConfirms created = new PublisherConfirms();
+                channel.confirmSelect();
+                channel.addConfirmListener(created);
+                channel.addShutdownListener(cause -> {
+                    confirms.remove(channel, created);
+                    created.fail(cause);
+                });
+
+                confirms.put(channel, created);
+                tracker = created;
+            }
+        }
+
+        return tracker;
+    }
+
+    /**
+     * Publish a message and track its confirm.
+     *
+     * @param channel - channel of this tracker, owned by the caller
+     * @param exchange - exchange to publish to
+     * @param routingKey - routing key of the message
+     * @param props - message properties
+     * @param body - message body
+     * @return future completed once the broker confirms the message, or exceptionally if it rejects it or the channel
+     *         closes before confirming it
+     */
+    public CompletableFuture<Void> publish(Channel channel, String exchange, String routingKey,
+                                           AMQP.BasicProperties props, byte[] body) throws IOException {
+
+        long sequence = channel.getNextPublishSeqNo();
+        CompletableFuture<Void> confirmed = new CompletableFuture<>();
+        outstanding.put(sequence, confirmed);
+        try {
+            channel.basicPublish(exchange, routingKey, props, body);
+        }
+        catch (IOException | RuntimeException e) {
+            outstanding.remove(sequence);
+            throw e;
+        }
+
+        return confirmed;
+    }
+
+    @Override
+    public void handleAck(long deliveryTag, boolean multiple) {
+        settle(confirmed(deliveryTag, multiple), null);
+    }
+
+    @Override
+    public void handleNack(long deliveryTag, boolean multiple) {
+        settle(confirmed(deliveryTag, multiple), new IOException("The broker rejected the message"));
+    }
+
+    /**
+     * Complete the futures on the common pool. Confirms arrive on the connection's I/O thread, which must never run
+     * callbacks: one that publishes and waits for a confirm on the same connection would wait forever, since the
+     * confirm can only be read by the thread it blocks.
+     *
+     * @param settled - futures to complete
+     * @param error - error to fail them with, null to complete them normally
+     */
+    private static void settle(List<CompletableFuture<Void>> settled, Throwable error) {
+        if(settled.isEmpty()) {
+            return;
+        }
+
+        ForkJoinPool.commonPool().execute(() -> {
+            for(CompletableFuture<Void> future : settled) {
+                if(error == null) {
+                    future.complete(null);
+                }
+                else {
+                    future.completeExceptionally(error);
+                }
+            }
+        });
+    }
+
+    /**
+     * Remove the futures the broker confirmed.
+     *
+     * @param deliveryTag - sequence number of the confirmed message
+     * @param multiple - true if every message up to and including the sequence number is confirmed
+     * @return the confirmed futures
+     */
+    private List<CompletableFuture<Void>> confirmed(long deliveryTag, boolean multiple) {
+        if(!multiple) {
+            CompletableFuture<Void> confirmed = outstanding.remove(deliveryTag);
+            return confirmed == null ? Collections.emptyList() : Collections.singletonList(confirmed);
+        }
+
+        ConcurrentNavigableMap<Long, CompletableFuture<Void>> range = outstanding.headMap(deliveryTag, true);
+        List<CompletableFuture<Void>> confirmed = new ArrayList<>();
+        for(Map.Entry<Long, CompletableFuture<Void>> entry; (entry = range.pollFirstEntry()) != null; ) {
+            confirmed.add(entry.getValue());
+        }
+
+        return confirmed;
+    }
+
+    /**
+     * Fail every outstanding publish, the broker won't confirm them once the channel is closed.
+     */
+    private void fail(ShutdownSignalException cause) {
+        List<CompletableFuture<Void>> failed = new ArrayList<>();
+        for(Map.Entry<Long, CompletableFuture<Void>> entry; (entry = outstanding.pollFirstEntry()) != null; ) {
+            failed.add(entry.getValue());
+        }
+
+        settle(failed, new IOException("Channel closed before the broker confirmed the message", cause));
+    }
+}
@@ -0,0 +1,400 @@
+package com.zm.rabbitmqservice;
+
+import com.rabbitmq.client.BlockedListener;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Shares one connection per host between every queue on that host. Consumers get a dedicated channel per queue,
+ * publishers lease a channel from the connection's pool for the duration of a single operation. Channels are not
+ * thread-safe, so a leased channel is only used by the thread holding the lease.
+ *
+ * Lookups never take a global lock. Entries are created with computeIfAbsent and connect lazily under their own
+ * monitor, so connecting to one host doesn't block calls to another, and an open channel is returned without locking.
+ */
+public class RMQConnectionFactory {
+
+    private static final ConcurrentHashMap<String, ConnectionBag> connections = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<ChannelKey, ConsumerChannel> channels = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, ConnectionFactory> factories = new ConcurrentHashMap<>();
+
+    private static volatile int poolSize = 8;
+
+    /**
+     * Use the given factory for connections to the host instead of a default one. Applies to connections opened
+     * afterwards.
+     *
+     * This is public because the default factory only knows the host name: applications need it to set credentials, a
+     * virtual host, TLS or timeouts, and tests and benchmarks use it to put a stand-in broker behind a made up host.
+     * Every client and application of the host shares the connection, so register the factory before the first of
+     * them is created.
+     *
+     * @param host - RabbitMQ host, as passed to create and lease
+     * @param factory - factory that opens connections to the host
+     */
+    public static void setConnectionFactory(String host, ConnectionFactory factory) {
+        if(host == null || factory == null) {
+            throw new IllegalArgumentException("host and factory are required");
+        }
+
+        factories.put(host, factory);
+    }
+
+    /**
+     * Maximum number of channels leased from each connection at once. Applies to connections opened afterwards.
+     *
+     * @param size - channels per connection
+     */
+    public static void setChannelPoolSize(int size) {
+        if(size < 1) {
+            throw new IllegalArgumentException("pool size must be at least 1");
+        }
+
+        poolSize = size;
+    }
+
+    /**
+     * Get the dedicated channel of a queue, reopening it if it was closed. Used by consumers, which keep their
+     * channel for as long as it's open.
+     *
+     * @param host - RabbitMQ host
+     * @param queue - queue the channel is used for
+     * @return open channel
+     */
+    public static Channel create(String host, String queue) throws IOException, TimeoutException {
+        ConnectionBag bag = bag(host, queue);
+        return channels.computeIfAbsent(new ChannelKey(host, queue), key -> new ConsumerChannel()).get(bag);
+    }
+
+    /**
+     * Lease a channel of the host's pool. Waits up to the timeout while every channel of the pool is leased. The
+     * lease must be closed as soon as the operation is done, which returns the channel to the pool.
+     *
+     * @param host - RabbitMQ host
+     * @param queue - queue the channel is used for
+     * @param timeout - maximum time to wait for a channel of the pool
+     * @param unit - unit of the timeout
+     * @return lease of an open channel
+     * @throws TimeoutException if no channel became available within the timeout, or connecting timed out
+     * @throws InterruptedException if the thread was interrupted while waiting for a channel
+     */
+    public static Lease lease(String host, String queue, long timeout, TimeUnit unit)
+            throws IOException, TimeoutException, InterruptedException {
+        ConnectionBag bag = bag(host, queue);
+        return new Lease(bag, bag.lease(timeout, unit));
+    }
+
+    /**
+     * A channel leased from a connection's pool
+     */
+    public static class Lease implements AutoCloseable {
+        private final ConnectionBag bag;
+        private final Channel channel;
+
+        private Lease(ConnectionBag bag, Channel channel) {
+            this.bag = bag;
+            this.channel = channel;
+        }
+
+        public Channel getChannel() {
+            return channel;
+        }
+
+        /**
+         * Return the channel to the pool it was leased from.
+         */
+        @Override
+        public void close() {
+            bag.release(channel);
+        }
+    }
+
+    /**
+     * The broker blocks a connection that publishes while it is short of memory or disk, and publishes on a blocked
+     * connection stall until the alarm clears.
+     *
+     * @param host - RabbitMQ host
+     * @return reason the broker gave for blocking the host's connection, null if it isn't blocked
+     */
+    public static String getBlockedReason(String host) {
+        ConnectionBag bag = connections.get(host);
+        return bag == null ? null : bag.blockedReason;
+    }
+
+    /**
+     * The returned future completes on the common pool, never on the connection's I/O thread.
+     *
+     * @param host - RabbitMQ host
+     * @return future completed once the broker unblocks the host's connection, already complete if it isn't blocked
+     */
+    public static CompletableFuture<Void> whenUnblocked(String host) {
+        ConnectionBag bag = connections.get(host);
+        CompletableFuture<Void> unblocked = bag == null ? null : bag.unblocked;
+        return unblocked == null ? CompletableFuture.completedFuture(null) : unblocked;
+    }
+
+    /**
+     * Close the queue's channel. The host's connection is closed once none of its queues is in use anymore.
+     *
+     * @param host - RabbitMQ host
+     * @param queue - queue that is no longer used
+     */
+    public static void close(String host, String queue) {
+        ConsumerChannel channel = channels.remove(new ChannelKey(host, queue));
+        if(channel != null) {
+            channel.close();
+        }
+
+        // Whether this was the host's last queue is decided under the map's lock, so a queue registering at the same
+        // time either keeps the bag or gets a new one. Aborting the connection is network I/O and happens outside it.
+        ConnectionBag[] unused = new ConnectionBag[1];
+        connections.computeIfPresent(host, (h, bag) -> {
+            bag.queues.remove(queue);
+            if(bag.queues.isEmpty()) {
+                unused[0] = bag;
+                return null;
+            }
+
+            return bag;
+        });
+
+        if(unused[0] != null) {
+            unused[0].close();
+        }
+    }
+
+    /**
+     * Get the host's connection bag and register the queue with it. The bag is created without connecting, the
+     * connection is opened on first use.
+     */
+    private static ConnectionBag bag(String host, String queue) {
+        ConnectionBag bag = connections.get(host);
+        if(bag != null && bag.queues.contains(queue)) {
+            return bag;
+        }
+
+        return connections.compute(host, (h, existing) -> {
+            ConnectionBag b = existing == null ? new ConnectionBag(h, poolSize) : existing;
+            b.queues.add(queue);
+            return b;
+        });
+    }
+
+    /**
+     * Immutable identity of a queue's consumer channel
+     */
+    private static final class ChannelKey {
+        private final String host;
+        private final String queue;
+
+        private ChannelKey(String host, String queue) {
+            this.host = host;
+            this.queue = queue;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) {
+                return true;
+            }
+
+            if(!(o instanceof ChannelKey)) {
+                return false;
+            }
+
+            ChannelKey other = (ChannelKey) o;
+            return host.equals(other.host) && queue.equals(other.queue);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * host.hashCode() + queue.hashCode();
+        }
+    }
+
+    /**
+     * A queue's consumer channel, opened lazily and reopened when it was closed
+     */
+    private static class ConsumerChannel {
+        private volatile Channel channel;
+
+        private Channel get(ConnectionBag bag) throws IOException, TimeoutException {
+            Channel current = channel;
+            if(current != null && current.isOpen()) {
+                return current;
+            }
+
+            synchronized (this) {
+                current = channel;
+                if(current != null && current.isOpen()) {
+                    return current;
+                }
+
+                if(current != null) {
+                    current.abort();
+                }
+
+                this.channel = bag.createChannel();
+                return channel;
+            }
+        }
+
+        private synchronized void close() {
+            if(channel != null) {
+                try {
+                    channel.abort();
+                } catch (IOException e) {
+                    // The connection is aborted once its last queue is closed
+                }
+            }
+        }
+    }
+
+    private static class ConnectionBag {
+        private final ConnectionFactory factory;
+        private final Set<String> queues = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        private final ConcurrentLinkedDeque<Channel> idle = new ConcurrentLinkedDeque<>();
+        private final Semaphore permits;
+        private Connection connection;
+        private boolean closed;
+
+        // Set while the broker blocks the connection, completed once it unblocks it. Guarded by its own lock, the
+        // connection's I/O thread must never wait for the bag's monitor
+        private final Object blockLock = new Object();
+        private volatile CompletableFuture<Void> unblocked;
+        private volatile String blockedReason;
+
+        private ConnectionBag(String host, int poolSize) {
+            ConnectionFactory registered = factories.get(host);
+            if(registered != null) {
+                this.factory = registered;
+            }
+            else {
+                this.factory = new ConnectionFactory();
+                this.factory.setHost(host);
+            }
+
+            this.permits = new Semaphore(poolSize);
+        }
+
+        private synchronized Connection getConnection() throws IOException, TimeoutException {
+
+            if(closed) {
+                throw new IOException("Connection to " + factory.getHost() + " was closed");
+            }
+
+            if(connection == null) {
+                this.connection = open();
+            }
+
+            if(!connection.isOpen()) {
+                connection.abort();
+                this.connection = open();
+            }
+
+            return connection;
+        }
+
+        /**
+         * Open a connection and track whether the broker blocks it. A new connection starts out unblocked.
+         */
+        private Connection open() throws IOException, TimeoutException {
+            unblock();
+            Connection opened = factory.newConnection();
+            opened.addBlockedListener(new BlockedListener() {
+                @Override
+                public void handleBlocked(String reason) {
+                    synchronized (blockLock) {
+                        if(unblocked == null) {
+                            unblocked = new CompletableFuture<>();
+                        }
+
+                        blockedReason = reason;
+                    }
+                }
+
+                @Override
+                public void handleUnblocked() {
+                    unblock();
+                }
+            });
+
+            return opened;
+        }
+
+        private void unblock() {
+            synchronized (blockLock) {
+                blockedReason = null;
+                if(unblocked != null) {
+                    // Waiting requests publish once they resume, which must not happen on the I/O thread
+                    CompletableFuture<Void> waiting = unblocked;
+                    ForkJoinPool.commonPool().execute(() -> waiting.complete(null));
+                    unblocked = null;
+                }
+            }
+        }
+
+        private Channel createChannel() throws IOException, TimeoutException {
+            Channel channel = getConnection().createChannel();
+            if(channel == null) {
+                throw new IOException("No channels available on the connection");
+            }
+
+            return channel;
+        }
+
+        /**
+         * Take the most recently used open channel, or open a new one if there is no idle channel. Channels that were
+         * closed while idle, e.g. because the connection dropped, are discarded.
+         */
+        private Channel lease(long timeout, TimeUnit unit) throws IOException, TimeoutException, InterruptedException {
+            if(!permits.tryAcquire(timeout, unit)) {
+                throw new TimeoutException("Every channel to " + factory.getHost() + " is in use");
+            }
+
+            try {
+                Channel channel;
+                while((channel = idle.pollFirst()) != null) {
+                    if(channel.isOpen()) {
+                        return channel;
+                    }
+                }
+
+                return createChannel();
+            }
+            catch (IOException | TimeoutException | RuntimeException e) {
+                permits.release();
+                throw e;
+            }
+        }
+
+        private void release(Channel channel) {
+            if(channel.isOpen()) {
+                idle.offerFirst(channel);
+            }
+
+            permits.release();
+        }
+
+        private synchronized void close() {
+            closed = true;
+            unblock();
+            idle.clear();
+            if(this.connection != null) {
+                this.connection.abort();
+            }
+        }
+    }
+}
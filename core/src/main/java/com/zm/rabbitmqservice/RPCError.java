@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice;
+
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+
+/**
+ *
+ * @author zmiller
+ */
+public class RPCError<T extends Throwable> {
+
+    private static final Gson gson = new Gson();
+
+    /**
+     * Json encoding of the error as received from the service. Errors created locally are only encoded once the
+     * response is written, so this is null for them.
+     */
+    public String reason;
+    public String clazz;
+    T cause;
+    JsonElement encoded;
+    boolean nativeFormat;
+    
+    public RPCError(T reason) {
+        this.cause = reason;
+        if(reason != null) {
+            this.clazz = reason.getClass().getName();
+        }
+    }
+
+    RPCError() {
+    }
+
+    /**
+     * Decode the error that was received from the service.
+     *
+     * @return the error, or null if the service didn't send one. Errors created locally are returned as is.
+     * @throws ClassNotFoundException if the error's class is not on the classpath
+     */
+    public Throwable getReason() throws ClassNotFoundException {
+        if(cause != null) {
+            return cause;
+        }
+
+        if(encoded == null || clazz == null) {
+            return null;
+        }
+
+        Class<? extends Throwable> type = Class.forName(clazz).asSubclass(Throwable.class);
+        return nativeFormat || !encoded.isJsonPrimitive()
+                ? gson.fromJson(encoded, type)
+                : gson.fromJson(encoded.getAsString(), type);
+    }
+}
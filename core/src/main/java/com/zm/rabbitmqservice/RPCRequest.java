@@ -23,6 +23,17 @@ import com.google.gson.JsonArray;
  * @author zmiller
  */
 public class RPCRequest {
+
+    /**
+     * Header carrying the time in epoch milliseconds after which the caller no longer waits for the reply
+     */
+    public static final String DEADLINE_HEADER = "x-deadline";
+
+    /**
+     * Header carrying the time in epoch milliseconds the caller published the request at
+     */
+    public static final String PUBLISHED_HEADER = "x-published-at";
+
     public String jsonrpc = "2.0";
     public String method;
     public JsonArray  params;
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.annotations.JsonAdapter;
+
+import java.util.Map;
+
+/**
+ * The result and error of a response are written as native json when the caller accepts the native format, and as
+ * json encoded strings for older callers. Received results are kept as a json tree and only decoded once the caller
+ * asks for them with the type it expects.
+ *
+ * @author zmiller
+ */
+@JsonAdapter(RPCResponseAdapter.class)
+public class RPCResponse {
+
+    /**
+     * Request header listing the response format the caller accepts
+     */
+    public static final String ACCEPT_FORMAT_HEADER = "x-rpc-accept-format";
+
+    /**
+     * Response header naming the format the response was written in
+     */
+    public static final String FORMAT_HEADER = "x-rpc-format";
+
+    /**
+     * Result and error are embedded as json rather than json encoded strings
+     */
+    public static final int NATIVE_FORMAT = 2;
+
+    /**
+     * Response headers with the microseconds the request spent waiting in the queue, being decoded, in the api method
+     * and being encoded. Only stamped by services with timing headers enabled.
+     */
+    public static final String QUEUE_TIME_HEADER = "x-timing-queue-us";
+    public static final String PARSE_TIME_HEADER = "x-timing-parse-us";
+    public static final String INVOKE_TIME_HEADER = "x-timing-invoke-us";
+    public static final String SERIALIZE_TIME_HEADER = "x-timing-serialize-us";
+
+    private static final Gson gson = new Gson();
+
+    public final String jsonrpc = "2.0";
+    public String id;
+    public RPCError<?> error;
+    Object result;
+    JsonElement encoded;
+    boolean nativeFormat;
+    private int resultSize = -1;
+
+    public void setResult(Object result) {
+        this.result = result;
+    }
+
+    public <T> T getResult(Class<T> type) {
+        if(encoded == null) {
+            return null;
+        }
+
+        return nativeFormat || !encoded.isJsonPrimitive()
+                ? gson.fromJson(encoded, type)
+                : gson.fromJson(encoded.getAsString(), type);
+    }
+
+    /**
+     * The size is measured from the json tree the first time it is asked for, without writing the tree out again.
+     *
+     * @return approximate size of the received result in bytes
+     */
+    public int getResultSize() {
+        if(resultSize < 0) {
+            resultSize = encoded == null ? 0 : sizeOf(encoded);
+        }
+
+        return resultSize;
+    }
+
+    private static int sizeOf(JsonElement element) {
+        if(element.isJsonPrimitive()) {
+            JsonPrimitive primitive = element.getAsJsonPrimitive();
+            return primitive.isString() ? primitive.getAsString().length() + 2 : primitive.getAsString().length();
+        }
+
+        int size = 2;
+        if(element.isJsonArray()) {
+            for(JsonElement item : element.getAsJsonArray()) {
+                size += sizeOf(item) + 1;
+            }
+        }
+        else if(element.isJsonObject()) {
+            for(Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+                size += entry.getKey().length() + 4 + sizeOf(entry.getValue());
+            }
+        }
+        else {
+            size = 4;
+        }
+
+        return size;
+    }
+
+    public boolean isNativeFormat() {
+        return nativeFormat;
+    }
+
+    /**
+     * @param nativeFormat - true to embed the result and error as json, false to encode them as json strings
+     */
+    public void setNativeFormat(boolean nativeFormat) {
+        this.nativeFormat = nativeFormat;
+        if(error != null) {
+            error.nativeFormat = nativeFormat;
+        }
+    }
+
+    /**
+     * @param headers - message headers, may be null
+     * @param header - name of the format header
+     * @return true if the header names the native format
+     */
+    public static boolean isNativeFormat(Map<String, Object> headers, String header) {
+        Object format = headers == null ? null : headers.get(header);
+        return format != null && String.valueOf(NATIVE_FORMAT).equals(format.toString());
+    }
+}
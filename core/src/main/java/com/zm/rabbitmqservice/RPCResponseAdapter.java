@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+
+/**
+ * Streams RPCResponses in a single pass. Results and errors are written with the type adapters of the Gson instance
+ * serializing the response, either straight into the response or, for the legacy format, into a json string.
+ *
+ * @author zmiller
+ */
+class RPCResponseAdapter implements TypeAdapterFactory {
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+        if(type.getRawType() != RPCResponse.class) {
+            return null;
+        }
+
+        return (TypeAdapter<T>) new Adapter(gson);
+    }
+
+    private static class Adapter extends TypeAdapter<RPCResponse> {
+
+        private final Gson gson;
+        private final TypeAdapter<JsonElement> elements;
+
+        private Adapter(Gson gson) {
+            this.gson = gson;
+            this.elements = gson.getAdapter(JsonElement.class);
+        }
+
+        @Override
+        public void write(JsonWriter out, RPCResponse response) throws IOException {
+            if(response == null) {
+                out.nullValue();
+                return;
+            }
+
+            out.beginObject();
+            out.name("jsonrpc").value(response.jsonrpc);
+            if(response.id != null) {
+                out.name("id").value(response.id);
+            }
+
+            if(response.error != null) {
+                out.name("error").beginObject();
+                if(response.error.cause != null) {
+                    out.name("reason");
+                    writeValue(out, response.error.cause, response.nativeFormat);
+                }
+                else if(response.error.reason != null) {
+                    out.name("reason");
+                    if(response.nativeFormat) {
+                        out.jsonValue(response.error.reason);
+                    }
+                    else {
+                        out.value(response.error.reason);
+                    }
+                }
+
+                if(response.error.clazz != null) {
+                    out.name("clazz").value(response.error.clazz);
+                }
+                out.endObject();
+            }
+
+            if(response.result != null) {
+                out.name("result");
+                writeValue(out, response.result, response.nativeFormat);
+            }
+            out.endObject();
+        }
+
+        @SuppressWarnings("unchecked")
+        private void writeValue(JsonWriter out, Object value, boolean nativeFormat) throws IOException {
+            if(nativeFormat) {
+                TypeAdapter<Object> adapter = (TypeAdapter<Object>) gson.getAdapter(value.getClass());
+                adapter.write(out, value);
+            }
+            else {
+                out.value(gson.toJson(value, value.getClass()));
+            }
+        }
+
+        @Override
+        public RPCResponse read(JsonReader in) throws IOException {
+            if(in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            RPCResponse response = new RPCResponse();
+            in.beginObject();
+            while(in.hasNext()) {
+                switch(in.nextName()) {
+                    case "id":
+                        response.id = readString(in);
+                        break;
+                    case "result":
+                        response.encoded = elements.read(in);
+                        break;
+                    case "error":
+                        response.error = readError(in);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+
+            return response;
+        }
+
+        private RPCError<?> readError(JsonReader in) throws IOException {
+            if(in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            RPCError<?> error = new RPCError<>();
+            in.beginObject();
+            while(in.hasNext()) {
+                switch(in.nextName()) {
+                    case "reason":
+                        error.encoded = elements.read(in);
+                        error.reason = error.encoded.isJsonPrimitive()
+                                ? error.encoded.getAsString()
+                                : error.encoded.toString();
+                        break;
+                    case "clazz":
+                        error.clazz = readString(in);
+                        break;
+                    default:
+                        in.skipValue();
+                }
+            }
+            in.endObject();
+
+            return error;
+        }
+
+        private static String readString(JsonReader in) throws IOException {
+            if(in.peek() == JsonToken.NULL) {
+                in.nextNull();
+                return null;
+            }
+
+            return in.nextString();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.client;
+
+import com.zm.rabbitmqservice.RPCResponse;
+
+import java.util.Map;
+
+/**
+ * Result of a call with a breakdown of where the call spent its time. The client measures publishing the request and
+ * waiting for the reply; the service's stages are read from the reply's timing headers and are -1 if the service
+ * didn't stamp them. The wait includes the service's stages and the network.
+ *
+ * @author zmiller
+ */
+public class CallResult<T> {
+
+    private final T result;
+    private final long publishMicros;
+    private final long waitMicros;
+    private final long queueMicros;
+    private final long parseMicros;
+    private final long invokeMicros;
+    private final long serializeMicros;
+
+    CallResult(T result, ReplyConsumer.Reply reply) {
+        Map<String, Object> headers = reply.properties.getHeaders();
+        this.result = result;
+        this.publishMicros = (reply.published - reply.started) / 1000;
+        this.waitMicros = (reply.received - reply.published) / 1000;
+        this.queueMicros = micros(headers, RPCResponse.QUEUE_TIME_HEADER);
+        this.parseMicros = micros(headers, RPCResponse.PARSE_TIME_HEADER);
+        this.invokeMicros = micros(headers, RPCResponse.INVOKE_TIME_HEADER);
+        this.serializeMicros = micros(headers, RPCResponse.SERIALIZE_TIME_HEADER);
+    }
+
+    private static long micros(Map<String, Object> headers, String header) {
+        Object value = headers == null ? null : headers.get(header);
+        if(value == null) {
+            return -1;
+        }
+
+        try {
+            return Long.parseLong(value.toString());
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public T getResult() {
+        return result;
+    }
+
+    /**
+     * @return microseconds spent encoding, compressing and publishing the request
+     */
+    public long getPublishMicros() {
+        return publishMicros;
+    }
+
+    /**
+     * @return microseconds from publishing the request until its reply was received
+     */
+    public long getWaitMicros() {
+        return waitMicros;
+    }
+
+    /**
+     * @return microseconds the request waited in the queue, -1 if unknown
+     */
+    public long getQueueMicros() {
+        return queueMicros;
+    }
+
+    /**
+     * @return microseconds the service spent decoding the request, -1 if unknown
+     */
+    public long getParseMicros() {
+        return parseMicros;
+    }
+
+    /**
+     * @return microseconds the service spent in the api method, -1 if unknown
+     */
+    public long getInvokeMicros() {
+        return invokeMicros;
+    }
+
+    /**
+     * @return microseconds the service spent encoding the reply, -1 if unknown
+     */
+    public long getSerializeMicros() {
+        return serializeMicros;
+    }
+
+    @Override
+    public String toString() {
+        return "publish=" + publishMicros + "us wait=" + waitMicros + "us queue=" + queueMicros
+                + "us parse=" + parseMicros + "us invoke=" + invokeMicros + "us serialize=" + serializeMicros + "us";
+    }
+}
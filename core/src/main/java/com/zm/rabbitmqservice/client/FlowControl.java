@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.client;
+
+import com.zm.rabbitmqservice.RMQConnectionFactory;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Client-side flow control of the requests published to a queue. Every request takes a permit of the queue's
+ * window until its reply arrives or it fails, so a queue nobody consumes holds at most the window's worth of requests
+ * from this process instead of growing until the broker raises a memory alarm. Once the broker blocks the connection
+ * anyway, requests wait or fail before publishing instead of stalling the publishing thread. Waiting never parks the
+ * caller: admission is a future completed once the request may be published.
+ *
+ * The window is shared by every client of the queue in this process. Flow control is off until a client of the queue
+ * configures it.
+ *
+ * @author zmiller
+ */
+class FlowControl {
+
+    private static final ConcurrentHashMap<String, FlowControl> queues = new ConcurrentHashMap<>();
+
+    private final String host;
+    private final String queue;
+    private final Window permits = new Window();
+    private final ConcurrentLinkedDeque<Ticket> inFlight = new ConcurrentLinkedDeque<>();
+
+    // Admissions waiting for a permit under the BLOCK policy, in arrival order
+    private final ConcurrentLinkedQueue<CompletableFuture<Ticket>> waiting = new ConcurrentLinkedQueue<>();
+
+    // Number of permits the window was sized to, kept while the window is disabled
+    private int capacity;
+    private volatile int limit;
+    private volatile OverflowPolicy policy;
+
+    private FlowControl(String host, String queue) {
+        this.host = host;
+        this.queue = queue;
+    }
+
+    /**
+     * @param host - RabbitMQ host
+     * @param queue - queue requests are published to
+     * @return flow control of the queue
+     */
+    static FlowControl forQueue(String host, String queue) {
+        return queues.computeIfAbsent(host + '\u0000' + queue, key -> new FlowControl(host, queue));
+    }
+
+    /**
+     * Semaphore whose number of permits can be lowered while permits are taken
+     */
+    private static class Window extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        private Window() {
+            super(0);
+        }
+
+        private void shrink(int permits) {
+            reducePermits(permits);
+        }
+    }
+
+    /**
+     * @param limit - maximum number of requests in flight, 0 for no window
+     * @param policy - policy of requests that don't fit the window, null to turn flow control off
+     */
+    synchronized void configure(int limit, OverflowPolicy policy) {
+        if(limit > 0) {
+            if(limit > capacity) {
+                permits.release(limit - capacity);
+            }
+            else {
+                permits.shrink(capacity - limit);
+            }
+
+            capacity = limit;
+        }
+
+        this.limit = limit;
+        this.policy = policy;
+    }
+
+    /**
+     * A request admitted to the queue. Released exactly once, when the request settled.
+     */
+    final class Ticket {
+        private final boolean permit;
+        private final AtomicBoolean released = new AtomicBoolean();
+        private volatile Runnable shed;
+
+        private Ticket(boolean permit) {
+            this.permit = permit;
+        }
+
+        /**
+         * Release the ticket once the call completes, and make the call sheddable under the SHED policy.
+         *
+         * @param call - future of the call's reply
+         * @param shed - stops waiting for the reply and fails the call
+         */
+        void track(CompletableFuture<?> call, Runnable shed) {
+            if(!permit) {
+                return;
+            }
+
+            this.shed = shed;
+            if(policy == OverflowPolicy.SHED) {
+                inFlight.addLast(this);
+            }
+
+            call.whenComplete((r, error) -> release());
+        }
+
+        void release() {
+            if(!released.compareAndSet(false, true)) {
+                return;
+            }
+
+            if(permit) {
+                permits.release();
+                grant();
+            }
+
+            // Calls mostly finish in the order they were sent, so dropping released tickets off the head keeps the
+            // queue of sheddable calls short without searching it
+            Ticket head;
+            while((head = inFlight.peekFirst()) != null && head.released.get()) {
+                inFlight.removeFirstOccurrence(head);
+            }
+        }
+    }
+
+    /**
+     * Admit a request to the queue, shedding as the policy says. Under the BLOCK policy the request waits for a
+     * permit, or for the broker to unblock the connection, without holding up the calling thread.
+     *
+     * @param timeout - maximum time in milliseconds to wait with the BLOCK policy
+     * @param timer - timer that gives up on waiting admissions
+     * @return future of the ticket to release once the request settled, failed with a ClientException if the request
+     * may not be published
+     */
+    CompletableFuture<Ticket> admit(long timeout, WheelTimer timer) {
+        OverflowPolicy policy = this.policy;
+        if(policy == null) {
+            return CompletableFuture.completedFuture(new Ticket(false));
+        }
+
+        String reason = RMQConnectionFactory.getBlockedReason(host);
+        if(reason == null) {
+            return acquire(policy, timeout, timer);
+        }
+
+        ClientException blocked = new ClientException("The broker blocked publishing to " + host + ": " + reason, null);
+        if(policy != OverflowPolicy.BLOCK) {
+            return failed(blocked);
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        CompletableFuture<Ticket> admitted = new CompletableFuture<>();
+        WheelTimer.Timeout expiry = timer.schedule(() -> admitted.completeExceptionally(blocked),
+                timeout, TimeUnit.MILLISECONDS);
+
+        RMQConnectionFactory.whenUnblocked(host).thenRun(() -> {
+            if(!expiry.cancel()) {
+                return;
+            }
+
+            long remaining = TimeUnit.NANOSECONDS.toMillis(Math.max(0, deadline - System.nanoTime()));
+            acquire(policy, remaining, timer).whenComplete((ticket, error) -> {
+                if(error != null) {
+                    admitted.completeExceptionally(error);
+                }
+                else if(!admitted.complete(ticket)) {
+                    ticket.release();
+                }
+            });
+        });
+
+        return admitted;
+    }
+
+    /**
+     * Take a permit of the window.
+     *
+     * @param policy - policy of a request that doesn't fit the window
+     * @param timeout - maximum time in milliseconds to wait with the BLOCK policy
+     * @param timer - timer that gives up on waiting admissions
+     * @return future of the ticket
+     */
+    private CompletableFuture<Ticket> acquire(OverflowPolicy policy, long timeout, WheelTimer timer) {
+        if(limit == 0) {
+            return CompletableFuture.completedFuture(new Ticket(false));
+        }
+
+        switch (policy) {
+            case BLOCK:
+                // Queue behind earlier waiters instead of barging past them
+                if(waiting.isEmpty() && permits.tryAcquire()) {
+                    return CompletableFuture.completedFuture(new Ticket(true));
+                }
+
+                CompletableFuture<Ticket> admitted = new CompletableFuture<>();
+                WheelTimer.Timeout expiry = timer.schedule(() -> {
+                    if(admitted.completeExceptionally(full())) {
+                        waiting.remove(admitted);
+                    }
+                }, timeout, TimeUnit.MILLISECONDS);
+
+                admitted.whenComplete((ticket, error) -> expiry.cancel());
+                waiting.add(admitted);
+
+                // A permit released before the admission was queued would otherwise go unnoticed
+                grant();
+                return admitted;
+
+            case SHED:
+                while(!permits.tryAcquire()) {
+                    if(!shed()) {
+                        return failed(full());
+                    }
+                }
+                return CompletableFuture.completedFuture(new Ticket(true));
+
+            default:
+                if(permits.tryAcquire()) {
+                    return CompletableFuture.completedFuture(new Ticket(true));
+                }
+                return failed(full());
+        }
+    }
+
+    /**
+     * Hand free permits to waiting admissions, oldest first. Admissions that expired meanwhile are skipped.
+     */
+    private void grant() {
+        while(!waiting.isEmpty() && permits.tryAcquire()) {
+            Ticket ticket = new Ticket(true);
+            CompletableFuture<Ticket> next;
+            while((next = waiting.poll()) != null && !next.complete(ticket)) {
+                // Expired, try the next one
+            }
+
+            if(next == null) {
+                // Nobody took the permit, give it back and check again for an admission queued in the meantime
+                permits.release();
+            }
+        }
+    }
+
+    private static CompletableFuture<Ticket> failed(ClientException e) {
+        CompletableFuture<Ticket> failed = new CompletableFuture<>();
+        failed.completeExceptionally(e);
+        return failed;
+    }
+
+    private ClientException full() {
+        return new ClientException(limit + " requests to " + queue + " are already in flight", null);
+    }
+
+    /**
+     * Give up on the oldest sheddable call, which releases its permit.
+     *
+     * @return false if there is no call left to shed
+     */
+    private boolean shed() {
+        Ticket oldest;
+        while((oldest = inFlight.pollFirst()) != null) {
+            if(!oldest.released.get()) {
+                oldest.release();
+                oldest.shed.run();
+                return true;
+            }
+        }
+
+        return false;
+    }
+}
@@ -14,24 +14,29 @@
  * You should have received a copy of the GNU General Public License
  * along with this program.  If not, see <http://www.gnu.org/licenses/>.
  */
-package com.zm.rabbitmqservice;
-
-
-import com.google.gson.Gson;
+package com.zm.rabbitmqservice.client;
 
 /**
+ * What a client does with a request when its queue's in-flight window is full, or the broker blocked its connection.
  *
  * @author zmiller
  */
-public class RPCError<T extends Throwable> {
+public enum OverflowPolicy {
+
+    /**
+     * Wait up to the client timeout for a call to finish, or for the broker to unblock the connection, then fail.
+     */
+    BLOCK,
+
+    /**
+     * Fail the request right away.
+     */
+    FAIL_FAST,
 
-    public String reason;
-    public String clazz;
-    
-    public RPCError(T reason) {
-        this.reason = new Gson().toJson(reason);
-        if(reason != null) {
-            this.clazz = reason.getClass().getName();
-        }
-    }
+    /**
+     * Give up on the oldest call in flight, which fails, to make room for the request. Fresh calls are more likely
+     * to be answered in time than calls that have waited the longest. Requests fail right away while the broker
+     * blocks the connection.
+     */
+    SHED
 }
@@ -0,0 +1,1148 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.client;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.zm.rabbitmqservice.ExpiringCache;
+import com.zm.rabbitmqservice.PublisherConfirms;
+import com.zm.rabbitmqservice.RMQConnectionFactory;
+import com.zm.rabbitmqservice.RPCRequest;
+import com.zm.rabbitmqservice.RPCResponse;
+import com.zm.rabbitmqservice.codec.Codec;
+import com.zm.rabbitmqservice.codec.Codecs;
+import com.zm.rabbitmqservice.codec.Compression;
+import com.zm.rabbitmqservice.metrics.Metrics;
+import com.zm.rabbitmqservice.service.ServiceUnavailableException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+import static com.zm.rabbitmqservice.service.ServiceUnavailableException.Status.*;
+
+public class RMQClient {
+
+    private static final Logger log = LoggerFactory.getLogger(RMQClient.class);
+    private static final WheelTimer timer = new WheelTimer("rmq-client-timer", 1, TimeUnit.MILLISECONDS, 1024);
+    private static final Type BATCH = new TypeToken<List<RPCRequest>>(){}.getType();
+
+    private final String host;
+    private final String requestQueueName;
+    private final FlowControl flowControl;
+
+    private int timeout = 3000;
+    private Integer expiry;
+    private Codec codec = Codecs.JSON;
+    private Compression compression;
+    private int compressionThreshold;
+    private int maxReplySize = 64 * 1024 * 1024;
+    private boolean publisherConfirms;
+    private int retries;
+    private Map<String, Object> headers = headers(null);
+    private Metrics metrics = Metrics.NONE;
+
+    private long coalesceWindow;
+    private int coalesceLimit;
+    private final Object coalesceLock = new Object();
+    private Batch coalesced;
+
+    private final Map<String, Long> cachedMethods = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<RPCResponse>> inFlight = new ConcurrentHashMap<>();
+    private volatile ExpiringCache<String, RPCResponse> results = resultCache(1024, 16 * 1024 * 1024);
+
+    protected RMQClient(String host, String queue) {
+        log.debug("Created client of {} on {}", queue, host);
+        this.host = host;
+        requestQueueName = queue;
+        flowControl = FlowControl.forQueue(host, queue);
+    }
+
+    public void setMessageExpiry(Integer expiry) {
+        this.expiry = expiry;
+    }
+
+    public void setClientTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Encoding of the requests sent by this client. Services reply in the same encoding, so a binary codec must only
+     * be chosen for services that support it. Defaults to json.
+     *
+     * @param codec - request codec
+     */
+    public void setCodec(Codec codec) {
+        this.codec = codec;
+    }
+
+    /**
+     * Compress requests larger than the threshold and accept compressed replies. Services that predate compression
+     * can't read compressed requests, so it must only be enabled for services that support it.
+     *
+     * @param compression - compression of requests and replies, null to disable compression
+     * @param threshold - request size in bytes above which requests are compressed
+     */
+    public void setCompression(Compression compression, int threshold) {
+        this.compression = compression;
+        this.compressionThreshold = threshold;
+        this.headers = headers(compression);
+    }
+
+    /**
+     * Largest reply a compressed reply may decompress to. Larger replies fail the call with a ClientException
+     * without decompressing them further. Defaults to 64MB.
+     *
+     * @param maxReplySize - maximum size of a decompressed reply in bytes
+     */
+    public void setMaxReplySize(int maxReplySize) {
+        if(maxReplySize < 1) {
+            throw new IllegalArgumentException("max reply size must be at least 1");
+        }
+
+        this.maxReplySize = maxReplySize;
+    }
+
+    /**
+     * Have the broker confirm every request. A request the broker rejects, or loses before confirming, fails right
+     * away instead of once the client timeout elapses. Confirms are tracked asynchronously, so requests are still
+     * published without waiting for the previous one to be confirmed.
+     *
+     * @param publisherConfirms - true to enable publisher confirms
+     */
+    public void setPublisherConfirms(boolean publisherConfirms) {
+        this.publisherConfirms = publisherConfirms;
+    }
+
+    /**
+     * Republish a call whose reply didn't arrive within the client timeout. Retries carry the same request id, so a
+     * service with a reply cache answers them without executing the method twice. Batched and coalesced calls are not
+     * retried.
+     *
+     * @param retries - number of times a call is republished, 0 to fail on the first timeout
+     */
+    public void setRetries(int retries) {
+        this.retries = retries;
+    }
+
+    /**
+     * Coalesce calls issued within the window into a single batch request. The first call of a batch waits at most
+     * the window before the batch is sent, and a batch is sent right away once it holds maxCalls calls. Replies are
+     * demultiplexed to each call's future, so callers can't tell a coalesced call from a plain one. A batch holding a
+     * single call is sent as a plain request, everything else requires a service that supports batch requests. The
+     * window is rounded up to the client timer's resolution of 1ms.
+     *
+     * @param window - time a call may wait for others to join its batch, 0 to disable coalescing
+     * @param unit - unit of the window
+     * @param maxCalls - maximum number of calls per batch
+     */
+    public void setCoalescing(long window, TimeUnit unit, int maxCalls) {
+        if(window < 0 || maxCalls < 1) {
+            throw new IllegalArgumentException("window must not be negative and maxCalls must be at least 1");
+        }
+
+        synchronized (coalesceLock) {
+            this.coalesceWindow = unit.toNanos(window);
+            this.coalesceLimit = maxCalls;
+        }
+    }
+
+    /**
+     * Cache the results of a method. A cached method is called once per set of parameters until its result expires,
+     * every other call is answered locally, and concurrent calls with the same parameters share one call in flight.
+     * Only methods without side effects should be cached. Errors are never cached.
+     *
+     * @param method - name of the api method
+     * @param ttl - time a result is served from the cache, 0 to stop caching the method
+     * @param unit - unit of the time to live
+     */
+    public void cacheResults(String method, long ttl, TimeUnit unit) {
+        if(ttl > 0) {
+            cachedMethods.put(method, unit.toNanos(ttl));
+        }
+        else {
+            cachedMethods.remove(method);
+        }
+    }
+
+    /**
+     * Bound the result cache. Replaces the cache, so every cached result is dropped. Defaults to 1024 results and
+     * 16MB.
+     *
+     * @param maxEntries - maximum number of cached results
+     * @param maxBytes - maximum total size of the cached results in bytes
+     */
+    public void setResultCacheLimits(int maxEntries, long maxBytes) {
+        this.results = resultCache(maxEntries, maxBytes);
+    }
+
+    /**
+     * Drop every cached result.
+     */
+    public void clearResultCache() {
+        results.clear();
+    }
+
+    /**
+     * Metrics the client records the round trip, timeouts and failures of its calls to, along with the number of calls
+     * in flight. Coalesced and batched calls are measured like plain calls, notifications are not measured. Calls
+     * answered from the result cache are only counted as cache hits.
+     *
+     * @param metrics - metrics implementation, Metrics.NONE to record nothing
+     */
+    public void setMetrics(Metrics metrics) {
+        if(metrics == null) {
+            throw new IllegalArgumentException("metrics must not be null, use Metrics.NONE");
+        }
+
+        this.metrics = metrics;
+    }
+
+    /**
+     * Bound the number of requests in flight to the queue. A request takes a slot of the window until its reply
+     * arrives or it fails, and a notification until the broker confirmed it, or until it is published without
+     * publisher confirms. The window is shared by every client of the queue in this process and the last client to
+     * configure it wins. The policy also decides what happens while the broker blocks the connection because it is
+     * short of memory or disk: BLOCK waits up to the client timeout for the broker to unblock it, the other policies
+     * fail right away instead of stalling on the blocked connection. Waiting under BLOCK never parks the caller of
+     * callAsync or sendAsync, the request is published from the common pool once it is admitted, and the client
+     * timeout of its reply starts then.
+     *
+     * @param maxInFlight - maximum number of requests in flight, 0 to only react to a blocked connection
+     * @param policy - what to do with a request that doesn't fit the window, null to turn flow control off
+     */
+    public void setFlowControl(int maxInFlight, OverflowPolicy policy) {
+        if(maxInFlight < 0) {
+            throw new IllegalArgumentException("maxInFlight must not be negative");
+        }
+
+        flowControl.configure(maxInFlight, policy);
+    }
+
+    /**
+     * Call a method on the service and block until its reply arrives or the client timeout elapses.
+     *
+     * @param method - name of the api method
+     * @param params - positional parameters of the method
+     * @param retval - type the result is decoded to
+     * @return decoded result
+     * @throws Throwable the error thrown by the service, or a ServiceUnavailableException on timeout
+     */
+    protected <T> T call(String method, JsonArray params, Class<T> retval) throws TimeoutException, IOException, Throwable {
+        try {
+            return callAsync(method, params, retval).get();
+        }
+        catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Call a method on the service without blocking. The returned future is completed on the reply consumer thread,
+     * or exceptionally with a ServiceUnavailableException by the shared timer once the client timeout elapses.
+     *
+     * @param method - name of the api method
+     * @param params - positional parameters of the method
+     * @param retval - type the result is decoded to
+     * @return future of the decoded result
+     */
+    protected <T> CompletableFuture<T> callAsync(String method, JsonArray params, Class<T> retval) {
+        Long ttl = cachedMethods.get(method);
+        String key = null;
+        if(ttl != null) {
+            key = cacheKey(method, params);
+            RPCResponse hit = results.get(key);
+
+            // Answered locally, so it's counted as a hit and kept out of the call latency
+            if(hit != null) {
+                metrics.resultCacheHit(method);
+                return result(CompletableFuture.completedFuture(hit), retval);
+            }
+        }
+
+        long start = System.nanoTime();
+        metrics.callStarted(method);
+        CompletableFuture<RPCResponse> response = ttl == null
+                ? exchange(method, params)
+                : cached(key, method, params, ttl);
+        return result(measured(method, start, response), retval);
+    }
+
+    /**
+     * Record the outcome of a call with the client's metrics once its response arrives or it fails.
+     *
+     * @param method - name of the api method
+     * @param start - System.nanoTime() when the call was started
+     * @param response - future of the call's response
+     * @return the response future
+     */
+    private CompletableFuture<RPCResponse> measured(String method, long start, CompletableFuture<RPCResponse> response) {
+        response.whenComplete((r, error) -> {
+            if(error instanceof CompletionException && error.getCause() != null) {
+                error = error.getCause();
+            }
+
+            if(error == null) {
+                metrics.callCompleted(method, System.nanoTime() - start);
+            }
+            else if(error instanceof ServiceUnavailableException) {
+                metrics.callTimedOut(method, ((ServiceUnavailableException) error).getStatus());
+            }
+            else {
+                metrics.callFailed(method, error);
+            }
+        });
+
+        return response;
+    }
+
+    /**
+     * Call a method on the service and block until its reply arrives or the client timeout elapses, measuring where
+     * the call spent its time.
+     *
+     * @param method - name of the api method
+     * @param params - positional parameters of the method
+     * @param retval - type the result is decoded to
+     * @return decoded result with the call's timings
+     * @throws Throwable the error thrown by the service, or a ServiceUnavailableException on timeout
+     */
+    protected <T> CallResult<T> callTimed(String method, JsonArray params, Class<T> retval) throws Throwable {
+        try {
+            return callTimedAsync(method, params, retval).get();
+        }
+        catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Call a method on the service without blocking, measuring where the call spent its time. The call is always sent
+     * on its own, bypassing coalescing and the result cache, so the timings are those of this call. The service's
+     * stages are only known if the service has timing headers enabled.
+     *
+     * @param method - name of the api method
+     * @param params - positional parameters of the method
+     * @param retval - type the result is decoded to
+     * @return future of the decoded result with the call's timings
+     */
+    protected <T> CompletableFuture<CallResult<T>> callTimedAsync(String method, JsonArray params, Class<T> retval) {
+        long start = System.nanoTime();
+        metrics.callStarted(method);
+
+        final CompletableFuture<ReplyConsumer.Reply> reply = new CompletableFuture<>();
+        exchange(request(method, params), reply, retries);
+
+        final CompletableFuture<CallResult<T>> timed = new CompletableFuture<>();
+        result(measured(method, start, decoded(reply)), retval).whenComplete((value, error) -> {
+            if(error != null) {
+                timed.completeExceptionally(error);
+            }
+            else {
+                timed.complete(new CallResult<>(value, reply.join()));
+            }
+        });
+
+        return timed;
+    }
+
+    /**
+     * Send the call, coalesced into a batch if coalescing is enabled.
+     *
+     * @param method - name of the api method
+     * @param params - positional parameters of the method
+     * @return future of the call's response
+     */
+    private CompletableFuture<RPCResponse> exchange(String method, JsonArray params) {
+        if(coalesceWindow > 0) {
+            return coalesce(method, params);
+        }
+
+        final CompletableFuture<ReplyConsumer.Reply> reply = new CompletableFuture<>();
+        exchange(request(method, params), reply, retries);
+        return decoded(reply);
+    }
+
+    /**
+     * @param method - name of the api method
+     * @param params - positional parameters of the method
+     * @return request with a new id
+     */
+    private static RPCRequest request(String method, JsonArray params) {
+        RPCRequest request = new RPCRequest();
+        request.id = UUID.randomUUID().toString();
+        request.method = method;
+        request.params = params;
+        return request;
+    }
+
+    /**
+     * Publish the request and complete the future with its reply, republishing it on timeout while attempts remain.
+     * The reply carries the send times of the attempt that was answered.
+     *
+     * @param request - request, its id is the correlation id of every attempt
+     * @param reply - future of the reply
+     * @param retries - remaining retries
+     */
+    private void exchange(RPCRequest request, CompletableFuture<ReplyConsumer.Reply> reply, int retries) {
+        final long started = System.nanoTime();
+        CompletableFuture<ReplyConsumer.Reply> attempt = request(request.id, request, RPCRequest.class);
+        final long published = System.nanoTime();
+
+        attempt.whenComplete((r, error) -> {
+            if(error instanceof ServiceUnavailableException && retries > 0) {
+                log.debug("Retrying request {} after a timeout, {} retries left", request.id, retries - 1);
+                exchange(request, reply, retries - 1);
+            }
+            else if(error != null) {
+                reply.completeExceptionally(error);
+            }
+            else {
+                reply.complete(r.sent(started, published));
+            }
+        });
+    }
+
+    /**
+     * Map the future of a reply to the future of its decoded response.
+     *
+     * @param reply - future of the reply
+     * @return future of the response, completed exceptionally if the reply failed or could not be decoded
+     */
+    private CompletableFuture<RPCResponse> decoded(CompletableFuture<ReplyConsumer.Reply> reply) {
+        final CompletableFuture<RPCResponse> response = new CompletableFuture<>();
+        reply.whenComplete((r, error) -> {
+            try {
+                if(error != null) {
+                    throw error;
+                }
+
+                response.complete(response(r));
+            }
+            catch (Throwable t) {
+                response.completeExceptionally(t);
+            }
+        });
+
+        return response;
+    }
+
+    /**
+     * Send a call whose result wasn't cached and cache its result. Concurrent identical calls share the response of
+     * a single call in flight. Only successful responses are cached.
+     *
+     * @param key - cache key of the call
+     * @param method - name of the api method
+     * @param params - positional parameters of the method
+     * @param ttl - time to live of the result in nanoseconds
+     * @return future of the call's response
+     */
+    private CompletableFuture<RPCResponse> cached(String key, String method, JsonArray params, long ttl) {
+        final CompletableFuture<RPCResponse> created = new CompletableFuture<>();
+        CompletableFuture<RPCResponse> pending = inFlight.putIfAbsent(key, created);
+        if(pending != null) {
+            return pending;
+        }
+
+        exchange(method, params).whenComplete((response, error) -> {
+            if(error == null && response.error == null) {
+                results.put(key, response, ttl, TimeUnit.NANOSECONDS);
+            }
+
+            inFlight.remove(key, created);
+            if(error != null) {
+                created.completeExceptionally(error);
+            }
+            else {
+                created.complete(response);
+            }
+        });
+
+        return created;
+    }
+
+    /**
+     * Key of a call in the result cache. Object members are sorted so that equal parameters always produce the same
+     * key.
+     *
+     * @param method - name of the api method
+     * @param params - positional parameters of the method
+     * @return cache key
+     */
+    static String cacheKey(String method, JsonArray params) {
+        StringBuilder key = new StringBuilder(method).append('\u0000');
+        canonical(params == null ? new JsonArray() : params, key);
+        return key.toString();
+    }
+
+    private static void canonical(JsonElement element, StringBuilder out) {
+        if(element.isJsonObject()) {
+            Map<String, JsonElement> sorted = new TreeMap<>();
+            for(Map.Entry<String, JsonElement> member : element.getAsJsonObject().entrySet()) {
+                sorted.put(member.getKey(), member.getValue());
+            }
+
+            String separator = "{";
+            for(Map.Entry<String, JsonElement> member : sorted.entrySet()) {
+                out.append(separator);
+                separator = ",";
+
+                out.append(new JsonPrimitive(member.getKey())).append(':');
+                canonical(member.getValue(), out);
+            }
+            out.append(sorted.isEmpty() ? "{}" : "}");
+        }
+        else if(element.isJsonArray()) {
+            String separator = "[";
+            for(JsonElement item : element.getAsJsonArray()) {
+                out.append(separator);
+                separator = ",";
+                canonical(item, out);
+            }
+            out.append(element.getAsJsonArray().size() == 0 ? "[]" : "]");
+        }
+        else {
+            out.append(element);
+        }
+    }
+
+    private static ExpiringCache<String, RPCResponse> resultCache(int maxEntries, long maxBytes) {
+        return new ExpiringCache<>(maxEntries, maxBytes, response -> response.getResultSize());
+    }
+
+    /**
+     * Add the call to the batch currently being coalesced, starting a new batch if there is none. The batch is sent
+     * by the timer once the window elapses, or by the caller that fills it.
+     */
+    private CompletableFuture<RPCResponse> coalesce(String method, JsonArray params) {
+        CompletableFuture<RPCResponse> response;
+        Batch full = null;
+        synchronized (coalesceLock) {
+            if(coalesced == null) {
+                // Coalesced calls are measured by callAsync
+                final Batch batch = new Batch(false);
+                coalesced = batch;
+                timer.schedule(() -> ForkJoinPool.commonPool().execute(() -> flush(batch)),
+                        coalesceWindow, TimeUnit.NANOSECONDS);
+            }
+
+            response = coalesced.add(method, params);
+            if(coalesced.size() >= coalesceLimit) {
+                full = coalesced;
+                coalesced = null;
+            }
+        }
+
+        if(full != null) {
+            full.executeAsync();
+        }
+
+        return response;
+    }
+
+    /**
+     * Send the coalesced batch once its window elapsed, unless it was already sent because it filled up.
+     */
+    private void flush(Batch batch) {
+        synchronized (coalesceLock) {
+            if(coalesced != batch) {
+                return;
+            }
+
+            coalesced = null;
+        }
+
+        batch.executeAsync();
+    }
+
+    /**
+     * Start a batch of calls sent to the service in a single message.
+     *
+     * @return empty batch
+     */
+    protected Batch batch() {
+        return new Batch(true);
+    }
+
+    /**
+     * A batch of calls sent to the service as one JSON-RPC 2.0 batch request. The service executes every call and
+     * answers with a single reply, so many small calls cost one round trip. Each call has its own future, and a call
+     * that fails doesn't fail the others. A batch is built by a single thread and executed once.
+     */
+    public class Batch {
+
+        private final List<RPCRequest> requests = new ArrayList<>();
+        private final Map<String, CompletableFuture<RPCResponse>> calls = new HashMap<>();
+        private final boolean measure;
+
+        /**
+         * @param measure - true to record the calls with the client's metrics once the batch is sent
+         */
+        private Batch(boolean measure) {
+            this.measure = measure;
+        }
+
+        /**
+         * Add a call to the batch. Nothing is sent until the batch is executed.
+         *
+         * @param method - name of the api method
+         * @param params - positional parameters of the method
+         * @param retval - type the result is decoded to
+         * @return future of the decoded result, completed once the batch's reply arrives
+         */
+        public <T> CompletableFuture<T> add(String method, JsonArray params, Class<T> retval) {
+            return result(add(method, params), retval);
+        }
+
+        private CompletableFuture<RPCResponse> add(String method, JsonArray params) {
+            RPCRequest request = new RPCRequest();
+            request.id = Integer.toString(requests.size());
+            request.method = method;
+            request.params = params;
+
+            CompletableFuture<RPCResponse> response = new CompletableFuture<>();
+            requests.add(request);
+            calls.put(request.id, response);
+            return response;
+        }
+
+        public int size() {
+            return requests.size();
+        }
+
+        /**
+         * Send the batch and block until its reply arrives or the client timeout elapses.
+         *
+         * @throws Throwable a ServiceUnavailableException on timeout, or the error that kept the batch from being sent
+         */
+        public void execute() throws Throwable {
+            try {
+                executeAsync().get();
+            }
+            catch (ExecutionException e) {
+                throw e.getCause();
+            }
+        }
+
+        /**
+         * Send the batch without blocking. If the batch fails as a whole every call fails with the same error.
+         *
+         * @return future completed once the reply arrived and every call's future is completed
+         */
+        public CompletableFuture<Void> executeAsync() {
+            final CompletableFuture<Void> done = new CompletableFuture<>();
+            if(requests.isEmpty()) {
+                done.complete(null);
+                return done;
+            }
+
+            if(measure) {
+                long start = System.nanoTime();
+                for(RPCRequest request : requests) {
+                    metrics.callStarted(request.method);
+                    measured(request.method, start, calls.get(request.id));
+                }
+            }
+
+            // A single call is sent as a plain request, which every service understands
+            final boolean single = requests.size() == 1;
+            Object message = single ? requests.get(0) : requests;
+            Type type = single ? RPCRequest.class : BATCH;
+
+            request(UUID.randomUUID().toString(), message, type).whenComplete((reply, error) -> {
+                try {
+                    if(error != null) {
+                        throw error;
+                    }
+
+                    List<RPCResponse> responses;
+                    if(single) {
+
+                        // Errors about an unreadable request carry no id but still answer the call
+                        RPCResponse response = response(reply);
+                        response.id = requests.get(0).id;
+                        responses = Collections.singletonList(response);
+                    }
+                    else {
+                        responses = responses(reply);
+                    }
+
+                    for(RPCResponse response : responses) {
+                        CompletableFuture<RPCResponse> call = response.id == null ? null : calls.remove(response.id);
+                        if(call != null) {
+                            call.complete(response);
+                        }
+                    }
+
+                    // Only build the error when a call went unanswered, its stack trace is costly on every reply
+                    if(!calls.isEmpty()) {
+                        fail(new ClientException("The batch reply has no response for the call", null));
+                    }
+
+                    done.complete(null);
+                }
+                catch (Throwable t) {
+                    fail(t);
+                    done.completeExceptionally(t);
+                }
+            });
+
+            return done;
+        }
+
+        /**
+         * Decode the responses of the batch reply. A service that could not read the batch answers with a single
+         * error response, which applies to every call.
+         */
+        private List<RPCResponse> responses(ReplyConsumer.Reply reply) throws Throwable {
+            boolean nativeFormat = RPCResponse.isNativeFormat(reply.properties.getHeaders(), RPCResponse.FORMAT_HEADER);
+            try {
+                List<RPCResponse> responses = Arrays.asList(decode(reply, RPCResponse[].class));
+                for(RPCResponse response : responses) {
+                    response.setNativeFormat(nativeFormat);
+                }
+
+                return responses;
+            }
+            catch (JsonParseException | IllegalStateException e) {
+                RPCResponse response = response(reply);
+                if(response.error == null) {
+                    throw new ClientException("Invalid RPC Response to a batch", e);
+                }
+
+                List<RPCResponse> responses = new ArrayList<>(calls.size());
+                for(String id : calls.keySet()) {
+                    RPCResponse copy = new RPCResponse();
+                    copy.id = id;
+                    copy.error = response.error;
+                    responses.add(copy);
+                }
+
+                return responses;
+            }
+        }
+
+        private void fail(Throwable error) {
+            for(CompletableFuture<RPCResponse> call : calls.values()) {
+                call.completeExceptionally(error);
+            }
+
+            calls.clear();
+        }
+    }
+
+    /**
+     * Publish a request and wait for its reply without blocking.
+     *
+     * @param corrId - correlation id of the message
+     * @param request - request or batch of requests
+     * @param type - type the request is encoded as
+     * @return future of the raw reply, completed exceptionally if flow control rejected or shed the request, it
+     *         could not be published, the broker rejected it or the client timeout elapsed
+     */
+    private CompletableFuture<ReplyConsumer.Reply> request(String corrId, Object request, Type type) {
+        CompletableFuture<FlowControl.Ticket> admission = flowControl.admit(timeout, timer);
+        if(admission.isDone()) {
+            try {
+                return publish(corrId, request, type, admission.join());
+            }
+            catch (CompletionException e) {
+                CompletableFuture<ReplyConsumer.Reply> rejected = new CompletableFuture<>();
+                rejected.completeExceptionally(e.getCause());
+                return rejected;
+            }
+        }
+
+        // Publish on the common pool once admitted, never on the thread that freed the permit or on the timer
+        CompletableFuture<ReplyConsumer.Reply> reply = new CompletableFuture<>();
+        admission.whenCompleteAsync((ticket, error) -> {
+            if(error != null) {
+                reply.completeExceptionally(error);
+                return;
+            }
+
+            publish(corrId, request, type, ticket).whenComplete((r, e) -> {
+                if(e != null) {
+                    reply.completeExceptionally(e);
+                }
+                else {
+                    reply.complete(r);
+                }
+            });
+        });
+
+        return reply;
+    }
+
+    /**
+     * Publish an admitted request.
+     *
+     * @param corrId - correlation id of the message
+     * @param request - request or batch of requests
+     * @param type - type the request is encoded as
+     * @param ticket - admission of the request, released once the request settled
+     * @return future of the raw reply
+     */
+    private CompletableFuture<ReplyConsumer.Reply> publish(String corrId, Object request, Type type,
+                                                           FlowControl.Ticket ticket) {
+        ReplyConsumer replies = null;
+        try (RMQConnectionFactory.Lease lease = lease()) {
+            Channel channel = lease.getChannel();
+            final ReplyConsumer consumer = ReplyConsumer.forChannel(channel);
+            replies = consumer;
+
+            byte[] message = codec.encode(request, type);
+            Compression compressed = compression(message);
+            if(compressed != null) {
+                message = compressed.compress(message);
+            }
+
+            AMQP.BasicProperties props = new AMQP.BasicProperties
+                    .Builder()
+                    .contentType(codec.getContentType())
+                    .contentEncoding(compressed == null ? null : compressed.getContentEncoding())
+                    .expiration(expiry == null ? null : expiry.toString())
+                    .correlationId(corrId)
+                    .replyTo(ReplyConsumer.REPLY_TO)
+                    .headers(requestHeaders())
+                    .build();
+
+            CompletableFuture<ReplyConsumer.Reply> reply = consumer.expect(corrId);
+            WheelTimer.Timeout expiration = expire(consumer, corrId);
+            reply.whenComplete((r, error) -> expiration.cancel());
+            ticket.track(reply, () -> {
+                CompletableFuture<ReplyConsumer.Reply> shed = consumer.forget(corrId);
+                if(shed != null) {
+                    ForkJoinPool.commonPool().execute(() -> shed.completeExceptionally(
+                            new ClientException("The request was shed to make room for newer requests", null)));
+                }
+            });
+
+            if(publisherConfirms) {
+                PublisherConfirms.forChannel(channel)
+                        .publish(channel, "", requestQueueName, props, message)
+                        .whenComplete((v, error) -> {
+                            CompletableFuture<ReplyConsumer.Reply> pending = error == null ? null : consumer.forget(corrId);
+                            if(pending != null) {
+                                pending.completeExceptionally(new ClientException("The broker did not accept the request", error));
+                            }
+                        });
+            }
+            else {
+                channel.basicPublish("", requestQueueName, props, message);
+            }
+
+            return reply;
+        }
+        catch (Throwable t) {
+            ticket.release();
+            CompletableFuture<ReplyConsumer.Reply> failed = replies == null ? null : replies.forget(corrId);
+            if(failed == null) {
+                failed = new CompletableFuture<>();
+            }
+
+            failed.completeExceptionally(t);
+            return failed;
+        }
+    }
+
+    /**
+     * Lease a channel to publish on, waiting at most the client timeout for one of the pool's channels.
+     *
+     * @return lease of an open channel
+     * @throws ClientException if no channel became available in time or the thread was interrupted
+     */
+    private RMQConnectionFactory.Lease lease() throws IOException, ClientException {
+        try {
+            return RMQConnectionFactory.lease(host, requestQueueName, timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e) {
+            throw new ClientException("Could not get a channel to " + host + " within " + timeout + "ms", e);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientException("Interrupted while waiting for a channel to " + host, e);
+        }
+    }
+
+    /**
+     * Send a one-way notification to the service. The request carries neither an id nor a reply queue, so the
+     * service executes the method without replying and the caller does not wait. With publisher confirms enabled
+     * the call blocks until the broker confirms the notification or the client timeout elapses.
+     *
+     * @param method - name of the api method
+     * @param params - positional parameters of the method
+     */
+    protected void send(String method, JsonArray params) throws TimeoutException, IOException, ClientException {
+        try {
+            sendAsync(method, params).get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (ExecutionException e) {
+            throw new ClientException("The broker did not accept the notification", e.getCause());
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ClientException("Interrupted while waiting for the broker", e);
+        }
+    }
+
+    /**
+     * Send a one-way notification to the service without blocking.
+     *
+     * @param method - name of the api method
+     * @param params - positional parameters of the method
+     * @return future completed once the broker confirmed the notification, or right away without publisher confirms
+     * @throws ClientException if flow control rejected the notification
+     */
+    protected CompletableFuture<Void> sendAsync(String method, JsonArray params)
+            throws IOException, TimeoutException, ClientException {
+        RPCRequest request = new RPCRequest();
+        request.method = method;
+        request.params = params;
+        byte[] message = codec.encode(request, RPCRequest.class);
+        Compression compressed = compression(message);
+        if(compressed != null) {
+            message = compressed.compress(message);
+        }
+
+        AMQP.BasicProperties props = new AMQP.BasicProperties
+                .Builder()
+                .contentType(codec.getContentType())
+                .contentEncoding(compressed == null ? null : compressed.getContentEncoding())
+                .expiration(expiry == null ? null : expiry.toString())
+                .build();
+
+        CompletableFuture<FlowControl.Ticket> admission = flowControl.admit(timeout, timer);
+        if(admission.isDone()) {
+            FlowControl.Ticket ticket;
+            try {
+                ticket = admission.join();
+            }
+            catch (CompletionException e) {
+                throw (ClientException) e.getCause();
+            }
+
+            return publish(props, message, ticket);
+        }
+
+        final byte[] body = message;
+        return admission.thenComposeAsync(ticket -> {
+            try {
+                return publish(props, body, ticket);
+            }
+            catch (IOException | ClientException e) {
+                CompletableFuture<Void> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+        });
+    }
+
+    /**
+     * Publish an admitted notification.
+     *
+     * @param props - properties of the notification
+     * @param message - encoded notification
+     * @param ticket - admission of the notification, released once the broker confirmed it or it was published
+     * @return future completed once the broker confirmed the notification, or right away without publisher confirms
+     */
+    private CompletableFuture<Void> publish(AMQP.BasicProperties props, byte[] message, FlowControl.Ticket ticket)
+            throws IOException, ClientException {
+        try (RMQConnectionFactory.Lease lease = lease()) {
+            Channel channel = lease.getChannel();
+            if(publisherConfirms) {
+                CompletableFuture<Void> confirmed = PublisherConfirms.forChannel(channel)
+                        .publish(channel, "", requestQueueName, props, message);
+                confirmed.whenComplete((v, error) -> ticket.release());
+                return confirmed;
+            }
+
+            channel.basicPublish("", requestQueueName, props, message);
+            ticket.release();
+            return CompletableFuture.completedFuture(null);
+        }
+        catch (IOException | ClientException | RuntimeException e) {
+            ticket.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @param message - encoded request
+     * @return compression to apply to the request, or null if it should be sent as is
+     */
+    private Compression compression(byte[] message) {
+        return compression != null && message.length > compressionThreshold ? compression : null;
+    }
+
+    /**
+     * @param compression - compression accepted for replies, may be null
+     * @return headers sent with every request
+     */
+    private static Map<String, Object> headers(Compression compression) {
+        Map<String, Object> headers = new HashMap<>();
+        headers.put(RPCResponse.ACCEPT_FORMAT_HEADER, RPCResponse.NATIVE_FORMAT);
+        if(compression != null) {
+            headers.put(Compression.ACCEPT_ENCODING_HEADER, compression.getContentEncoding());
+        }
+
+        return Collections.unmodifiableMap(headers);
+    }
+
+    /**
+     * @return headers of a request, including its publish time and the deadline after which the client timeout elapsed
+     */
+    private Map<String, Object> requestHeaders() {
+        long now = System.currentTimeMillis();
+        Map<String, Object> headers = new HashMap<>(this.headers);
+        headers.put(RPCRequest.PUBLISHED_HEADER, now);
+        headers.put(RPCRequest.DEADLINE_HEADER, now + timeout);
+        return headers;
+    }
+
+    /**
+     * Schedule the pending reply to fail with a ServiceUnavailableException once the client timeout elapses. The
+     * correlation entry is removed on the timer, the future is failed on the common pool so callbacks and retries
+     * never hold up the timer.
+     *
+     * @param replies - reply consumer the call is waiting on
+     * @param corrId - correlation id of the call
+     * @return handle used to cancel the timeout when the reply arrives
+     */
+    private WheelTimer.Timeout expire(ReplyConsumer replies, String corrId) {
+        final ServiceUnavailableException.Status status = expiry == null ? IN_QUEUE : EXPIRED;
+        return timer.schedule(() -> {
+            CompletableFuture<ReplyConsumer.Reply> reply = replies.forget(corrId);
+            if(reply != null) {
+                ForkJoinPool.commonPool().execute(() -> reply.completeExceptionally(new ServiceUnavailableException(status)));
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Decode the raw reply with the codec of its content type.
+     *
+     * @param reply - raw reply
+     * @param type - type of the reply, a response or an array of responses
+     * @return decoded reply
+     */
+    private <R> R decode(ReplyConsumer.Reply reply, Class<R> type) throws ClientException, IOException {
+        Codec replyCodec = Codecs.forContentType(reply.properties.getContentType());
+        if(replyCodec == null) {
+            throw new ClientException("Unsupported RPC Response content type: " + reply.properties.getContentType(), null);
+        }
+
+        byte[] body;
+        try {
+            body = Compression.decode(reply.body, reply.properties.getContentEncoding(), maxReplySize);
+        }
+        catch (IOException e) {
+            throw new ClientException("Could not decompress the RPC Response", e);
+        }
+
+        R r = replyCodec.decode(body, type);
+        if (r == null) {
+            throw new ClientException("Invalid RPC Response: \"" + new String(body, "UTF-8") + "\"", null);
+        }
+
+        return r;
+    }
+
+    /**
+     * Decode the raw reply to a single response.
+     *
+     * @param reply - raw reply
+     * @return response in the format the service replied in
+     */
+    private RPCResponse response(ReplyConsumer.Reply reply) throws ClientException, IOException {
+        RPCResponse r = decode(reply, RPCResponse.class);
+        r.setNativeFormat(RPCResponse.isNativeFormat(reply.properties.getHeaders(), RPCResponse.FORMAT_HEADER));
+        return r;
+    }
+
+    /**
+     * Map the future of a response to the future of its result.
+     *
+     * @param response - future of the call's response
+     * @param retval - type the result is decoded to
+     * @return future completed with the result, or exceptionally with the error of the response
+     */
+    private static <T> CompletableFuture<T> result(CompletableFuture<RPCResponse> response, Class<T> retval) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        response.whenComplete((r, error) -> {
+            if(error != null) {
+                result.completeExceptionally(error);
+            }
+            else {
+                complete(result, r, retval);
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Complete the future with either the result or the error of the response. The result is decoded anew for every
+     * call, so callers sharing a response never share a result object.
+     *
+     * @param result - future of the call
+     * @param r - decoded response
+     * @param retval - type the result is decoded to
+     */
+    private static <T> void complete(CompletableFuture<T> result, RPCResponse r, Class<T> retval) {
+        try {
+            if(r.error != null) {
+                Throwable error;
+
+                try {
+                    error = r.error.getReason();
+                } catch (ClassNotFoundException e) {
+                    throw new ClientException("Could not find exception class.", e);
+                } catch(Throwable t) {
+                    throw new ClientException("Failed to throw error.", t);
+                }
+
+                if(error != null) {
+                    throw error;
+                }
+            }
+
+            result.complete(r.getResult(retval));
+        }
+        catch (Throwable t) {
+            result.completeExceptionally(t);
+        }
+    }
+
+    public void close() throws IOException {
+        RMQConnectionFactory.close(host, requestQueueName);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.client;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Long lived consumer of the RabbitMQ direct reply-to pseudo queue. Exactly one ReplyConsumer is attached to a
+ * channel, and every reply delivered to that channel is routed to the caller waiting on its correlation id.
+ *
+ * Direct reply-to requires requests to be published on the same channel that consumes the replies.
+ *
+ * @author zmiller
+ */
+class ReplyConsumer extends DefaultConsumer {
+
+    static final String REPLY_TO = "amq.rabbitmq.reply-to";
+
+    private static final ConcurrentHashMap<Channel, ReplyConsumer> consumers = new ConcurrentHashMap<>();
+
+    private final ConcurrentHashMap<String, CompletableFuture<Reply>> pending = new ConcurrentHashMap<>();
+
+    /**
+     * Properties and body of a reply, and when its request was sent and the reply received, as System.nanoTime()
+     */
+    static class Reply {
+        final AMQP.BasicProperties properties;
+        final byte[] body;
+        final long started;
+        final long published;
+        final long received;
+
+        private Reply(AMQP.BasicProperties properties, byte[] body, long started, long published, long received) {
+            this.properties = properties;
+            this.body = body;
+            this.started = started;
+            this.published = published;
+            this.received = received;
+        }
+
+        /**
+         * @param started - time the request started being encoded and published
+         * @param published - time the publish of the request returned
+         * @return copy of the reply with the send times of its request
+         */
+        Reply sent(long started, long published) {
+            return new Reply(properties, body, started, published, received);
+        }
+    }
+
+    private ReplyConsumer(Channel channel) {
+        super(channel);
+    }
+
+    /**
+     * Get the reply consumer attached to the channel, attaching a new one if the channel doesn't have one yet.
+     *
+     * @param channel - channel requests will be published on
+     * @return reply consumer for the channel
+     * @throws IOException if the consumer could not be registered with the broker
+     */
+    static ReplyConsumer forChannel(Channel channel) throws IOException {
+        ReplyConsumer consumer = consumers.get(channel);
+        if(consumer != null) {
+            return consumer;
+        }
+
+        synchronized (channel) {
+            consumer = consumers.get(channel);
+            if(consumer == null) {
+                consumer = new ReplyConsumer(channel);
+                channel.basicConsume(REPLY_TO, true, consumer);
+                consumers.put(channel, consumer);
+            }
+        }
+
+        return consumer;
+    }
+
+    /**
+     * Register interest in the reply with the given correlation id. Must be called before the request is published.
+     *
+     * @param corrId - correlation id of the request
+     * @return future completed with the reply on the consumer thread
+     */
+    CompletableFuture<Reply> expect(String corrId) {
+        CompletableFuture<Reply> reply = new CompletableFuture<>();
+        pending.put(corrId, reply);
+        return reply;
+    }
+
+    /**
+     * Stop waiting for the reply with the given correlation id. Replies that arrive afterwards are dropped.
+     *
+     * @param corrId - correlation id of the request
+     * @return the pending reply if it had not been completed yet, otherwise null
+     */
+    CompletableFuture<Reply> forget(String corrId) {
+        return pending.remove(corrId);
+    }
+
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+        String corrId = properties.getCorrelationId();
+        if(corrId == null) {
+            return;
+        }
+
+        CompletableFuture<Reply> reply = pending.remove(corrId);
+        if(reply != null) {
+            reply.complete(new Reply(properties, body, 0, 0, System.nanoTime()));
+        }
+    }
+
+    @Override
+    public void handleCancel(String consumerTag) {
+        consumers.remove(getChannel(), this);
+    }
+
+    @Override
+    public void handleShutdownSignal(String consumerTag, ShutdownSignalException sig) {
+        consumers.remove(getChannel(), this);
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hashed wheel timer for the deadlines of in-flight calls. Scheduling and cancelling are O(1): callers only append to
+ * lock-free queues, and a single worker thread moves timeouts into the bucket of the wheel their deadline falls in
+ * and runs the bucket of each tick as it passes. A timeout never fires early, and fires at most about one tick late.
+ *
+ * The worker parks while no timeout is pending, so an idle client costs nothing. Tasks run on the worker and must be
+ * short.
+ *
+ * @author zmiller
+ */
+class WheelTimer {
+
+    private static final Logger log = LoggerFactory.getLogger(WheelTimer.class);
+
+    private static final int WAITING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final Thread worker;
+    private final long start = System.nanoTime();
+
+    // Only accessed by the worker
+    private long tick;
+
+    /**
+     * @param name - name of the worker thread
+     * @param tickDuration - resolution of the timer
+     * @param unit - unit of the tick duration
+     * @param ticksPerWheel - number of buckets, rounded up to a power of two
+     */
+    WheelTimer(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        this.tickNanos = unit.toNanos(tickDuration);
+
+        int size = Integer.highestOneBit(Math.max(ticksPerWheel, 1) - 1) << 1;
+        this.wheel = new Bucket[Math.max(size, 1)];
+        for(int i = 0; i < wheel.length; i++) {
+            wheel[i] = new Bucket();
+        }
+
+        this.mask = wheel.length - 1;
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+    }
+
+    /**
+     * A scheduled task
+     */
+    static final class Timeout {
+        private final WheelTimer timer;
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+
+        // Only accessed by the worker
+        private long rounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(WheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Cancel the task. The timeout is removed from the wheel on the worker's next tick.
+         *
+         * @return true if the task was cancelled, false if it already ran or was cancelled before
+         */
+        boolean cancel() {
+            if(!state.compareAndSet(WAITING, CANCELLED)) {
+                return false;
+            }
+
+            timer.cancelled.add(this);
+            return true;
+        }
+    }
+
+    /**
+     * Run the task once the delay elapsed.
+     *
+     * @param task - task to run on the timer's worker
+     * @param delay - delay before the task runs
+     * @param unit - unit of the delay
+     * @return handle used to cancel the task
+     */
+    Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        if(!started.get() && started.compareAndSet(false, true)) {
+            worker.start();
+        }
+
+        Timeout timeout = new Timeout(this, task, System.nanoTime() - start + unit.toNanos(delay));
+        added.add(timeout);
+        if(pending.getAndIncrement() == 0) {
+            LockSupport.unpark(worker);
+        }
+
+        return timeout;
+    }
+
+    private void run() {
+        while(true) {
+            if(pending.get() == 0) {
+                LockSupport.park(this);
+
+                // Nothing was scheduled while parked, so the ticks that passed in the meantime had nothing to run
+                tick = Math.max(tick, (System.nanoTime() - start) / tickNanos);
+                continue;
+            }
+
+            long sleep = (tick + 1) * tickNanos - (System.nanoTime() - start);
+            if(sleep > 0) {
+                LockSupport.parkNanos(this, sleep);
+                continue;
+            }
+
+            removeCancelled();
+            transferAdded();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void transferAdded() {
+        Timeout timeout;
+        while((timeout = added.poll()) != null) {
+
+            // Cancelled before it reached the wheel, accounted for by removeCancelled
+            if(timeout.state.get() == CANCELLED) {
+                continue;
+            }
+
+            long ticks = timeout.deadline / tickNanos;
+            timeout.rounds = (ticks - tick) / wheel.length;
+            wheel[(int) (Math.max(ticks, tick) & mask)].add(timeout);
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while((timeout = cancelled.poll()) != null) {
+            if(timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+
+            pending.decrementAndGet();
+        }
+    }
+
+    private void expire(Bucket bucket) {
+        Timeout timeout = bucket.head;
+        while(timeout != null) {
+            Timeout next = timeout.next;
+            if(timeout.rounds <= 0) {
+                bucket.remove(timeout);
+                if(timeout.state.compareAndSet(WAITING, EXPIRED)) {
+                    pending.decrementAndGet();
+                    try {
+                        timeout.task.run();
+                    }
+                    catch (Throwable t) {
+                        log.error("Timer task failed", t);
+                    }
+                }
+            }
+            else {
+                timeout.rounds--;
+            }
+
+            timeout = next;
+        }
+    }
+
+    /**
+     * Doubly linked list of the timeouts of one slot of the wheel
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        private void add(Timeout timeout) {
+            timeout.bucket = this;
+            if(head == null) {
+                head = tail = timeout;
+            }
+            else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        private void remove(Timeout timeout) {
+            if(timeout.prev != null) {
+                timeout.prev.next = timeout.next;
+            }
+            else {
+                head = timeout.next;
+            }
+
+            if(timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            else {
+                tail = timeout.prev;
+            }
+
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+}
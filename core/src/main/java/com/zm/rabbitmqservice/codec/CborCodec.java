@@ -0,0 +1,428 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.codec;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Compact binary codec writing the json data model as CBOR (RFC 7049). Values are mapped with Gson, so every type
+ * that can be sent as json can be sent as CBOR. Integers take 1 to 9 bytes, strings carry no escaping, and doubles
+ * that fit a float are written in 4 bytes.
+ *
+ * @author zmiller
+ */
+public class CborCodec implements Codec {
+
+    public static final String CONTENT_TYPE = "application/cbor";
+
+    private static final int MAX_DEPTH = 512;
+
+    private final Gson gson;
+
+    public CborCodec() {
+        this(new Gson());
+    }
+
+    public CborCodec(Gson gson) {
+        this.gson = gson;
+    }
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public byte[] encode(Object value, Type type) throws IOException {
+        JsonElement tree = value == null ? JsonNull.INSTANCE : gson.toJsonTree(value, type);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        write(out, tree);
+        return out.toByteArray();
+    }
+
+    @Override
+    public <T> T decode(byte[] body, Type type) throws IOException {
+        if(body.length == 0) {
+            return null;
+        }
+
+        Decoder decoder = new Decoder(body);
+        JsonElement tree = decoder.read(0);
+        if(decoder.position != body.length) {
+            throw new IOException("Trailing bytes after CBOR item");
+        }
+
+        return gson.fromJson(tree, type);
+    }
+
+    private static void write(ByteArrayOutputStream out, JsonElement element) {
+        if(element == null || element.isJsonNull()) {
+            out.write(0xf6);
+        }
+        else if(element.isJsonArray()) {
+            JsonArray array = element.getAsJsonArray();
+            writeHead(out, 4, array.size());
+            for(JsonElement item : array) {
+                write(out, item);
+            }
+        }
+        else if(element.isJsonObject()) {
+            JsonObject object = element.getAsJsonObject();
+            writeHead(out, 5, object.size());
+            for(Map.Entry<String, JsonElement> entry : object.entrySet()) {
+                writeString(out, entry.getKey());
+                write(out, entry.getValue());
+            }
+        }
+        else {
+            JsonPrimitive primitive = element.getAsJsonPrimitive();
+            if(primitive.isBoolean()) {
+                out.write(primitive.getAsBoolean() ? 0xf5 : 0xf4);
+            }
+            else if(primitive.isString()) {
+                writeString(out, primitive.getAsString());
+            }
+            else {
+                writeNumber(out, primitive.getAsNumber());
+            }
+        }
+    }
+
+    private static void writeNumber(ByteArrayOutputStream out, Number number) {
+        if(number instanceof Integer || number instanceof Long || number instanceof Short || number instanceof Byte) {
+            writeInteger(out, number.longValue());
+        }
+        else if(number instanceof Double || number instanceof Float) {
+            writeFloat(out, number.doubleValue());
+        }
+        else if(number instanceof BigInteger && ((BigInteger) number).bitLength() < 64) {
+            writeInteger(out, number.longValue());
+        }
+        else {
+
+            // Numbers parsed from json text and big decimals
+            String text = number.toString();
+            try {
+                writeInteger(out, Long.parseLong(text));
+            } catch (NumberFormatException e) {
+                writeFloat(out, Double.parseDouble(text));
+            }
+        }
+    }
+
+    private static void writeInteger(ByteArrayOutputStream out, long value) {
+        if(value >= 0) {
+            writeHead(out, 0, value);
+        }
+        else {
+            writeHead(out, 1, -1 - value);
+        }
+    }
+
+    private static void writeFloat(ByteArrayOutputStream out, double value) {
+        float single = (float) value;
+        if(single == value || Double.isNaN(value)) {
+            out.write(0xfa);
+            writeBytes(out, Float.floatToIntBits(single), 4);
+        }
+        else {
+            out.write(0xfb);
+            writeBytes(out, Double.doubleToLongBits(value), 8);
+        }
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeHead(out, 3, bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    private static void writeHead(ByteArrayOutputStream out, int major, long argument) {
+        int type = major << 5;
+        if(argument < 24) {
+            out.write(type | (int) argument);
+        }
+        else if(argument < 0x100) {
+            out.write(type | 24);
+            writeBytes(out, argument, 1);
+        }
+        else if(argument < 0x10000) {
+            out.write(type | 25);
+            writeBytes(out, argument, 2);
+        }
+        else if(argument < 0x100000000L) {
+            out.write(type | 26);
+            writeBytes(out, argument, 4);
+        }
+        else {
+            out.write(type | 27);
+            writeBytes(out, argument, 8);
+        }
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, long value, int count) {
+        for(int shift = (count - 1) * 8; shift >= 0; shift -= 8) {
+            out.write((int) (value >>> shift));
+        }
+    }
+
+    /**
+     * Reads a single CBOR data item into a json tree.
+     */
+    private static class Decoder {
+
+        private static final int BREAK = 0xff;
+        private static final int INDEFINITE = 31;
+
+        private final byte[] body;
+        private int position;
+
+        private Decoder(byte[] body) {
+            this.body = body;
+        }
+
+        private JsonElement read(int depth) throws IOException {
+            if(depth > MAX_DEPTH) {
+                throw new IOException("CBOR item is nested too deeply");
+            }
+
+            int initial = next();
+            int major = initial >>> 5;
+            int info = initial & 0x1f;
+
+            switch(major) {
+                case 0:
+                    return new JsonPrimitive(unsigned(argument(info)));
+                case 1:
+                    long negative = argument(info);
+                    return new JsonPrimitive(negative >= 0
+                            ? (Number) (-1 - negative)
+                            : BigInteger.ONE.negate().subtract((BigInteger) unsigned(negative)));
+                case 2:
+                    return readBytes(info);
+                case 3:
+                    return new JsonPrimitive(readString(info));
+                case 4:
+                    return readArray(info, depth);
+                case 5:
+                    return readMap(info, depth);
+                case 6:
+
+                    // Tags carry no meaning for the json data model
+                    argument(info);
+                    return read(depth + 1);
+                default:
+                    return readSimple(info);
+            }
+        }
+
+        private JsonElement readSimple(int info) throws IOException {
+            switch(info) {
+                case 20:
+                    return new JsonPrimitive(false);
+                case 21:
+                    return new JsonPrimitive(true);
+                case 22:
+                case 23:
+                    return JsonNull.INSTANCE;
+                case 25:
+                    return new JsonPrimitive(halfToDouble((int) readLong(2)));
+                case 26:
+                    return new JsonPrimitive((double) Float.intBitsToFloat((int) readLong(4)));
+                case 27:
+                    return new JsonPrimitive(Double.longBitsToDouble(readLong(8)));
+                default:
+                    throw new IOException("Unsupported CBOR simple value " + info);
+            }
+        }
+
+        private JsonArray readArray(int info, int depth) throws IOException {
+            JsonArray array = new JsonArray();
+            if(info == INDEFINITE) {
+                while(peek() != BREAK) {
+                    array.add(read(depth + 1));
+                }
+                position++;
+            }
+            else {
+                long length = argument(info);
+                checkLength(length);
+                for(long i = 0; i < length; i++) {
+                    array.add(read(depth + 1));
+                }
+            }
+
+            return array;
+        }
+
+        private JsonObject readMap(int info, int depth) throws IOException {
+            JsonObject object = new JsonObject();
+            if(info == INDEFINITE) {
+                while(peek() != BREAK) {
+                    object.add(readKey(depth), read(depth + 1));
+                }
+                position++;
+            }
+            else {
+                long length = argument(info);
+                checkLength(length);
+                for(long i = 0; i < length; i++) {
+                    object.add(readKey(depth), read(depth + 1));
+                }
+            }
+
+            return object;
+        }
+
+        private String readKey(int depth) throws IOException {
+            JsonElement key = read(depth + 1);
+            return key.isJsonPrimitive() ? key.getAsString() : key.toString();
+        }
+
+        /**
+         * Byte strings are read the way Gson represents a byte[], as an array of numbers.
+         */
+        private JsonArray readBytes(int info) throws IOException {
+            JsonArray array = new JsonArray();
+            for(byte b : readChunks(2, info)) {
+                array.add(b);
+            }
+
+            return array;
+        }
+
+        private String readString(int info) throws IOException {
+            return new String(readChunks(3, info), StandardCharsets.UTF_8);
+        }
+
+        private byte[] readChunks(int major, int info) throws IOException {
+            if(info != INDEFINITE) {
+                long length = argument(info);
+                checkLength(length);
+                byte[] bytes = new byte[(int) length];
+                System.arraycopy(body, position, bytes, 0, bytes.length);
+                position += bytes.length;
+                return bytes;
+            }
+
+            ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+            while(peek() != BREAK) {
+                int initial = next();
+                if(initial >>> 5 != major || (initial & 0x1f) == INDEFINITE) {
+                    throw new IOException("Invalid chunk in indefinite length CBOR string");
+                }
+
+                byte[] chunk = readChunks(major, initial & 0x1f);
+                chunks.write(chunk, 0, chunk.length);
+            }
+            position++;
+
+            return chunks.toByteArray();
+        }
+
+        private long argument(int info) throws IOException {
+            if(info < 24) {
+                return info;
+            }
+
+            switch(info) {
+                case 24:
+                    return readLong(1);
+                case 25:
+                    return readLong(2);
+                case 26:
+                    return readLong(4);
+                case 27:
+                    return readLong(8);
+                default:
+                    throw new IOException("Invalid CBOR additional information " + info);
+            }
+        }
+
+        /**
+         * Every item takes at least one byte, so a length beyond the remaining bytes is malformed. Checking it up front
+         * keeps a corrupt header from allocating huge buffers.
+         */
+        private void checkLength(long length) throws IOException {
+            if(length < 0 || length > body.length - position) {
+                throw new IOException("CBOR length exceeds the message");
+            }
+        }
+
+        private long readLong(int count) throws IOException {
+            if(body.length - position < count) {
+                throw new IOException("Unexpected end of CBOR message");
+            }
+
+            long value = 0;
+            for(int i = 0; i < count; i++) {
+                value = (value << 8) | (body[position++] & 0xff);
+            }
+
+            return value;
+        }
+
+        private int next() throws IOException {
+            if(position >= body.length) {
+                throw new IOException("Unexpected end of CBOR message");
+            }
+
+            return body[position++] & 0xff;
+        }
+
+        private int peek() throws IOException {
+            if(position >= body.length) {
+                throw new IOException("Unexpected end of CBOR message");
+            }
+
+            return body[position] & 0xff;
+        }
+
+        private static Number unsigned(long value) {
+            return value >= 0 ? (Number) value : new BigInteger(Long.toUnsignedString(value));
+        }
+
+        private static double halfToDouble(int half) {
+            int exponent = (half >> 10) & 0x1f;
+            int mantissa = half & 0x3ff;
+            double value;
+            if(exponent == 0) {
+                value = mantissa * Math.pow(2, -24);
+            }
+            else if(exponent == 31) {
+                value = mantissa == 0 ? Double.POSITIVE_INFINITY : Double.NaN;
+            }
+            else {
+                value = (mantissa + 1024) * Math.pow(2, exponent - 25);
+            }
+
+            return (half & 0x8000) != 0 ? -value : value;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.codec;
+
+import java.io.IOException;
+import java.lang.reflect.Type;
+
+/**
+ * Encoding of RPC messages on the wire. A codec is identified by the AMQP content type it writes, so the service can
+ * decode every request and encode its reply with the codec the caller chose.
+ *
+ * @author zmiller
+ */
+public interface Codec {
+
+    /**
+     * @return AMQP content type of messages written by this codec
+     */
+    String getContentType();
+
+    /**
+     * Encode the value.
+     *
+     * @param value - value to encode, may be null
+     * @param type - type of the value
+     * @return encoded message body
+     */
+    byte[] encode(Object value, Type type) throws IOException;
+
+    /**
+     * Decode a message body.
+     *
+     * @param body - encoded message body
+     * @param type - type to decode to
+     * @return decoded value, null if the body holds no value
+     */
+    <T> T decode(byte[] body, Type type) throws IOException;
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.codec;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the codecs known to this process, looked up by the AMQP content type of a message.
+ *
+ * @author zmiller
+ */
+public class Codecs {
+
+    public static final Codec JSON = new JsonCodec();
+    public static final Codec CBOR = new CborCodec();
+
+    private static final ConcurrentHashMap<String, Codec> codecs = new ConcurrentHashMap<>();
+
+    static {
+        register(JSON);
+        register(CBOR);
+    }
+
+    private Codecs() {
+    }
+
+    /**
+     * Register a codec, replacing any codec with the same content type.
+     *
+     * @param codec - codec to register
+     */
+    public static void register(Codec codec) {
+        codecs.put(codec.getContentType(), codec);
+    }
+
+    /**
+     * Find the codec of a message. Messages without a content type are json, and content type parameters such as
+     * the charset are ignored.
+     *
+     * @param contentType - AMQP content type of the message, may be null
+     * @return codec for the content type, or null if no codec is registered for it
+     */
+    public static Codec forContentType(String contentType) {
+        if(contentType == null) {
+            return JSON;
+        }
+
+        int parameters = contentType.indexOf(';');
+        if(parameters >= 0) {
+            contentType = contentType.substring(0, parameters);
+        }
+
+        return codecs.get(contentType.trim());
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.codec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression of message bodies, advertised through the AMQP content encoding property. Callers list the encoding
+ * they accept for replies in the accept encoding header.
+ *
+ * @author zmiller
+ */
+public enum Compression {
+
+    GZIP("gzip"),
+    DEFLATE("deflate");
+
+    /**
+     * Request header naming the content encoding the caller accepts for its reply
+     */
+    public static final String ACCEPT_ENCODING_HEADER = "x-rpc-accept-encoding";
+
+    private final String contentEncoding;
+
+    Compression(String contentEncoding) {
+        this.contentEncoding = contentEncoding;
+    }
+
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    /**
+     * @param body - message body
+     * @return compressed body
+     */
+    public byte[] compress(byte[] body) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(body.length / 2 + 64);
+        try (OutputStream stream = this == GZIP ? new GZIPOutputStream(out) : new DeflaterOutputStream(out)) {
+            stream.write(body);
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * @param body - compressed message body
+     * @param maxSize - maximum size of the decompressed body in bytes
+     * @return decompressed body
+     * @throws IOException if the body is corrupt or decompresses to more than maxSize bytes
+     */
+    public byte[] decompress(byte[] body, int maxSize) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(body);
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) Math.min(maxSize, body.length * 4L));
+        try (InputStream stream = this == GZIP ? new GZIPInputStream(in) : new InflaterInputStream(in)) {
+            byte[] buffer = new byte[8192];
+            int read;
+            while((read = stream.read(buffer)) != -1) {
+
+                // A few kilobytes can inflate to gigabytes, so stop as soon as the limit is passed
+                if(read > maxSize - out.size()) {
+                    throw new IOException("Body decompresses to more than " + maxSize + " bytes");
+                }
+
+                out.write(buffer, 0, read);
+            }
+        }
+
+        return out.toByteArray();
+    }
+
+    /**
+     * Decode a message body according to its content encoding.
+     *
+     * @param body - message body
+     * @param contentEncoding - AMQP content encoding of the message, may be null
+     * @param maxSize - maximum size of the decompressed body in bytes
+     * @return decompressed body
+     * @throws IOException if the encoding is unknown, the body is corrupt or it decompresses to more than maxSize
+     *         bytes
+     */
+    public static byte[] decode(byte[] body, String contentEncoding, int maxSize) throws IOException {
+        if(contentEncoding == null) {
+            return body;
+        }
+
+        Compression compression = forContentEncoding(contentEncoding);
+        if(compression == null) {
+            throw new IOException("Unsupported content encoding " + contentEncoding);
+        }
+
+        return compression.decompress(body, maxSize);
+    }
+
+    /**
+     * @param contentEncoding - content encoding name, may be null
+     * @return compression for the name, or null if the name is unknown
+     */
+    public static Compression forContentEncoding(String contentEncoding) {
+        if(contentEncoding != null) {
+            for(Compression compression : values()) {
+                if(compression.contentEncoding.equalsIgnoreCase(contentEncoding.trim())) {
+                    return compression;
+                }
+            }
+        }
+
+        return null;
+    }
+}
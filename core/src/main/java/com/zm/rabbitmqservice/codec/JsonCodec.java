@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.codec;
+
+import com.google.gson.Gson;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * UTF-8 json codec. This is the default, and the codec used for messages that don't name a content type.
+ *
+ * @author zmiller
+ */
+public class JsonCodec implements Codec {
+
+    public static final String CONTENT_TYPE = "application/json";
+
+    private final Gson gson;
+
+    public JsonCodec() {
+        this(new Gson());
+    }
+
+    public JsonCodec(Gson gson) {
+        this.gson = gson;
+    }
+
+    @Override
+    public String getContentType() {
+        return CONTENT_TYPE;
+    }
+
+    @Override
+    public byte[] encode(Object value, Type type) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(256);
+        try (Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+            gson.toJson(value, type, writer);
+        }
+
+        return out.toByteArray();
+    }
+
+    @Override
+    public <T> T decode(byte[] body, Type type) throws IOException {
+        try (Reader reader = new InputStreamReader(new ByteArrayInputStream(body), StandardCharsets.UTF_8)) {
+            return gson.fromJson(reader, type);
+        }
+    }
+}
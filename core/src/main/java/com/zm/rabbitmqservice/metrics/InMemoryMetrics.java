@@ -0,0 +1,217 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.metrics;
+
+import com.zm.rabbitmqservice.service.ServiceException;
+import com.zm.rabbitmqservice.service.ServiceUnavailableException;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps every measurement in memory: latencies in histograms, per api method where they belong to one, and outcomes
+ * in counters. Read it from a scheduled task to export or log the numbers. One instance can be shared by a service
+ * and its clients.
+ *
+ * @author zmiller
+ */
+public class InMemoryMetrics implements Metrics {
+
+    private final ConcurrentHashMap<String, Histogram> callLatency = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> invocationTime = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> failures = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> resultCacheHits = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ServiceUnavailableException.Status, LongAdder> timeouts = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<ServiceException.Code, LongAdder> errors = new ConcurrentHashMap<>();
+    private final Histogram parseTime = new Histogram();
+    private final Histogram serializeTime = new Histogram();
+    private final LongAdder replyCacheHits = new LongAdder();
+    private final LongAdder expiredRequests = new LongAdder();
+    private final AtomicLong callsInFlight = new AtomicLong();
+    private final AtomicLong invocationsInFlight = new AtomicLong();
+
+    @Override
+    public void callStarted(String method) {
+        callsInFlight.incrementAndGet();
+    }
+
+    @Override
+    public void callCompleted(String method, long nanos) {
+        callsInFlight.decrementAndGet();
+        callLatency.computeIfAbsent(method, m -> new Histogram()).record(nanos);
+    }
+
+    @Override
+    public void callTimedOut(String method, ServiceUnavailableException.Status status) {
+        callsInFlight.decrementAndGet();
+        timeouts.computeIfAbsent(status, s -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void callFailed(String method, Throwable error) {
+        callsInFlight.decrementAndGet();
+        failures.computeIfAbsent(method, m -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void resultCacheHit(String method) {
+        resultCacheHits.computeIfAbsent(method, m -> new LongAdder()).increment();
+    }
+
+    @Override
+    public void requestParsed(long nanos) {
+        parseTime.record(nanos);
+    }
+
+    @Override
+    public void invocationStarted(String method) {
+        invocationsInFlight.incrementAndGet();
+    }
+
+    @Override
+    public void invocationCompleted(String method, long nanos) {
+        invocationsInFlight.decrementAndGet();
+        invocationTime.computeIfAbsent(method, m -> new Histogram()).record(nanos);
+    }
+
+    @Override
+    public void responseSerialized(long nanos) {
+        serializeTime.record(nanos);
+    }
+
+    @Override
+    public void replyCacheHit() {
+        replyCacheHits.increment();
+    }
+
+    @Override
+    public void requestExpired() {
+        expiredRequests.increment();
+    }
+
+    @Override
+    public void serviceError(ServiceException.Code code) {
+        errors.computeIfAbsent(code, c -> new LongAdder()).increment();
+    }
+
+    /**
+     * @return methods called by clients so far
+     */
+    public Set<String> getCalledMethods() {
+        return Collections.unmodifiableSet(callLatency.keySet());
+    }
+
+    /**
+     * @return methods invoked by services so far
+     */
+    public Set<String> getInvokedMethods() {
+        return Collections.unmodifiableSet(invocationTime.keySet());
+    }
+
+    /**
+     * @param method - name of the api method
+     * @return round trips of the method's answered calls in nanoseconds
+     */
+    public Histogram getCallLatency(String method) {
+        Histogram histogram = callLatency.get(method);
+        return histogram == null ? new Histogram() : histogram;
+    }
+
+    /**
+     * @param method - name of the api method
+     * @return time spent in the method in nanoseconds
+     */
+    public Histogram getInvocationTime(String method) {
+        Histogram histogram = invocationTime.get(method);
+        return histogram == null ? new Histogram() : histogram;
+    }
+
+    /**
+     * @return time spent decoding requests in nanoseconds
+     */
+    public Histogram getParseTime() {
+        return parseTime;
+    }
+
+    /**
+     * @return time spent encoding replies in nanoseconds
+     */
+    public Histogram getSerializeTime() {
+        return serializeTime;
+    }
+
+    /**
+     * @param method - name of the api method
+     * @return number of the method's calls that failed without reply
+     */
+    public long getFailures(String method) {
+        LongAdder count = failures.get(method);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * @param method - name of the api method
+     * @return number of the method's calls answered from the client's result cache
+     */
+    public long getResultCacheHits(String method) {
+        LongAdder count = resultCacheHits.get(method);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * @return number of duplicate requests services answered without invoking the method again
+     */
+    public long getReplyCacheHits() {
+        return replyCacheHits.sum();
+    }
+
+    /**
+     * @return number of requests services dropped because their deadline had passed
+     */
+    public long getExpiredRequests() {
+        return expiredRequests.sum();
+    }
+
+    /**
+     * @param status - status of the timed out requests
+     * @return number of calls that timed out with the status
+     */
+    public long getTimeouts(ServiceUnavailableException.Status status) {
+        LongAdder count = timeouts.get(status);
+        return count == null ? 0 : count.sum();
+    }
+
+    /**
+     * @param code - code of the errors
+     * @return number of requests answered with a service error of the code
+     */
+    public long getErrors(ServiceException.Code code) {
+        LongAdder count = errors.get(code);
+        return count == null ? 0 : count.sum();
+    }
+
+    public long getCallsInFlight() {
+        return callsInFlight.get();
+    }
+
+    public long getInvocationsInFlight() {
+        return invocationsInFlight.get();
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.metrics;
+
+import com.zm.rabbitmqservice.service.ServiceException;
+import com.zm.rabbitmqservice.service.ServiceUnavailableException;
+
+/**
+ * Receives the measurements of clients and services. Implementations adapt them to a metrics library, or keep them
+ * in memory like InMemoryMetrics. Every method defaults to doing nothing, so an implementation only overrides what it
+ * records, and Metrics.NONE records nothing at all.
+ *
+ * Methods are called on the threads doing the work, concurrently and on hot paths, so they must be thread-safe and
+ * cheap. Durations are in nanoseconds.
+ *
+ * @author zmiller
+ */
+public interface Metrics {
+
+    Metrics NONE = new Metrics() {};
+
+    /**
+     * A client call was sent. Every started call ends with exactly one of callCompleted, callTimedOut or callFailed.
+     *
+     * @param method - name of the api method
+     */
+    default void callStarted(String method) {
+    }
+
+    /**
+     * A client call was answered by the service, with a result or an error.
+     *
+     * @param method - name of the api method
+     * @param nanos - round trip from sending the call to decoding its reply
+     */
+    default void callCompleted(String method, long nanos) {
+    }
+
+    /**
+     * A client call got no reply within the client timeout.
+     *
+     * @param method - name of the api method
+     * @param status - whether the request is still queued or expired
+     */
+    default void callTimedOut(String method, ServiceUnavailableException.Status status) {
+    }
+
+    /**
+     * A client call failed without reply, e.g. because it could not be published.
+     *
+     * @param method - name of the api method
+     * @param error - cause of the failure
+     */
+    default void callFailed(String method, Throwable error) {
+    }
+
+    /**
+     * A client call was answered from the client's result cache without sending it. Cache hits are not started
+     * calls and not part of the call latency.
+     *
+     * @param method - name of the api method
+     */
+    default void resultCacheHit(String method) {
+    }
+
+    /**
+     * A service decoded a request or batch.
+     *
+     * @param nanos - time spent decompressing and decoding the message
+     */
+    default void requestParsed(long nanos) {
+    }
+
+    /**
+     * A service started invoking an api method. Every started invocation ends with invocationCompleted.
+     *
+     * @param method - name of the api method
+     */
+    default void invocationStarted(String method) {
+    }
+
+    /**
+     * A service invoked an api method, whether or not it threw.
+     *
+     * @param method - name of the api method
+     * @param nanos - time spent in the method
+     */
+    default void invocationCompleted(String method, long nanos) {
+    }
+
+    /**
+     * A service encoded a reply.
+     *
+     * @param nanos - time spent encoding and compressing the reply
+     */
+    default void responseSerialized(long nanos) {
+    }
+
+    /**
+     * A service answered a duplicate request from its reply cache, or with the reply of the original request that
+     * was still being processed, without invoking the method again.
+     */
+    default void replyCacheHit() {
+    }
+
+    /**
+     * A service dropped a request without processing it, because the caller's deadline had already passed.
+     */
+    default void requestExpired() {
+    }
+
+    /**
+     * A service answered a request with one of its own errors, e.g. a malformed request or an unknown method. Errors
+     * declared by the api are results of the method and not counted.
+     *
+     * @param code - code of the error
+     */
+    default void serviceError(ServiceException.Code code) {
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.service;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Tunes the prefetch count of a consumer to the time its api methods take. A prefetch of 1 leaves the workers idle
+ * for a network round trip after every fast request, while a large prefetch parks requests behind slow ones that
+ * another consumer could have processed.
+ *
+ * The controller is updated periodically and adjusts the prefetch with Little's law. The time deliveries waited for a
+ * worker, divided by the interval, is the average number of deliveries buffered in the process. When they waited
+ * longer than it took to process them, the prefetch shrinks by that number, but at most by half. The time spent
+ * processing, divided by the interval, is the average number of busy workers. While the prefetch window is full and
+ * the workers are less than 90% busy, the broker is held back by the window, and throughput grows in proportion to
+ * it. The prefetch then grows by the factor that keeps every worker busy, but at most doubles.
+ *
+ * @author zmiller
+ */
+class AdaptivePrefetch {
+
+    private static final double UTILIZATION = 0.9;
+
+    private final int min;
+    private final int max;
+    private final int concurrency;
+    private volatile int prefetch;
+
+    private final AtomicInteger unacked = new AtomicInteger();
+    private final AtomicInteger peak = new AtomicInteger();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder waiting = new LongAdder();
+    private final LongAdder processing = new LongAdder();
+
+    // Only accessed by the thread updating the controller
+    private long updated = System.nanoTime();
+
+    /**
+     * @param min - lowest prefetch count
+     * @param max - highest prefetch count
+     * @param initial - prefetch count to start with, clamped to the bounds
+     * @param concurrency - number of requests processed at once, 0 if every delivery is processed right away
+     */
+    AdaptivePrefetch(int min, int max, int initial, int concurrency) {
+        this.min = min;
+        this.max = max;
+        this.concurrency = concurrency;
+        this.prefetch = Math.max(min, Math.min(max, initial));
+    }
+
+    int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * Count a delivery, unacknowledged until settled is called.
+     *
+     * @return System.nanoTime() of the delivery
+     */
+    long delivered() {
+        int count = unacked.incrementAndGet();
+        peak.accumulateAndGet(count, Math::max);
+        return System.nanoTime();
+    }
+
+    /**
+     * @param delivered - System.nanoTime() of the delivery
+     * @return System.nanoTime() the worker started processing the delivery
+     */
+    long started(long delivered) {
+        long now = System.nanoTime();
+        waiting.add(now - delivered);
+        return now;
+    }
+
+    /**
+     * @param started - System.nanoTime() the worker started processing the delivery
+     */
+    void finished(long started) {
+        processing.add(System.nanoTime() - started);
+        completed.increment();
+    }
+
+    /**
+     * Count the ack or nack of a delivery.
+     */
+    void settled() {
+        unacked.decrementAndGet();
+    }
+
+    /**
+     * Adjust the prefetch to what was measured since the last update. Nothing changes until at least one request per
+     * worker completed since then.
+     *
+     * @return new prefetch count, 0 if it stays the same
+     */
+    int update() {
+        int current = prefetch;
+        int workers = concurrency > 0 ? concurrency : current;
+
+        // Processing time is only counted once a request completes, so a measurement covers at least one request per
+        // worker to even out slow requests that straddle the intervals
+        if(completed.sum() < workers) {
+            return 0;
+        }
+
+        long now = System.nanoTime();
+        long interval = Math.max(1, now - updated);
+        updated = now;
+
+        completed.reset();
+        long waited = waiting.sumThenReset();
+        long processed = processing.sumThenReset();
+        int full = peak.getAndSet(unacked.get());
+
+        int next = current;
+        double busy = (double) processed / interval;
+
+        // Nothing waits once the prefetch doesn't exceed the workers, so the prefetch never shrinks below them. The
+        // deliveries of a larger prefetch are still waiting right after it shrank.
+        if(waited > processed && waited >= interval) {
+            double buffered = (double) waited / interval;
+            next = current - (int) Math.min(Math.ceil(buffered), Math.max(1, current / 2));
+            next = Math.max(next, Math.min(current, workers));
+        }
+        else if(full >= current && busy < workers * UTILIZATION) {
+            double target = busy > 0 ? Math.ceil(current * (double) workers / busy) : 2.0 * current;
+            next = (int) Math.max(current + 1, Math.min(2.0 * current, target));
+        }
+
+        next = Math.max(min, Math.min(max, next));
+        if(next == current) {
+            return 0;
+        }
+
+        prefetch = next;
+        return next;
+    }
+}
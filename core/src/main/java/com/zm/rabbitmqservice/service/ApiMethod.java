@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.service;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A resolved api method. The method handle is bound to the application and spread over an argument array, so an
+ * invocation is a single direct call without reflective lookups or access checks.
+ *
+ * @author zmiller
+ */
+class ApiMethod {
+
+    private final Class<?>[] parameterTypes;
+    private final Set<Class<?>> exceptionTypes;
+    private final MethodHandle handle;
+
+    private ApiMethod(Class<?>[] parameterTypes, Set<Class<?>> exceptionTypes, MethodHandle handle) {
+        this.parameterTypes = parameterTypes;
+        this.exceptionTypes = exceptionTypes;
+        this.handle = handle;
+    }
+
+    /**
+     * Resolve the method of the application into an invoker of type (Object[])Object.
+     *
+     * @param app - application the method is invoked on
+     * @param method - public method of the application
+     * @return resolved method, or null if the method is not accessible
+     */
+    static ApiMethod resolve(Object app, Method method) {
+        MethodHandle handle;
+        try {
+            method.setAccessible(true);
+        } catch (RuntimeException e) {
+            // Not fatal, the method handle lookup performs its own access check
+        }
+
+        try {
+            handle = MethodHandles.lookup().unreflect(method);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+
+        if(!Modifier.isStatic(method.getModifiers())) {
+            handle = handle.bindTo(app);
+        }
+
+        Class<?>[] types = method.getParameterTypes();
+        handle = handle
+                .asType(MethodType.genericMethodType(types.length))
+                .asSpreader(Object[].class, types.length);
+
+        Set<Class<?>> exceptions = new HashSet<>(Arrays.asList(method.getExceptionTypes()));
+        return new ApiMethod(types, Collections.unmodifiableSet(exceptions), handle);
+    }
+
+    Class<?>[] getParameterTypes() {
+        return parameterTypes;
+    }
+
+    /**
+     * @param error - error thrown by the method
+     * @return true if the method explicitly declares the error's type
+     */
+    boolean declares(Throwable error) {
+        return exceptionTypes.contains(error.getClass());
+    }
+
+    /**
+     * Invoke the method. Errors thrown by the method propagate unwrapped.
+     *
+     * @param params - decoded parameters, one per parameter type
+     * @return result of the method, null for void methods
+     */
+    Object invoke(Object[] params) throws Throwable {
+        return (Object) handle.invokeExact(params);
+    }
+}
@@ -0,0 +1,661 @@
+package com.zm.rabbitmqservice.service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.reflect.TypeToken;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.zm.rabbitmqservice.ExpiringCache;
+import com.zm.rabbitmqservice.PublisherConfirms;
+import com.zm.rabbitmqservice.RPCError;
+import com.zm.rabbitmqservice.RPCRequest;
+import com.zm.rabbitmqservice.RPCResponse;
+import com.zm.rabbitmqservice.codec.Codec;
+import com.zm.rabbitmqservice.codec.Codecs;
+import com.zm.rabbitmqservice.codec.Compression;
+import com.zm.rabbitmqservice.metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import static com.zm.rabbitmqservice.service.ServiceException.Code.BAD_REQUEST;
+import static com.zm.rabbitmqservice.service.ServiceException.Code.NOT_FOUND;
+import static com.zm.rabbitmqservice.service.ServiceException.Code.SERVER_ERROR;
+import static com.zm.rabbitmqservice.service.ServiceException.Reason.*;
+import static com.zm.rabbitmqservice.service.ServiceException.Reason.COULD_NOT_PARSE_PARAMS;
+
+class AppConsumer<U> extends DefaultConsumer {
+
+    private static final Logger log = LoggerFactory.getLogger(AppConsumer.class);
+    private static final Gson gson = new Gson();
+    private static final Map<String, Object> NATIVE_FORMAT =
+            Collections.singletonMap(RPCResponse.FORMAT_HEADER, RPCResponse.NATIVE_FORMAT);
+    private static final Type BATCH = new TypeToken<List<RPCResponse>>(){}.getType();
+
+    /**
+     * Header the message timestamp plugin stamps messages with, the time in epoch milliseconds the broker received it
+     */
+    private static final String BROKER_TIMESTAMP_HEADER = "timestamp_in_ms";
+    private U app;
+    private Executor executor;
+    private Executor batchExecutor;
+    private RMQApplicationConfig config;
+    private Metrics metrics;
+    private Map<String, ApiMethod> methods;
+    private RequestDecoder decoder;
+    private ExpiringCache<String, Reply> replies;
+    private ConcurrentHashMap<String, CompletableFuture<Reply>> inProgress = new ConcurrentHashMap<>();
+    private AdaptivePrefetch prefetch;
+
+    <T extends U> AppConsumer(Channel channel, T app, Executor executor, Executor batchExecutor, RMQApplicationConfig config) {
+        this(channel, app, executor, batchExecutor, config, null);
+    }
+
+    /**
+     * @param prefetch - controller of the channel's prefetch count, null for a fixed prefetch
+     */
+    <T extends U> AppConsumer(Channel channel, T app, Executor executor, Executor batchExecutor,
+                              RMQApplicationConfig config, AdaptivePrefetch prefetch) {
+        super(channel);
+        this.prefetch = prefetch;
+        this.app = app;
+        this.executor = executor;
+        this.batchExecutor = batchExecutor;
+        this.config = config;
+        this.metrics = config.getMetrics();
+
+        // Resolve every method once, the dispatch table is read-only from here on
+        Map<String, ApiMethod> methods = new HashMap<>();
+        for(Method m : app.getClass().getMethods()) {
+            ApiMethod method = ApiMethod.resolve(app, m);
+            if(method != null) {
+                methods.put(m.getName(), method);
+            }
+        }
+
+        this.methods = Collections.unmodifiableMap(methods);
+        this.decoder = new RequestDecoder(gson, this.methods);
+        if(config.getReplyCacheSize() > 0) {
+            this.replies = new ExpiringCache<>(config.getReplyCacheSize(), config.getReplyCacheBytes(), r -> r.body.length);
+        }
+
+        log.debug("Created consumer of {} with {} api methods", app.getClass().getName(), this.methods.size());
+    }
+
+    @Override
+    public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+        final long received = config.isTimingHeaders() ? System.currentTimeMillis() : 0;
+        if(prefetch == null) {
+            executor.execute(() -> process(envelope, properties, body, received));
+            return;
+        }
+
+        final long delivered = prefetch.delivered();
+        executor.execute(() -> {
+            long started = prefetch.started(delivered);
+            try {
+                process(envelope, properties, body, received);
+            }
+            finally {
+                prefetch.finished(started);
+            }
+        });
+    }
+
+    /**
+     * Apply what the prefetch controller learned since it was last updated to the channel. Called periodically.
+     */
+    void adaptPrefetch() throws IOException {
+        if(prefetch == null) {
+            return;
+        }
+
+        int next = prefetch.update();
+        if(next > 0) {
+            // basic.qos is a synchronous RPC: holding the channel's monitor while waiting for its reply would stall
+            // acks and replies sent under that monitor. The client library serializes the frames on its own.
+            this.getChannel().basicQos(next, true);
+
+            log.debug("Changed the prefetch of {} to {}", app.getClass().getName(), next);
+        }
+    }
+
+    /**
+     * @return prefetch count the controller settled on, 0 for a fixed prefetch
+     */
+    int getPrefetch() {
+        return prefetch == null ? 0 : prefetch.getPrefetch();
+    }
+
+    /**
+     * Encoded reply of a request
+     */
+    private static class Reply {
+        private final byte[] body;
+        private final AMQP.BasicProperties properties;
+
+        private Reply(byte[] body, AMQP.BasicProperties properties) {
+            this.body = body;
+            this.properties = properties;
+        }
+    }
+
+    /**
+     * Time a request spent in each stage, in microseconds, -1 for stages it didn't reach
+     */
+    private static class Timing {
+        private final long queue;
+        private long parse = -1;
+        private long invoke = -1;
+
+        private Timing(long queue) {
+            this.queue = queue;
+        }
+    }
+
+    /**
+     * Answer a request. With the reply cache enabled, a request whose reply is cached is answered from the cache,
+     * and a duplicate of a request that is still being executed is answered once the original's reply is ready, so
+     * retried and redelivered requests don't execute the method again. Requests are identified by their correlation
+     * id, which RMQClient sets to the request id.
+     *
+     * @param envelope
+     * @param properties
+     * @param body - raw request
+     * @param received - time the request was received in epoch milliseconds, 0 without timing headers
+     */
+    private void process(Envelope envelope, AMQP.BasicProperties properties, byte[] body, long received) {
+        String key = replies == null || properties.getReplyTo() == null ? null : properties.getCorrelationId();
+        if(key == null) {
+            handle(envelope, properties, body, received);
+            return;
+        }
+
+        Reply cached = replies.get(key);
+        if(cached != null) {
+            log.debug("Answered duplicate request {} from the reply cache", key);
+            metrics.replyCacheHit();
+            reply(cached, envelope, properties.getReplyTo());
+            return;
+        }
+
+        CompletableFuture<Reply> running = new CompletableFuture<>();
+        CompletableFuture<Reply> original = inProgress.putIfAbsent(key, running);
+        if(original != null) {
+            original.thenAccept(reply -> {
+
+                // The original failed before replying, so the duplicate is executed after all
+                if(reply == null) {
+                    executor.execute(() -> process(envelope, properties, body, received));
+                }
+                else {
+                    metrics.replyCacheHit();
+                    reply(reply, envelope, properties.getReplyTo());
+                }
+            });
+
+            return;
+        }
+
+        Reply reply = null;
+        try {
+            reply = handle(envelope, properties, body, received);
+            if(reply != null) {
+                replies.put(key, reply, config.getReplyCacheTtl(), TimeUnit.MILLISECONDS);
+            }
+        }
+        finally {
+            inProgress.remove(key, running);
+            running.complete(reply);
+        }
+    }
+
+    /**
+     * Parse, invoke and acknowledge a single request or a batch. Runs on one of the application's workers.
+     *
+     * @param envelope
+     * @param properties
+     * @param body - raw request
+     * @param received - time the request was received in epoch milliseconds, 0 without timing headers
+     * @return reply sent to the caller, or null if there was none or processing failed unexpectedly. The reply to a
+     *         failure is not reused for duplicates, which are executed again instead.
+     */
+    private Reply handle(Envelope envelope, AMQP.BasicProperties properties, byte[] body, long received) {
+
+        // Nobody waits for the reply of a request past its deadline, e.g. a backlog left by an outage
+        long deadline = deadline(properties);
+        if(deadline > 0 && deadline <= System.currentTimeMillis()) {
+            if(log.isDebugEnabled()) {
+                log.debug("Dropped request {}, its deadline passed {}ms ago", properties.getCorrelationId(),
+                        System.currentTimeMillis() - deadline);
+            }
+
+            metrics.requestExpired();
+            reply(null, envelope, properties.getReplyTo());
+            return null;
+        }
+
+        Timing timing = received > 0 ? new Timing(queueTime(properties, received)) : null;
+        Codec codec = Codecs.forContentType(properties.getContentType());
+        try {
+
+            // Unknown encodings are rejected in json, which every caller understands
+            if(codec == null) {
+                codec = Codecs.JSON;
+                throw new JsonSyntaxException("Unsupported content type " + properties.getContentType());
+            }
+
+            long parsing = System.nanoTime();
+            body = Compression.decode(body, properties.getContentEncoding(), config.getMaxBodySize());
+            RequestDecoder.DecodedRequest decoded = decoder.decode(body, codec);
+            long invoking = System.nanoTime();
+            metrics.requestParsed(invoking - parsing);
+
+            List<RPCResponse> responses = decoded.batch != null
+                    ? execute(decoded.batch, deadline)
+                    : Collections.singletonList(execute(decoded, deadline));
+
+            if(timing != null) {
+                timing.parse = (invoking - parsing) / 1000;
+                timing.invoke = (System.nanoTime() - invoking) / 1000;
+            }
+
+            return acknowledge(responses, decoded.batch != null, codec, envelope, properties, timing);
+
+        } catch ( JsonSyntaxException | IOException e) {
+            RPCResponse response = new RPCResponse();
+            setError(response, COULD_NOT_PARSE_REQUEST, BAD_REQUEST);
+            return acknowledge(Collections.singletonList(response), false, codec, envelope, properties, timing);
+        } catch (RuntimeException e) {
+
+            // Settle the delivery anyway, an unacked delivery would hold a slot of the prefetch forever
+            log.error("Could not process request {}", properties.getCorrelationId(), e);
+            RPCResponse response = new RPCResponse();
+            setError(response, UNKNOWN_EXCEPTION, SERVER_ERROR);
+            acknowledge(Collections.singletonList(response), false, codec, envelope, properties, timing);
+            return null;
+        }
+    }
+
+    /**
+     * @param properties - request properties
+     * @param received - time the request was received in epoch milliseconds
+     * @return microseconds the request waited in the queue, measured from the broker's timestamp if it sets one and
+     *         from the caller's publish time otherwise, -1 if neither is known
+     */
+    private static long queueTime(AMQP.BasicProperties properties, long received) {
+        Map<String, Object> headers = properties.getHeaders();
+        Object stamp = headers == null ? null : headers.get(BROKER_TIMESTAMP_HEADER);
+        if(stamp == null && headers != null) {
+            stamp = headers.get(RPCRequest.PUBLISHED_HEADER);
+        }
+
+        if(stamp == null) {
+            return -1;
+        }
+
+        try {
+            return Math.max(0, received - Long.parseLong(stamp.toString())) * 1000;
+        }
+        catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Execute the entries of a batch, in parallel if the application has a batch executor. Notifications, entries
+     * without an id, get no response as defined by JSON-RPC 2.0.
+     *
+     * @param batch - decoded entries
+     * @param deadline - deadline of the batch, 0 if there is none
+     * @return responses in the order of the entries
+     */
+    private List<RPCResponse> execute(List<RequestDecoder.DecodedRequest> batch, long deadline) {
+        List<RPCResponse> responses = new ArrayList<>(batch.size());
+        if(batchExecutor == null || batch.size() == 1) {
+            for(RequestDecoder.DecodedRequest entry : batch) {
+                RPCResponse response = execute(entry, deadline);
+                if(!isNotification(entry)) {
+                    responses.add(response);
+                }
+            }
+
+            return responses;
+        }
+
+        List<CompletableFuture<RPCResponse>> pending = new ArrayList<>(batch.size());
+        for(RequestDecoder.DecodedRequest entry : batch) {
+            pending.add(CompletableFuture.supplyAsync(() -> execute(entry, deadline), batchExecutor));
+        }
+
+        for(int i = 0; i < batch.size(); i++) {
+            RPCResponse response = pending.get(i).join();
+            if(!isNotification(batch.get(i))) {
+                responses.add(response);
+            }
+        }
+
+        return responses;
+    }
+
+    private static boolean isNotification(RequestDecoder.DecodedRequest entry) {
+        return entry.request != null && entry.request.id == null;
+    }
+
+    /**
+     * Validate and invoke a single decoded request.
+     *
+     * @param decoded - decoded request
+     * @param deadline - deadline of the request, exposed to the method through its RequestContext
+     * @return response of the request
+     */
+    private RPCResponse execute(RequestDecoder.DecodedRequest decoded, long deadline) {
+        RPCResponse response = new RPCResponse();
+        RPCRequest request = decoded.request;
+        boolean success = true;
+
+        // Batch entry that isn't a request
+        if(request == null) {
+            setError(response, COULD_NOT_PARSE_REQUEST, BAD_REQUEST);
+            return response;
+        }
+
+        response.id = request.id;
+
+        // Must be jsonrpc 2.0 by spec
+        if(success && (request.jsonrpc == null || !request.jsonrpc.equals("2.0"))) {
+            setError(response, WRONG_RPC_VERSION, BAD_REQUEST);
+            success = false;
+        }
+
+        // Method must exist in the api class
+        if(success && methods.get(request.method) == null) {
+            setError(response, NO_SUCH_METHOD, NOT_FOUND);
+            success = false;
+        }
+
+        // Invoke the specified method if the request is valid
+        if(success) {
+            RequestContext.run(deadline, () -> invoke(request, decoded.params, response));
+        }
+
+        return response;
+    }
+
+    /**
+     * @param properties - request properties
+     * @return the caller's deadline in epoch milliseconds, 0 if it sent none
+     */
+    private static long deadline(AMQP.BasicProperties properties) {
+        Object deadline = properties.getHeaders() == null ? null : properties.getHeaders().get(RPCRequest.DEADLINE_HEADER);
+        if(deadline == null) {
+            return 0;
+        }
+
+        try {
+            return Long.parseLong(deadline.toString());
+        }
+        catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Acknowledge the request was received and processed. Notifications, requests without a reply queue, are only
+     * acked since nobody is waiting for their response, and so are batches made of notifications only. A batch is
+     * answered with an array of responses. The response is encoded with the request's codec, in the
+     * native format if the caller accepts it and in the json string format otherwise. Large replies are compressed if
+     * the caller accepts a compressed reply. Workers share the channel, so the reply and the ack of a
+     * delivery are issued while holding it. With publisher confirms the request is only acked once the broker
+     * confirmed its reply.
+     *
+     * @param responses - response objects, exactly one unless batch is set
+     * @param batch - true to reply with an array of responses
+     * @param codec - codec the reply is encoded with
+     * @param envelope
+     * @param properties
+     * @param timing - stages of the request stamped on the reply, null without timing headers
+     * @return reply sent to the caller, or null if there was none or it could not be encoded
+     */
+    private Reply acknowledge(List<RPCResponse> responses, boolean batch, Codec codec, Envelope envelope,
+                              AMQP.BasicProperties properties, Timing timing) {
+        Reply encoded = null;
+        try {
+            if(properties.getReplyTo() != null && !responses.isEmpty()) {
+                boolean nativeFormat = RPCResponse.isNativeFormat(properties.getHeaders(), RPCResponse.ACCEPT_FORMAT_HEADER);
+                for(RPCResponse response : responses) {
+                    response.setNativeFormat(nativeFormat);
+                }
+
+                long serializing = System.nanoTime();
+                byte[] reply = batch ? codec.encode(responses, BATCH) : codec.encode(responses.get(0), RPCResponse.class);
+
+                Compression compression = null;
+                if(reply.length > config.getCompressionThreshold() && properties.getHeaders() != null) {
+                    Object accepted = properties.getHeaders().get(Compression.ACCEPT_ENCODING_HEADER);
+                    compression = Compression.forContentEncoding(accepted == null ? null : accepted.toString());
+                }
+
+                if(compression != null) {
+                    reply = compression.compress(reply);
+                }
+
+                long serialized = System.nanoTime() - serializing;
+                metrics.responseSerialized(serialized);
+
+                AMQP.BasicProperties replyProperties = properties.builder()
+                        .contentType(codec.getContentType())
+                        .contentEncoding(compression == null ? null : compression.getContentEncoding())
+                        .headers(replyHeaders(nativeFormat, timing, serialized))
+                        .build();
+
+                encoded = new Reply(reply, replyProperties);
+            }
+        }
+        catch (Exception e) {
+            log.error("Could not encode the reply to request {}", properties.getCorrelationId(), e);
+        }
+
+        reply(encoded, envelope, properties.getReplyTo());
+        return encoded;
+    }
+
+    /**
+     * @param nativeFormat - true if the reply is written in the native format
+     * @param timing - stages of the request, null without timing headers
+     * @param serialized - nanoseconds spent encoding the reply
+     * @return headers of the reply, null if it has none
+     */
+    private static Map<String, Object> replyHeaders(boolean nativeFormat, Timing timing, long serialized) {
+        if(timing == null) {
+            return nativeFormat ? NATIVE_FORMAT : null;
+        }
+
+        Map<String, Object> headers = new HashMap<>(nativeFormat ? NATIVE_FORMAT : Collections.emptyMap());
+        if(timing.queue >= 0) {
+            headers.put(RPCResponse.QUEUE_TIME_HEADER, timing.queue);
+        }
+
+        if(timing.parse >= 0) {
+            headers.put(RPCResponse.PARSE_TIME_HEADER, timing.parse);
+            headers.put(RPCResponse.INVOKE_TIME_HEADER, timing.invoke);
+        }
+
+        headers.put(RPCResponse.SERIALIZE_TIME_HEADER, serialized / 1000);
+        return headers;
+    }
+
+    /**
+     * Publish the reply, if any, and ack the request.
+     *
+     * @param reply - encoded reply, null to only ack the request
+     * @param envelope
+     * @param replyTo - queue the caller waits for the reply on
+     */
+    private void reply(Reply reply, Envelope envelope, String replyTo) {
+        try {
+            Channel channel = this.getChannel();
+            synchronized (channel) {
+                if(reply != null && config.isPublisherConfirms()) {
+                    PublisherConfirms.forChannel(channel)
+                            .publish(channel, "", replyTo, reply.properties, reply.body)
+                            .whenComplete((v, error) -> settle(envelope, error == null));
+                    return;
+                }
+
+                if(reply != null) {
+                    channel.basicPublish("", replyTo, reply.properties, reply.body);
+                }
+
+                channel.basicAck(envelope.getDeliveryTag(), false);
+                if(prefetch != null) {
+                    prefetch.settled();
+                }
+            }
+        }
+        catch (Exception e) {
+            log.error("Could not reply to delivery {}", envelope.getDeliveryTag(), e);
+        }
+    }
+
+    /**
+     * Settle a request once the broker confirmed or rejected its reply. Rejected requests are requeued so they are
+     * processed again.
+     *
+     * @param envelope
+     * @param confirmed - true if the broker confirmed the reply
+     */
+    private void settle(Envelope envelope, boolean confirmed) {
+        Channel channel = this.getChannel();
+        try {
+            synchronized (channel) {
+                if(confirmed) {
+                    channel.basicAck(envelope.getDeliveryTag(), false);
+                }
+                else {
+                    channel.basicNack(envelope.getDeliveryTag(), false, true);
+                }
+
+                if(prefetch != null) {
+                    prefetch.settled();
+                }
+            }
+        }
+        catch (Exception e) {
+            log.error("Could not settle delivery {}", envelope.getDeliveryTag(), e);
+        }
+    }
+
+    /**
+     * Invoke the method as specified in the RPCRequest object.
+     *
+     * @param request - request object
+     * @param params - parameters bound while decoding, or null if they have to be parsed from the request
+     * @param response - response object
+     */
+    private void invoke(RPCRequest request, Object[] params, RPCResponse response) {
+        ApiMethod method = methods.get(request.method);
+        if(params == null) {
+            params = parseParameters(request, response, method.getParameterTypes());
+        }
+
+        if(params != null) {
+            metrics.invocationStarted(request.method);
+            long start = System.nanoTime();
+            try {
+                response.setResult(method.invoke(params));
+            }
+            catch (Throwable e) {
+
+                // Attach the error to the response object if the error has been explicitly thrown
+                if(method.declares(e)) {
+                    response.error = new RPCError<>(e);
+                }
+
+                // Unknown error
+                else {
+                    log.error("Api method {} threw an undeclared exception", request.method, e);
+                    setError(response, UNKNOWN_EXCEPTION, SERVER_ERROR);
+                }
+            }
+            finally {
+                metrics.invocationCompleted(request.method, System.nanoTime() - start);
+            }
+        }
+    }
+
+    /**
+     * Parse the parameters defined in the RPCRequest to be used for reflection method invocation.
+     *
+     * @param request - request object
+     * @param response - response object
+     * @param types - parameter types of method being executed
+     * @return - parsed parameters
+     */
+    private Object[] parseParameters(RPCRequest request, RPCResponse response, Class<?>[] types) {
+
+        Object[] params;
+        boolean success = true;
+        List<String> errors = new ArrayList<>();
+
+        // Add empty params if none exist
+        if(request.params == null) {
+            request.params = new JsonArray();
+        }
+
+        // Invalid number of parameters
+        params = new Object[request.params.size()];
+        if(params.length != types.length) {
+            setError(response, INVALID_PARAM_COUNT, ServiceException.Code.BAD_REQUEST);
+            return null;
+        }
+
+        // Decode each parameter to it's java type
+        for(int i = 0; i < params.length; i++) {
+            try {
+                params[i] = gson.fromJson(request.params.get(i), types[i]);
+            }
+
+            // Fail if there is a syntax exception, don't terminate in case there
+            // are more invalid paramters
+            catch(JsonSyntaxException e) {
+                success = false;
+                errors.add(INVALID_PARAM_TYPE.getValue()+ " at index " + i);
+            }
+            catch(Exception e) {
+                log.warn("Could not parse parameter {} of {}", i, request.method, e);
+                errors.add(ServiceException.Reason.UNKNOWN_EXCEPTION.getValue());
+            }
+        }
+
+        if(!success) {
+            setError(response, COULD_NOT_PARSE_PARAMS, ServiceException.Code.BAD_REQUEST, errors);
+            return null;
+        }
+
+        return params;
+    }
+
+    private void setError(RPCResponse response, ServiceException.Reason reason, ServiceException.Code code) {
+        setError(response, reason, code, null);
+    }
+    private void setError(RPCResponse response, ServiceException.Reason reason, ServiceException.Code code, List<String> messages) {
+        response.error = new RPCError<>(new ServiceException(code, reason, messages));
+        metrics.serviceError(code);
+    }
+}
\ No newline at end of file
@@ -0,0 +1,247 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.service;
+
+import com.rabbitmq.client.*;
+import com.zm.rabbitmqservice.PublisherConfirms;
+import com.zm.rabbitmqservice.RMQConnectionFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * @author zmiller
+ */
+public class RMQApplication<U> extends TimerTask {
+
+    private static final Logger log = LoggerFactory.getLogger(RMQApplication.class);
+
+    private U app;
+    private String queue;
+    private String host;
+    private RMQApplicationConfig config;
+    private Executor executor;
+    private Executor batchExecutor;
+    private Channel channel;
+    private AppConsumer<U> consumer;
+    private boolean failing;
+
+    private RMQApplication(U app, String queue, String host, RMQApplicationConfig config) {
+        this.queue = queue;
+        this.host = host;
+        this.app = app;
+        this.config = config;
+        this.executor = createExecutor(config);
+        this.batchExecutor = createBatchExecutor(config);
+    }
+
+    @Override
+    public void run() {
+        try {
+            if(channel == null || !channel.isOpen()) {
+                channel = RMQConnectionFactory.create(host, queue);
+                if(channel != null) {
+                    channel.queueDeclare(queue, false, false, false, null);
+
+                    // A reconnected channel picks up where the previous one's prefetch controller left off
+                    AdaptivePrefetch prefetch = null;
+                    if(config.isAdaptivePrefetch()) {
+                        int initial = consumer == null ? config.getMinPrefetch() : consumer.getPrefetch();
+                        prefetch = new AdaptivePrefetch(config.getMinPrefetch(), config.getMaxPrefetch(), initial,
+                                concurrency(executor));
+                        channel.basicQos(prefetch.getPrefetch(), true);
+                    }
+                    else {
+                        channel.basicQos(config.getPrefetch());
+                    }
+
+                    if(config.isPublisherConfirms()) {
+                        PublisherConfirms.forChannel(channel);
+                    }
+
+                    consumer = new AppConsumer<>(channel, app, executor, batchExecutor, config, prefetch);
+                    channel.basicConsume(queue, false, consumer);
+                    if(failing) {
+                        log.info("Consuming {} on {} again", queue, host);
+                        failing = false;
+                    }
+                }
+            }
+            else if(consumer != null) {
+                consumer.adaptPrefetch();
+            }
+        } catch (Exception e) {
+
+            // Retried every 100ms, so an outage is only reported once
+            if(!failing) {
+                log.warn("Could not consume {} on {}, retrying until the broker is reachable", queue, host, e);
+                failing = true;
+            }
+            else {
+                log.debug("Could not consume {} on {}: {}", queue, host, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Create the executor api methods are invoked on. A single worker, or an ordered application, invokes them
+     * directly on the consumer thread. Virtual threads are used when requested and the JVM supports them, otherwise
+     * the platform worker pool is used, even with a single worker.
+     *
+     * The work queue of the platform pool only needs to hold the prefetched requests; anything beyond that (e.g.
+     * deliveries still queued from a channel that was reconnected) runs on the consumer thread, which also throttles
+     * the consumer. With an adaptive prefetch the queue holds up to the highest prefetch, and requests are never
+     * invoked on the consumer thread, so the prefetch controller sees how long they wait for a worker.
+     *
+     * @param config - application configuration
+     * @return executor for api method invocations
+     */
+    private static Executor createExecutor(RMQApplicationConfig config) {
+        if(config.isOrdered()) {
+
+            // A single worker preserves the order
+            return config.isAdaptivePrefetch() ? createWorkerPool(1, config.getMaxPrefetch()) : Runnable::run;
+        }
+
+        if(config.isVirtualThreads()) {
+            Executor executor = createVirtualThreadExecutor();
+            if(executor != null) {
+                return executor;
+            }
+
+            // Even a single worker runs on the pool rather than the consumer thread, as the startup log says
+            log.warn("Virtual threads are not supported by this JVM, using {} platform workers", config.getWorkers());
+            return createWorkerPool(config.getWorkers(),
+                    config.isAdaptivePrefetch() ? config.getMaxPrefetch() : config.getPrefetch());
+        }
+
+        if(config.isAdaptivePrefetch()) {
+            return createWorkerPool(config.getWorkers(), config.getMaxPrefetch());
+        }
+
+        if(config.getWorkers() == 1) {
+            return Runnable::run;
+        }
+
+        return createWorkerPool(config.getWorkers(), config.getPrefetch());
+    }
+
+    /**
+     * @param workers - number of worker threads
+     * @param capacity - number of requests the work queue holds
+     * @return fixed pool that invokes requests on the caller's thread once its queue is full
+     */
+    private static Executor createWorkerPool(int workers, int capacity) {
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(
+                workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(capacity),
+                r -> new Thread(r, "rmq-worker-" + count.incrementAndGet()),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * @param executor - executor api methods are invoked on
+     * @return number of requests the executor invokes at once, 0 if it starts every request right away
+     */
+    private static int concurrency(Executor executor) {
+        if(executor instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) executor).getMaximumPoolSize();
+        }
+
+        return 0;
+    }
+
+    /**
+     * Create the executor batch entries are executed on. Batch entries never wait on each other, so a fixed pool with
+     * an unbounded queue can't deadlock no matter how many batches are in flight.
+     *
+     * @param config - application configuration
+     * @return executor for batch entries, or null to execute them on the worker that received the batch
+     */
+    private static Executor createBatchExecutor(RMQApplicationConfig config) {
+        if(config.getBatchParallelism() == 1) {
+            return null;
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(config.getBatchParallelism(),
+                r -> new Thread(r, "rmq-batch-" + count.incrementAndGet()));
+    }
+
+    /**
+     * Create a virtual thread per task executor. The build targets Java 8, so the JDK 21 factory is looked up
+     * reflectively.
+     *
+     * @return virtual thread executor, or null if the JVM doesn't support virtual threads
+     */
+    private static Executor createVirtualThreadExecutor() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Start the RabbitMQ application. This is the main method that gets executed when creating a RabbitMQ application.
+     *
+     * @param host - RabbitMQ host
+     * @param queueName - RabbitMQ channel
+     * @param app - Class that implements an API which will be called when messages are retrieved
+     * @param api - API that defines the valid application operations
+     */
+    public static <T extends U, U> void start(String host, String queueName, T app, Class<U> api) {
+        start(host, queueName, app, api, new RMQApplicationConfig());
+    }
+
+    /**
+     * Start the RabbitMQ application with the given tuning options.
+     *
+     * @param host - RabbitMQ host
+     * @param queueName - RabbitMQ channel
+     * @param app - Class that implements an API which will be called when messages are retrieved
+     * @param api - API that defines the valid application operations
+     * @param config - prefetch, worker, threading and compression configuration
+     */
+    public static <T extends U, U> void start(String host, String queueName, T app, Class<U> api, RMQApplicationConfig config) {
+        
+        // No duplicate method names allowed
+        Set<String> names = new HashSet<>();
+        for(Method m : api.getMethods()) {
+            if(names.contains(m.getName())) {
+                throw new RuntimeException("Duplicate API method names are not allowed");
+            }
+
+            names.add(m.getName());
+        }
+        
+        // Start consuming the queue
+        RMQApplication<U> tr = new RMQApplication<>(app, queueName, host, config);
+        new Timer().schedule(tr, 0, 100);
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.service;
+
+import com.zm.rabbitmqservice.metrics.Metrics;
+
+/**
+ * Tuning options of an RMQApplication. The defaults process one request at a time on the consumer thread.
+ *
+ * @author zmiller
+ */
+public class RMQApplicationConfig {
+
+    private int prefetch = 1;
+    private int minPrefetch;
+    private int maxPrefetch;
+    private int workers = 1;
+    private boolean virtualThreads;
+    private boolean ordered;
+    private int compressionThreshold = 1024;
+    private int maxBodySize = 64 * 1024 * 1024;
+    private boolean publisherConfirms;
+    private int batchParallelism = 1;
+    private int replyCacheSize;
+    private long replyCacheBytes = 16 * 1024 * 1024;
+    private long replyCacheTtl = 60000;
+    private Metrics metrics = Metrics.NONE;
+    private boolean timingHeaders;
+
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * Maximum number of unacknowledged requests the broker delivers to the application at once.
+     *
+     * @param prefetch - prefetch count, at least 1
+     */
+    public void setPrefetch(int prefetch) {
+        if(prefetch < 1) {
+            throw new IllegalArgumentException("prefetch must be at least 1");
+        }
+
+        this.prefetch = prefetch;
+    }
+
+    public boolean isAdaptivePrefetch() {
+        return maxPrefetch > 0;
+    }
+
+    public int getMinPrefetch() {
+        return minPrefetch;
+    }
+
+    public int getMaxPrefetch() {
+        return maxPrefetch;
+    }
+
+    /**
+     * Tune the prefetch count at runtime instead of using a fixed one. The application measures how long requests
+     * wait for a worker and how busy the workers are, and moves the prefetch between the bounds: up while workers
+     * idle waiting for the broker, down while requests queue up in the process that another consumer could take.
+     * Starts at the lower bound. The prefetch is set per channel, and requests are always handed to a worker thread,
+     * also with a single worker or in order, so the consumer sees every delivery as it arrives.
+     *
+     * @param min - lowest prefetch count, at least 1
+     * @param max - highest prefetch count, at least min
+     */
+    public void setAdaptivePrefetch(int min, int max) {
+        if(min < 1 || max < min) {
+            throw new IllegalArgumentException("min must be at least 1 and max at least min");
+        }
+
+        this.minPrefetch = min;
+        this.maxPrefetch = max;
+    }
+
+    public int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Number of threads invoking api methods in parallel. With a single worker requests are invoked on the consumer
+     * thread. Workers beyond the prefetch count sit idle since the broker never delivers more than that.
+     *
+     * @param workers - worker count, at least 1
+     */
+    public void setWorkers(int workers) {
+        if(workers < 1) {
+            throw new IllegalArgumentException("workers must be at least 1");
+        }
+
+        this.workers = workers;
+    }
+
+    public boolean isVirtualThreads() {
+        return virtualThreads;
+    }
+
+    /**
+     * Invoke every request on its own virtual thread when running on JDK 21 or later. Concurrency is then bounded by
+     * the prefetch count alone, so blocking api methods can run with a prefetch in the thousands. On older JVMs the
+     * application falls back to the platform worker pool.
+     *
+     * @param virtualThreads - true to use virtual threads when available
+     */
+    public void setVirtualThreads(boolean virtualThreads) {
+        this.virtualThreads = virtualThreads;
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    /**
+     * Invoke requests one at a time in the order the queue delivers them, regardless of the worker settings.
+     *
+     * @param ordered - true to preserve the queue order
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * Replies larger than the threshold are compressed for callers that accept a compressed reply. Smaller replies
+     * are sent as is, since compressing them costs more than it saves.
+     *
+     * @param compressionThreshold - reply size in bytes above which replies are compressed
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public int getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    /**
+     * Largest request a compressed request may decompress to. Larger requests are answered with a parse error
+     * without decompressing them further, so a small compressed body can't exhaust the application's memory.
+     * Defaults to 64MB.
+     *
+     * @param maxBodySize - maximum size of a decompressed request in bytes
+     */
+    public void setMaxBodySize(int maxBodySize) {
+        if(maxBodySize < 1) {
+            throw new IllegalArgumentException("max body size must be at least 1");
+        }
+
+        this.maxBodySize = maxBodySize;
+    }
+
+    public boolean isPublisherConfirms() {
+        return publisherConfirms;
+    }
+
+    /**
+     * Have the broker confirm every reply, and acknowledge a request only once its reply is confirmed. A request
+     * whose reply the broker rejects is requeued instead of being lost. Confirms are tracked asynchronously, so
+     * workers don't wait for them.
+     *
+     * @param publisherConfirms - true to enable publisher confirms
+     */
+    public void setPublisherConfirms(boolean publisherConfirms) {
+        this.publisherConfirms = publisherConfirms;
+    }
+
+    public int getBatchParallelism() {
+        return batchParallelism;
+    }
+
+    /**
+     * Number of threads executing the entries of a batch request in parallel. With a parallelism of 1 the entries
+     * are executed one after another on the worker that received the batch.
+     *
+     * @param batchParallelism - batch thread count, at least 1
+     */
+    public void setBatchParallelism(int batchParallelism) {
+        if(batchParallelism < 1) {
+            throw new IllegalArgumentException("batch parallelism must be at least 1");
+        }
+
+        this.batchParallelism = batchParallelism;
+    }
+
+    public int getReplyCacheSize() {
+        return replyCacheSize;
+    }
+
+    /**
+     * Keep the replies of recent requests so a retried or redelivered request is answered without executing the
+     * method again. Disabled by default.
+     *
+     * @param replyCacheSize - maximum number of cached replies, 0 to disable the cache
+     */
+    public void setReplyCacheSize(int replyCacheSize) {
+        if(replyCacheSize < 0) {
+            throw new IllegalArgumentException("reply cache size must not be negative");
+        }
+
+        this.replyCacheSize = replyCacheSize;
+    }
+
+    public long getReplyCacheBytes() {
+        return replyCacheBytes;
+    }
+
+    /**
+     * @param replyCacheBytes - maximum total size of the cached replies in bytes
+     */
+    public void setReplyCacheBytes(long replyCacheBytes) {
+        if(replyCacheBytes < 1) {
+            throw new IllegalArgumentException("reply cache bytes must be at least 1");
+        }
+
+        this.replyCacheBytes = replyCacheBytes;
+    }
+
+    public long getReplyCacheTtl() {
+        return replyCacheTtl;
+    }
+
+    /**
+     * Time a reply is kept. Should cover the time a request can spend in the queue plus the client's retries.
+     *
+     * @param replyCacheTtl - time to live of a cached reply in milliseconds
+     */
+    public void setReplyCacheTtl(long replyCacheTtl) {
+        this.replyCacheTtl = replyCacheTtl;
+    }
+
+    public boolean isTimingHeaders() {
+        return timingHeaders;
+    }
+
+    /**
+     * Stamp every reply with the time its request spent waiting in the queue, being decoded, in the api method and
+     * being encoded. The queue wait is measured from the broker's timestamp_in_ms header, set by the message
+     * timestamp plugin, or else from the caller's publish time, which is only as accurate as the clocks are in sync.
+     *
+     * @param timingHeaders - true to add timing headers to replies
+     */
+    public void setTimingHeaders(boolean timingHeaders) {
+        this.timingHeaders = timingHeaders;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Metrics the application records parse, invoke and serialize times, in-flight invocations and errors to.
+     *
+     * @param metrics - metrics implementation, Metrics.NONE to record nothing
+     */
+    public void setMetrics(Metrics metrics) {
+        if(metrics == null) {
+            throw new IllegalArgumentException("metrics must not be null, use Metrics.NONE");
+        }
+
+        this.metrics = metrics;
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.service;
+
+/**
+ * Context of the request an api method is invoked for. Api methods call RequestContext.current() to find out how much
+ * of the caller's time budget is left, e.g. to skip optional work or give up on a slow dependency early.
+ *
+ * @author zmiller
+ */
+public final class RequestContext {
+
+    private static final RequestContext NONE = new RequestContext(0);
+    private static final ThreadLocal<RequestContext> current = new ThreadLocal<>();
+
+    private final long deadline;
+
+    private RequestContext(long deadline) {
+        this.deadline = deadline;
+    }
+
+    /**
+     * @return context of the request invoked on this thread, a context without deadline outside of an invocation
+     */
+    public static RequestContext current() {
+        RequestContext context = current.get();
+        return context == null ? NONE : context;
+    }
+
+    /**
+     * @return true if the caller sent a deadline
+     */
+    public boolean hasDeadline() {
+        return deadline > 0;
+    }
+
+    /**
+     * @return time in epoch milliseconds after which the caller no longer waits for the reply, 0 if there is none
+     */
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @return milliseconds left until the deadline, negative once it has passed and Long.MAX_VALUE without deadline
+     */
+    public long getRemainingMillis() {
+        return hasDeadline() ? deadline - System.currentTimeMillis() : Long.MAX_VALUE;
+    }
+
+    public boolean isExpired() {
+        return getRemainingMillis() <= 0;
+    }
+
+    /**
+     * Run the invocation within the context of a request.
+     *
+     * @param deadline - deadline of the request, 0 if there is none
+     * @param invocation - invocation of the api method
+     */
+    static void run(long deadline, Runnable invocation) {
+        RequestContext previous = current.get();
+        current.set(deadline > 0 ? new RequestContext(deadline) : null);
+        try {
+            invocation.run();
+        }
+        finally {
+            current.set(previous);
+        }
+    }
+}
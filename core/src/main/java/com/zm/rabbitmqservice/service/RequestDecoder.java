@@ -0,0 +1,419 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.zm.rabbitmqservice.RPCRequest;
+import com.zm.rabbitmqservice.codec.Codec;
+import com.zm.rabbitmqservice.codec.JsonCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single pass decoder of raw RPC requests. Json requests are streamed straight from the delivery body and, when the
+ * method is known by the time the parameters are read, every positional parameter is bound directly to its java type
+ * without building an intermediate JsonArray. Requests in other encodings are decoded by their codec.
+ *
+ * Requests that can't be bound in one pass (parameters before the method, unknown methods, wrong parameter count or
+ * types) are decoded again into an RPCRequest with a JsonArray of params, so errors are reported exactly as before.
+ *
+ * A message holding an array of requests is a batch. A json batch is split into its entries with a scan of the raw
+ * bytes, and each entry is decoded and bound with the same single pass as a plain request. An entry that isn't a
+ * request doesn't fail the rest of the batch.
+ *
+ * @author zmiller
+ */
+class RequestDecoder {
+
+    private final Gson gson;
+    private final Map<String, ApiMethod> methods;
+    private final TypeAdapter<String> strings;
+    private final TypeAdapter<JsonArray> arrays;
+
+    RequestDecoder(Gson gson, Map<String, ApiMethod> methods) {
+        this.gson = gson;
+        this.methods = methods;
+        this.strings = gson.getAdapter(String.class);
+        this.arrays = gson.getAdapter(JsonArray.class);
+    }
+
+    /**
+     * A decoded request. Params holds the bound parameters, or null if they still have to be bound from the
+     * request's JsonArray. The request is null for a batch entry that isn't a request object, and batch holds the
+     * entries if the message is a batch.
+     */
+    static class DecodedRequest {
+        final RPCRequest request;
+        final Object[] params;
+        final List<DecodedRequest> batch;
+
+        private DecodedRequest(RPCRequest request, Object[] params) {
+            this(request, params, null);
+        }
+
+        private DecodedRequest(RPCRequest request, Object[] params, List<DecodedRequest> batch) {
+            this.request = request;
+            this.params = params;
+            this.batch = batch;
+        }
+    }
+
+    /**
+     * Decode the raw request.
+     *
+     * @param body - raw request
+     * @param codec - codec of the request's content type
+     * @return decoded request
+     * @throws JsonSyntaxException if the body isn't an RPC request or a non-empty batch
+     * @throws IOException if the body can't be decoded
+     */
+    DecodedRequest decode(byte[] body, Codec codec) throws JsonSyntaxException, IOException {
+        if(!(codec instanceof JsonCodec)) {
+            JsonElement tree = codec.decode(body, JsonElement.class);
+            if(tree != null && tree.isJsonArray()) {
+                return batch(tree.getAsJsonArray());
+            }
+
+            RPCRequest request = gson.fromJson(tree, RPCRequest.class);
+            if(request == null) {
+                throw new JsonSyntaxException("Expected an RPC request object");
+            }
+
+            return new DecodedRequest(request, null);
+        }
+
+        int first = skipWhitespace(body, 0);
+        List<int[]> entries = first < body.length && body[first] == '[' ? split(body) : null;
+        if(entries != null) {
+            return batch(body, entries);
+        }
+
+        JsonReader reader = new JsonReader(reader(body, 0, body.length));
+        reader.setLenient(true);
+
+        // Malformed arrays are left to the tree decoder, which reports them as before
+        if(reader.peek() == JsonToken.BEGIN_ARRAY) {
+            JsonArray batch = arrays.read(reader);
+            if(reader.peek() != JsonToken.END_DOCUMENT) {
+                throw new JsonSyntaxException("JSON document was not fully consumed.");
+            }
+
+            return batch(batch);
+        }
+
+        return request(body, 0, body.length);
+    }
+
+    /**
+     * Decode the json request object held by a range of the body, binding its parameters while streaming it.
+     *
+     * @param body - raw message
+     * @param offset - start of the request in the body
+     * @param length - length of the request in bytes
+     * @return decoded request
+     * @throws JsonSyntaxException if the range doesn't hold an RPC request object
+     */
+    private DecodedRequest request(byte[] body, int offset, int length) throws JsonSyntaxException, IOException {
+        try {
+            return stream(body, offset, length);
+        }
+        catch (JsonSyntaxException e) {
+            throw e;
+        }
+        catch (RuntimeException e) {
+
+            // The reader fails with an IllegalStateException when a member has the wrong type, e.g. an object id,
+            // which Gson reports as a syntax error
+            throw new JsonSyntaxException(e);
+        }
+    }
+
+    /**
+     * The single pass of request(), which may fail with any runtime exception of the reader.
+     */
+    private DecodedRequest stream(byte[] body, int offset, int length) throws JsonSyntaxException, IOException {
+        JsonReader reader = new JsonReader(reader(body, offset, length));
+        reader.setLenient(true);
+        if(reader.peek() != JsonToken.BEGIN_OBJECT) {
+            throw new JsonSyntaxException("Expected an RPC request object");
+        }
+
+        RPCRequest request = new RPCRequest();
+        Object[] params = null;
+        String bound = null;
+
+        reader.beginObject();
+        while(reader.hasNext()) {
+            switch(reader.nextName()) {
+                case "jsonrpc":
+                    request.jsonrpc = strings.read(reader);
+                    break;
+                case "method":
+                    request.method = strings.read(reader);
+                    break;
+                case "id":
+                    request.id = strings.read(reader);
+                    break;
+                case "params":
+                    ApiMethod method = request.method == null ? null : methods.get(request.method);
+                    if(method == null || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                        request.params = arrays.read(reader);
+                        params = null;
+                        break;
+                    }
+
+                    params = bind(reader, method.getParameterTypes());
+                    if(params == null) {
+                        return fallback(body, offset, length);
+                    }
+
+                    bound = request.method;
+                    request.params = null;
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if(reader.peek() != JsonToken.END_DOCUMENT) {
+            throw new JsonSyntaxException("JSON document was not fully consumed.");
+        }
+
+        // The method was redefined after its parameters were bound
+        if(params != null && !bound.equals(request.method)) {
+            return fallback(body, offset, length);
+        }
+
+        return new DecodedRequest(request, params);
+    }
+
+    /**
+     * Bind the parameter array the reader is positioned on to the method's parameter types.
+     *
+     * @param reader - reader positioned at the beginning of the params array
+     * @param types - parameter types of the method
+     * @return bound parameters, or null if they don't match the types. The reader is unusable after a failure.
+     */
+    private Object[] bind(JsonReader reader, Class<?>[] types) {
+        Object[] params = new Object[types.length];
+        try {
+            int i = 0;
+            reader.beginArray();
+            while(reader.hasNext()) {
+                if(i == types.length) {
+                    return null;
+                }
+
+                params[i] = gson.getAdapter(types[i]).read(reader);
+                i++;
+            }
+            reader.endArray();
+
+            return i == types.length ? params : null;
+        }
+        catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decode the entries of a json batch, each with the same single pass as a plain request.
+     *
+     * @param body - raw batch
+     * @param entries - start and end offsets of the entries in the body
+     * @return decoded batch
+     * @throws JsonSyntaxException if the batch is empty
+     */
+    private DecodedRequest batch(byte[] body, List<int[]> entries) throws JsonSyntaxException, IOException {
+        if(entries.isEmpty()) {
+            throw new JsonSyntaxException("Expected at least one request in the batch");
+        }
+
+        List<DecodedRequest> decoded = new ArrayList<>(entries.size());
+        for(int[] entry : entries) {
+            DecodedRequest request = null;
+            if(body[entry[0]] == '{') {
+                try {
+                    request = request(body, entry[0], entry[1] - entry[0]);
+                }
+                catch (JsonSyntaxException e) {
+                    // Reported as an unparseable entry, like the entries of a tree decoded batch
+                }
+            }
+
+            decoded.add(request == null ? new DecodedRequest(null, null) : request);
+        }
+
+        return new DecodedRequest(null, null, decoded);
+    }
+
+    /**
+     * Find the entries of the json array the body holds by scanning its bytes for the commas between top level
+     * values. Only strings and nesting are tracked, the entries themselves are decoded later. Structural characters
+     * are ASCII, so they can't be part of a multi-byte UTF-8 character.
+     *
+     * @param body - raw message starting with an array
+     * @return start and end offsets of each entry, or null if the array isn't terminated or is followed by more
+     *         than whitespace
+     */
+    private static List<int[]> split(byte[] body) {
+        List<int[]> entries = new ArrayList<>();
+        int depth = 0;
+        int start = -1;
+        byte quote = 0;
+
+        for(int i = skipWhitespace(body, 0) + 1; i < body.length; i++) {
+            byte c = body[i];
+            if(quote != 0) {
+                if(c == '\\') {
+                    i++;
+                }
+                else if(c == quote) {
+                    quote = 0;
+                }
+
+                continue;
+            }
+
+            switch(c) {
+                case '"':
+                case '\'':
+                    quote = c;
+                    break;
+                case '[':
+                case '{':
+                    depth++;
+                    break;
+                case ']':
+                case '}':
+                    if(depth == 0) {
+                        if(c != ']') {
+                            return null;
+                        }
+
+                        if(start >= 0) {
+                            entries.add(new int[] {start, i});
+                        }
+
+                        return skipWhitespace(body, i + 1) == body.length ? entries : null;
+                    }
+
+                    depth--;
+                    break;
+                case ',':
+                    if(depth == 0) {
+                        if(start < 0) {
+                            return null;
+                        }
+
+                        entries.add(new int[] {start, i});
+                        start = -1;
+                    }
+                    continue;
+                case ' ':
+                case '\t':
+                case '\n':
+                case '\r':
+                    continue;
+                default:
+            }
+
+            if(start < 0) {
+                start = i;
+            }
+        }
+
+        return null;
+    }
+
+    private static int skipWhitespace(byte[] body, int i) {
+        while(i < body.length && (body[i] == ' ' || body[i] == '\t' || body[i] == '\n' || body[i] == '\r')) {
+            i++;
+        }
+
+        return i;
+    }
+
+    /**
+     * Decode the entries of a batch decoded to a tree, by codecs other than json.
+     *
+     * @param batch - array of requests
+     * @return decoded batch
+     * @throws JsonSyntaxException if the batch is empty
+     */
+    private DecodedRequest batch(JsonArray batch) throws JsonSyntaxException {
+        if(batch.size() == 0) {
+            throw new JsonSyntaxException("Expected at least one request in the batch");
+        }
+
+        List<DecodedRequest> entries = new ArrayList<>(batch.size());
+        for(JsonElement entry : batch) {
+            RPCRequest request = null;
+            if(entry.isJsonObject()) {
+                try {
+                    request = gson.fromJson(entry, RPCRequest.class);
+                }
+                catch (JsonSyntaxException e) {
+                    // Reported as an unparseable entry
+                }
+            }
+
+            entries.add(new DecodedRequest(request, null));
+        }
+
+        return new DecodedRequest(null, null, entries);
+    }
+
+    /**
+     * Decode the request into an RPCRequest with its params as a JsonArray.
+     *
+     * @param body - raw message
+     * @param offset - start of the request in the body
+     * @param length - length of the request in bytes
+     * @return decoded request without bound parameters
+     */
+    private DecodedRequest fallback(byte[] body, int offset, int length) throws JsonSyntaxException, IOException {
+        RPCRequest request;
+        try (Reader reader = reader(body, offset, length)) {
+            request = gson.fromJson(reader, RPCRequest.class);
+        }
+
+        if(request == null) {
+            throw new JsonSyntaxException("Expected an RPC request object");
+        }
+
+        return new DecodedRequest(request, null);
+    }
+
+    private static Reader reader(byte[] body, int offset, int length) {
+        return new InputStreamReader(new ByteArrayInputStream(body, offset, length), StandardCharsets.UTF_8);
+    }
+}
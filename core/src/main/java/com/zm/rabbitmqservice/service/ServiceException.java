@@ -28,7 +28,7 @@ public class ServiceException extends Exception {
     public Reason reason;
     public List<String> messages;
 
-    enum Code {
+    public enum Code {
 
         BAD_REQUEST(400),
         NOT_FOUND(404),
@@ -3,19 +3,35 @@ package com.zm.rabbitmqservice.service;
 public class ServiceUnavailableException extends Exception {
 
     public enum Status {
+
+        /**
+         * The request may still be queued, the service drops it once it reaches it since its deadline passed
+         */
         IN_QUEUE,
+
+        /**
+         * The broker expired the request from the queue
+         */
         EXPIRED
     }
 
+    private final Status status;
+
     public ServiceUnavailableException(Status status) {
         super(getMessage(status));
+        this.status = status;
+    }
+
+    public Status getStatus() {
+        return status;
     }
 
     private static String getMessage(Status status) {
         String message = "The requested service is unavailable or unresponsive. ";
         switch(status) {
             case IN_QUEUE:
-                message += "The request has not been expired and will be processed when the service comes online.";
+                message += "The request may still be queued, but its deadline passed and the service will drop it "
+                        + "instead of processing it.";
                 break;
             case EXPIRED:
                 message += "The request has been expired from the queue.";
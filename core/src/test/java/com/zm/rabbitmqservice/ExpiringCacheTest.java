@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author zmiller
+ */
+public class ExpiringCacheTest {
+
+    private static ExpiringCache<String, String> cache(int maxEntries, long maxBytes) {
+        return new ExpiringCache<>(maxEntries, maxBytes, String::length);
+    }
+
+    @Test
+    public void expiringCache_TooManyEntries_ShouldEvictLeastRecentlyUsed() {
+        ExpiringCache<String, String> cache = cache(2, 1000);
+
+        // Test
+        cache.put("a", "1", 1, TimeUnit.MINUTES);
+        cache.put("b", "2", 1, TimeUnit.MINUTES);
+        cache.get("a");
+        cache.put("c", "3", 1, TimeUnit.MINUTES);
+
+        // Assert
+        assertEquals(2, cache.size());
+        assertEquals("1", cache.get("a"));
+        assertNull(cache.get("b"));
+        assertEquals("3", cache.get("c"));
+    }
+
+    @Test
+    public void expiringCache_TooManyBytes_ShouldEvictUntilWithinBounds() {
+        ExpiringCache<String, String> cache = cache(100, 10);
+
+        // Test
+        cache.put("a", "1234", 1, TimeUnit.MINUTES);
+        cache.put("b", "1234", 1, TimeUnit.MINUTES);
+        cache.put("c", "123456", 1, TimeUnit.MINUTES);
+
+        // Assert
+        assertNull(cache.get("a"));
+        assertEquals("1234", cache.get("b"));
+        assertEquals("123456", cache.get("c"));
+    }
+
+    @Test
+    public void expiringCache_ReplacedEntry_ShouldOnlyCountItsNewWeight() {
+        ExpiringCache<String, String> cache = cache(100, 10);
+
+        // Test
+        cache.put("a", "1234", 1, TimeUnit.MINUTES);
+        cache.put("b", "1234", 1, TimeUnit.MINUTES);
+        cache.put("a", "1", 1, TimeUnit.MINUTES);
+        cache.put("c", "1234", 1, TimeUnit.MINUTES);
+
+        // Assert
+        assertEquals(3, cache.size());
+        assertEquals("1", cache.get("a"));
+    }
+
+    @Test
+    public void expiringCache_RemovedEntries_ShouldFreeTheirWeight() {
+        ExpiringCache<String, String> cache = cache(100, 10);
+
+        // Test
+        cache.put("a", "123456", 1, TimeUnit.MINUTES);
+        cache.remove("a");
+        cache.put("b", "123456", 1, TimeUnit.MINUTES);
+        cache.clear();
+        cache.put("c", "1234", 1, TimeUnit.MINUTES);
+        cache.put("d", "123456", 1, TimeUnit.MINUTES);
+
+        // Assert
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void expiringCache_ValueHeavierThanTheCache_ShouldNotBeCached() {
+        ExpiringCache<String, String> cache = cache(100, 4);
+
+        // Test
+        cache.put("a", "1234", 1, TimeUnit.MINUTES);
+        cache.put("b", "12345", 1, TimeUnit.MINUTES);
+
+        // Assert
+        assertEquals("1234", cache.get("a"));
+        assertNull(cache.get("b"));
+    }
+
+    @Test
+    public void expiringCache_ExpiredEntry_ShouldBeDropped() throws InterruptedException {
+        ExpiringCache<String, String> cache = cache(100, 1000);
+
+        // Test
+        cache.put("a", "1", 1, TimeUnit.MILLISECONDS);
+        cache.put("b", "2", 1, TimeUnit.MINUTES);
+        Thread.sleep(20);
+
+        // Assert
+        assertNull(cache.get("a"));
+        assertEquals("2", cache.get("b"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void expiringCache_LargerThanTheSample_ShouldKeepRecentlyUsedEntries() {
+        ExpiringCache<String, String> cache = cache(100, 10000);
+        for(int i = 0; i < 100; i++) {
+            cache.put("key" + i, "value", 1, TimeUnit.MINUTES);
+        }
+
+        // Test
+        for(int i = 0; i < 50; i++) {
+            cache.get("key" + i);
+        }
+
+        for(int i = 100; i < 150; i++) {
+            cache.put("key" + i, "value", 1, TimeUnit.MINUTES);
+        }
+
+        // Assert
+        int kept = 0;
+        for(int i = 0; i < 50; i++) {
+            kept += cache.get("key" + i) == null ? 0 : 1;
+        }
+
+        assertEquals(100, cache.size());
+        assertTrue("kept " + kept + " of the recently used entries", kept >= 45);
+    }
+
+    @Test
+    public void expiringCache_ExpiredEntry_ShouldBeEvictedFirst() throws InterruptedException {
+        ExpiringCache<String, String> cache = cache(ExpiringCache.SAMPLE, 10000);
+        cache.put("expiring", "value", 1, TimeUnit.MILLISECONDS);
+        for(int i = 1; i < ExpiringCache.SAMPLE; i++) {
+            cache.put("key" + i, "value", 1, TimeUnit.MINUTES);
+        }
+
+        for(int i = 1; i < ExpiringCache.SAMPLE; i++) {
+            cache.get("key" + i);
+        }
+
+        cache.get("expiring");
+        Thread.sleep(20);
+
+        // Test
+        cache.put("new", "value", 1, TimeUnit.MINUTES);
+
+        // Assert
+        assertEquals(ExpiringCache.SAMPLE, cache.size());
+        assertNull(cache.get("expiring"));
+        for(int i = 1; i < ExpiringCache.SAMPLE; i++) {
+            assertEquals("value", cache.get("key" + i));
+        }
+    }
+
+    @Test
+    public void expiringCache_ConcurrentAccess_ShouldStayWithinBounds() throws Exception {
+        ExpiringCache<Integer, String> cache = new ExpiringCache<>(50, 400, String::length);
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+
+        // Test
+        List<Future<?>> tasks = new ArrayList<>();
+        for(int t = 0; t < 8; t++) {
+            int seed = t;
+            tasks.add(threads.submit(() -> {
+                for(int i = 0; i < 20000; i++) {
+                    int key = (i * 31 + seed) % 200;
+                    String value = cache.get(key);
+                    if(value == null) {
+                        cache.put(key, "value-" + key, 1, TimeUnit.MINUTES);
+                    }
+                    else {
+                        assertEquals("value-" + key, value);
+                    }
+
+                    if(i % 1000 == 0) {
+                        cache.remove(key);
+                    }
+                }
+
+                return null;
+            }));
+        }
+
+        for(Future<?> task : tasks) {
+            task.get(30, TimeUnit.SECONDS);
+        }
+
+        threads.shutdown();
+
+        // Assert
+        assertTrue(cache.size() <= 50);
+        cache.clear();
+        assertEquals(0, cache.size());
+        cache.put(1, "1234567890", 1, TimeUnit.MINUTES);
+        assertEquals("1234567890", cache.get(1));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void expiringCache_NoEntries_ShouldFail() {
+        cache(0, 1000);
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.ShutdownListener;
+import com.rabbitmq.client.ShutdownSignalException;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ *
+ * @author zmiller
+ */
+public class PublisherConfirmsTest {
+
+    private final AtomicLong published = new AtomicLong();
+    private final AtomicInteger confirmSelects = new AtomicInteger();
+    private final List<ConfirmListener> listeners = new ArrayList<>();
+    private final List<ShutdownListener> shutdownListeners = new ArrayList<>();
+    private volatile boolean failPublish;
+
+    private final Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+            new Class<?>[] {Channel.class}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "confirmSelect":
+                        confirmSelects.incrementAndGet();
+                        return null;
+                    case "addConfirmListener":
+                        listeners.add((ConfirmListener) args[0]);
+                        return null;
+                    case "addShutdownListener":
+                        shutdownListeners.add((ShutdownListener) args[0]);
+                        return null;
+                    case "getNextPublishSeqNo":
+                        return published.get() + 1;
+                    case "basicPublish":
+                        if(failPublish) {
+                            throw new IOException("Channel closed");
+                        }
+
+                        published.incrementAndGet();
+                        return null;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        return null;
+                }
+            });
+
+    private final PublisherConfirms confirms;
+
+    public PublisherConfirmsTest() throws IOException {
+        confirms = PublisherConfirms.forChannel(channel);
+    }
+
+    private CompletableFuture<Void> publish() throws IOException {
+        return confirms.publish(channel, "", "queue", new AMQP.BasicProperties(), new byte[0]);
+    }
+
+    private List<CompletableFuture<Void>> publish(int count) throws IOException {
+        List<CompletableFuture<Void>> published = new ArrayList<>();
+        for(int i = 0; i < count; i++) {
+            published.add(publish());
+        }
+
+        return published;
+    }
+
+    /**
+     * Wait for the futures the broker settled, they are completed on the common pool
+     */
+    private static void await(List<CompletableFuture<Void>> futures) {
+        try {
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get(5, TimeUnit.SECONDS);
+        }
+        catch (ExecutionException e) {
+            // Checked by the test
+        }
+        catch (Exception e) {
+            throw new AssertionError("Futures were not settled", e);
+        }
+    }
+
+    @Test
+    public void forChannel_SameChannel_ShouldReturnOneTracker() throws IOException {
+
+        // Test
+        PublisherConfirms again = PublisherConfirms.forChannel(channel);
+
+        // Assert
+        assertSame(confirms, again);
+        assertEquals(1, confirmSelects.get());
+        assertEquals(1, listeners.size());
+    }
+
+    @Test
+    public void handleAck_Multiple_ShouldSettleEveryEarlierPublishInOrder() throws Exception {
+        List<CompletableFuture<Void>> futures = publish(5);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        for(int i = 0; i < futures.size(); i++) {
+            int n = i + 1;
+            futures.get(i).thenRun(() -> order.add(n));
+        }
+
+        // Test
+        listeners.get(0).handleAck(3, true);
+        await(futures.subList(0, 3));
+
+        // Assert
+        assertEquals(Arrays.asList(1, 2, 3), order);
+        assertFalse(futures.get(3).isDone());
+        assertFalse(futures.get(4).isDone());
+
+        // Test
+        listeners.get(0).handleAck(5, true);
+        await(futures);
+
+        // Assert
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5), order);
+    }
+
+    @Test
+    public void handleAck_Single_ShouldOnlySettleThatPublish() throws Exception {
+        List<CompletableFuture<Void>> futures = publish(3);
+
+        // Test
+        listeners.get(0).handleAck(2, false);
+        await(futures.subList(1, 2));
+
+        // Assert
+        assertFalse(futures.get(0).isDone());
+        assertFalse(futures.get(2).isDone());
+
+        // Test: acking the rest at once leaves nothing pending
+        listeners.get(0).handleAck(3, true);
+        await(futures);
+
+        // Assert
+        for(CompletableFuture<Void> future : futures) {
+            assertFalse(future.isCompletedExceptionally());
+        }
+    }
+
+    @Test
+    public void handleNack_ShouldFailTheRejectedPublishes() throws Exception {
+        List<CompletableFuture<Void>> futures = publish(4);
+
+        // Test
+        listeners.get(0).handleAck(1, false);
+        listeners.get(0).handleNack(3, true);
+        await(futures.subList(0, 3));
+
+        // Assert
+        assertFalse(futures.get(0).isCompletedExceptionally());
+        assertTrue(futures.get(1).isCompletedExceptionally());
+        assertTrue(futures.get(2).isCompletedExceptionally());
+        assertFalse(futures.get(3).isDone());
+        try {
+            futures.get(1).get();
+            fail("A nacked publish should fail");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void shutdown_ShouldFailOutstandingPublishes() throws Exception {
+        List<CompletableFuture<Void>> futures = publish(2);
+        listeners.get(0).handleAck(1, false);
+        await(futures.subList(0, 1));
+
+        // Test
+        shutdownListeners.get(0).shutdownCompleted(new ShutdownSignalException(false, false, null, channel));
+        await(futures);
+
+        // Assert
+        assertFalse(futures.get(0).isCompletedExceptionally());
+        assertTrue(futures.get(1).isCompletedExceptionally());
+        assertNotSame(confirms, PublisherConfirms.forChannel(channel));
+    }
+
+    @Test
+    public void publish_Failed_ShouldNotBeTracked() throws Exception {
+        CompletableFuture<Void> first = publish();
+        failPublish = true;
+
+        // Test
+        try {
+            publish();
+            fail("The publish should have failed");
+        }
+        catch (IOException e) {
+            // Expected
+        }
+
+        failPublish = false;
+        CompletableFuture<Void> second = publish();
+        listeners.get(0).handleAck(2, true);
+        await(Arrays.asList(first, second));
+
+        // Assert: the failed publish didn't take a sequence number
+        assertEquals(2, published.get());
+        assertFalse(second.isCompletedExceptionally());
+    }
+
+    @Test
+    public void handleAck_ShouldNotSettleOnTheCallingThread() throws Exception {
+        CompletableFuture<Void> future = publish();
+        CompletableFuture<Thread> settledOn = future.thenApply(v -> Thread.currentThread());
+
+        // Test
+        listeners.get(0).handleAck(1, false);
+
+        // Assert
+        assertNotSame(Thread.currentThread(), settledOn.get(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,389 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ *
+ * @author zmiller
+ */
+public class RMQConnectionFactoryTest {
+
+    private static final AtomicInteger hosts = new AtomicInteger();
+
+    /**
+     * Opens connections whose channels only track whether they are open
+     */
+    private static class Broker extends ConnectionFactory {
+        private final List<Connection> connections = new CopyOnWriteArrayList<>();
+        private final List<Channel> channels = new CopyOnWriteArrayList<>();
+        private final List<Connection> aborted = new CopyOnWriteArrayList<>();
+        private volatile boolean failChannels;
+        private volatile Runnable onAbort = () -> {};
+
+        @Override
+        public Connection newConnection() {
+            boolean[] open = {true};
+            Connection connection = (Connection) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] {Connection.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "createChannel":
+                                return failChannels ? null : channel();
+                            case "isOpen":
+                                return open[0];
+                            case "abort":
+                            case "close":
+                                open[0] = false;
+                                aborted.add((Connection) proxy);
+                                onAbort.run();
+                                return null;
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            case "equals":
+                                return proxy == args[0];
+                            default:
+                                return null;
+                        }
+                    });
+
+            connections.add(connection);
+            return connection;
+        }
+
+        private Channel channel() {
+            boolean[] open = {true};
+            Channel channel = (Channel) Proxy.newProxyInstance(getClass().getClassLoader(),
+                    new Class<?>[] {Channel.class}, (proxy, method, args) -> {
+                        switch (method.getName()) {
+                            case "isOpen":
+                                return open[0];
+                            case "abort":
+                            case "close":
+                                open[0] = false;
+                                return null;
+                            case "hashCode":
+                                return System.identityHashCode(proxy);
+                            case "equals":
+                                return proxy == args[0];
+                            default:
+                                return null;
+                        }
+                    });
+
+            channels.add(channel);
+            return channel;
+        }
+    }
+
+    private final Broker broker = new Broker();
+
+    private String host() {
+        String host = "test-host-" + hosts.incrementAndGet();
+        RMQConnectionFactory.setConnectionFactory(host, broker);
+        return host;
+    }
+
+    @After
+    public void tearDown() {
+        RMQConnectionFactory.setChannelPoolSize(8);
+    }
+
+    @Test
+    public void lease_ReleasedChannel_ShouldBeReused() throws Exception {
+        String host = host();
+
+        // Test
+        Channel first;
+        try(RMQConnectionFactory.Lease lease = RMQConnectionFactory.lease(host, "q", 1, TimeUnit.SECONDS)) {
+            first = lease.getChannel();
+        }
+
+        Channel second;
+        try(RMQConnectionFactory.Lease lease = RMQConnectionFactory.lease(host, "q", 1, TimeUnit.SECONDS)) {
+            second = lease.getChannel();
+        }
+
+        // Assert
+        assertSame(first, second);
+        assertEquals(1, broker.channels.size());
+        assertEquals(1, broker.connections.size());
+    }
+
+    @Test
+    public void lease_ConcurrentLeases_ShouldGetDifferentChannels() throws Exception {
+        String host = host();
+
+        // Test
+        try(RMQConnectionFactory.Lease a = RMQConnectionFactory.lease(host, "q", 1, TimeUnit.SECONDS);
+            RMQConnectionFactory.Lease b = RMQConnectionFactory.lease(host, "q", 1, TimeUnit.SECONDS)) {
+
+            // Assert
+            assertNotSame(a.getChannel(), b.getChannel());
+        }
+
+        assertEquals(2, broker.channels.size());
+    }
+
+    @Test
+    public void lease_ChannelClosedWhileIdle_ShouldBeReplaced() throws Exception {
+        String host = host();
+        Channel first;
+        try(RMQConnectionFactory.Lease lease = RMQConnectionFactory.lease(host, "q", 1, TimeUnit.SECONDS)) {
+            first = lease.getChannel();
+        }
+
+        // Test
+        first.abort();
+        Channel second;
+        try(RMQConnectionFactory.Lease lease = RMQConnectionFactory.lease(host, "q", 1, TimeUnit.SECONDS)) {
+            second = lease.getChannel();
+        }
+
+        // Assert
+        assertNotSame(first, second);
+        assertTrue(second.isOpen());
+    }
+
+    @Test
+    public void lease_PoolExhausted_ShouldTimeOut() throws Exception {
+        RMQConnectionFactory.setChannelPoolSize(2);
+        String host = host();
+        RMQConnectionFactory.Lease a = RMQConnectionFactory.lease(host, "q", 1, TimeUnit.SECONDS);
+        RMQConnectionFactory.Lease b = RMQConnectionFactory.lease(host, "q", 1, TimeUnit.SECONDS);
+
+        // Test
+        try {
+            RMQConnectionFactory.lease(host, "q", 20, TimeUnit.MILLISECONDS);
+            fail("Expected the lease to time out");
+        }
+        catch (TimeoutException e) {
+            // Expected
+        }
+
+        a.close();
+        RMQConnectionFactory.Lease c = RMQConnectionFactory.lease(host, "q", 20, TimeUnit.MILLISECONDS);
+
+        // Assert
+        assertSame(a.getChannel(), c.getChannel());
+        assertEquals(2, broker.channels.size());
+        b.close();
+        c.close();
+    }
+
+    @Test
+    public void lease_WaitingForChannel_ShouldGetReleasedOne() throws Exception {
+        RMQConnectionFactory.setChannelPoolSize(1);
+        String host = host();
+        RMQConnectionFactory.Lease held = RMQConnectionFactory.lease(host, "q", 1, TimeUnit.SECONDS);
+
+        // Test
+        CompletableFuture<Channel> waiting = CompletableFuture.supplyAsync(() -> {
+            try(RMQConnectionFactory.Lease lease = RMQConnectionFactory.lease(host, "q", 5, TimeUnit.SECONDS)) {
+                return lease.getChannel();
+            }
+            catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        Thread.sleep(20);
+        assertFalse(waiting.isDone());
+        held.close();
+
+        // Assert
+        assertSame(held.getChannel(), waiting.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void lease_ManyThreads_ShouldNeverShareOrExceedThePool() throws Exception {
+        RMQConnectionFactory.setChannelPoolSize(3);
+        String host = host();
+        Set<Channel> leased = ConcurrentHashMap.newKeySet();
+        AtomicInteger shared = new AtomicInteger();
+        AtomicInteger maxLeased = new AtomicInteger();
+        ExecutorService threads = Executors.newFixedThreadPool(10);
+
+        // Test
+        List<Future<?>> tasks = new ArrayList<>();
+        for(int t = 0; t < 10; t++) {
+            tasks.add(threads.submit(() -> {
+                for(int i = 0; i < 100; i++) {
+                    try(RMQConnectionFactory.Lease lease = RMQConnectionFactory.lease(host, "q", 5, TimeUnit.SECONDS)) {
+                        if(!leased.add(lease.getChannel())) {
+                            shared.incrementAndGet();
+                        }
+
+                        maxLeased.accumulateAndGet(leased.size(), Math::max);
+                        Thread.yield();
+                        leased.remove(lease.getChannel());
+                    }
+                }
+
+                return null;
+            }));
+        }
+
+        for(Future<?> task : tasks) {
+            task.get(10, TimeUnit.SECONDS);
+        }
+
+        threads.shutdown();
+
+        // Assert
+        assertEquals(0, shared.get());
+        assertTrue(maxLeased.get() <= 3);
+        assertTrue(broker.channels.size() <= 3);
+    }
+
+    @Test
+    public void lease_ChannelCreationFails_ShouldReturnPermit() throws Exception {
+        RMQConnectionFactory.setChannelPoolSize(1);
+        String host = host();
+        broker.failChannels = true;
+
+        // Test
+        for(int i = 0; i < 3; i++) {
+            try {
+                RMQConnectionFactory.lease(host, "q", 20, TimeUnit.MILLISECONDS);
+                fail("Expected opening the channel to fail");
+            }
+            catch (IOException e) {
+                // Expected, a leaked permit would time out instead
+            }
+        }
+
+        broker.failChannels = false;
+
+        // Assert
+        try(RMQConnectionFactory.Lease lease = RMQConnectionFactory.lease(host, "q", 20, TimeUnit.MILLISECONDS)) {
+            assertTrue(lease.getChannel().isOpen());
+        }
+    }
+
+    @Test
+    public void create_SameQueue_ShouldReuseChannelUntilClosed() throws Exception {
+        String host = host();
+
+        // Test
+        Channel first = RMQConnectionFactory.create(host, "q");
+        Channel again = RMQConnectionFactory.create(host, "q");
+        first.abort();
+        Channel reopened = RMQConnectionFactory.create(host, "q");
+
+        // Assert
+        assertSame(first, again);
+        assertNotSame(first, reopened);
+        assertTrue(reopened.isOpen());
+        assertEquals(1, broker.connections.size());
+    }
+
+    @Test
+    public void close_LastQueue_ShouldAbortConnection() throws Exception {
+        String host = host();
+        Channel consumer = RMQConnectionFactory.create(host, "a");
+        RMQConnectionFactory.lease(host, "b", 1, TimeUnit.SECONDS).close();
+
+        // Test
+        RMQConnectionFactory.close(host, "a");
+
+        // Assert
+        assertFalse(consumer.isOpen());
+        assertTrue(broker.aborted.isEmpty());
+
+        // Test
+        RMQConnectionFactory.close(host, "b");
+
+        // Assert
+        assertEquals(broker.connections, broker.aborted);
+    }
+
+    @Test
+    public void close_ThenCreate_ShouldOpenNewConnection() throws Exception {
+        String host = host();
+        RMQConnectionFactory.create(host, "a");
+        RMQConnectionFactory.close(host, "a");
+
+        // Test
+        Channel channel = RMQConnectionFactory.create(host, "a");
+
+        // Assert
+        assertTrue(channel.isOpen());
+        assertEquals(2, broker.connections.size());
+        assertEquals(1, broker.aborted.size());
+        RMQConnectionFactory.close(host, "a");
+    }
+
+    @Test
+    public void close_AbortingConnection_ShouldNotBlockTheHost() throws Exception {
+        String host = host();
+        RMQConnectionFactory.create(host, "a");
+        CompletableFuture<Channel> reconnect = new CompletableFuture<>();
+        broker.onAbort = () -> {
+            CompletableFuture<Channel> create = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return RMQConnectionFactory.create(host, "b");
+                }
+                catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+
+            try {
+                reconnect.complete(create.get(1, TimeUnit.SECONDS));
+            }
+            catch (Exception e) {
+                reconnect.completeExceptionally(e);
+            }
+        };
+
+        // Test
+        RMQConnectionFactory.close(host, "a");
+
+        // Assert
+        assertTrue(reconnect.get(5, TimeUnit.SECONDS).isOpen());
+        assertEquals(2, broker.connections.size());
+        broker.onAbort = () -> {};
+        RMQConnectionFactory.close(host, "b");
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author zmiller
+ */
+public class RPCResponseTest {
+
+    private static final Gson gson = new Gson();
+
+    private static RPCResponse roundTrip(RPCResponse response) {
+        return gson.fromJson(gson.toJson(response), RPCResponse.class);
+    }
+
+    private static RPCResponse response(Object result, boolean nativeFormat) {
+        RPCResponse response = new RPCResponse();
+        response.id = "1";
+        response.setResult(result);
+        response.setNativeFormat(nativeFormat);
+        return response;
+    }
+
+    @Test
+    public void rpcResponse_NativeFormat_ShouldEmbedResult() {
+        RPCResponse response = response(Arrays.asList("a", "b"), true);
+
+        // Test
+        JsonObject json = new JsonParser().parse(gson.toJson(response)).getAsJsonObject();
+        RPCResponse received = roundTrip(response);
+        received.nativeFormat = true;
+
+        // Assert
+        assertTrue(json.get("result").isJsonArray());
+        assertEquals("1", received.id);
+        assertEquals(Arrays.asList("a", "b"), received.getResult(List.class));
+    }
+
+    @Test
+    public void rpcResponse_LegacyFormat_ShouldEncodeResultAsString() {
+        RPCResponse response = response(Arrays.asList("a", "b"), false);
+
+        // Test
+        JsonObject json = new JsonParser().parse(gson.toJson(response)).getAsJsonObject();
+        RPCResponse received = roundTrip(response);
+
+        // Assert
+        assertEquals("[\"a\",\"b\"]", json.get("result").getAsString());
+        assertEquals(Arrays.asList("a", "b"), received.getResult(List.class));
+    }
+
+    @Test
+    public void rpcResponse_NoResult_ShouldReturnNull() {
+        // Test
+        RPCResponse received = roundTrip(response(null, true));
+
+        // Assert
+        assertNull(received.getResult(String.class));
+        assertEquals(0, received.getResultSize());
+    }
+
+    @Test
+    public void rpcResponse_ResultSize_ShouldApproximateEncodedLength() {
+        RPCResponse response = response(Arrays.asList("abc", 12345, true), true);
+        String encoded = gson.toJson(Arrays.asList("abc", 12345, true));
+
+        // Test
+        RPCResponse received = roundTrip(response);
+
+        // Assert
+        assertTrue(Math.abs(received.getResultSize() - encoded.length()) <= 1);
+        assertEquals(received.getResultSize(), received.getResultSize());
+    }
+
+    @Test
+    public void rpcError_LegacyFormat_ShouldExposeReasonAsJsonString() throws Exception {
+        RPCResponse response = response(null, false);
+        response.error = new RPCError<>(new IllegalArgumentException("bad"));
+
+        // Test
+        RPCResponse received = roundTrip(response);
+
+        // Assert
+        assertEquals(IllegalArgumentException.class.getName(), received.error.clazz);
+        assertEquals("bad", new JsonParser().parse(received.error.reason).getAsJsonObject()
+                .get("detailMessage").getAsString());
+        assertEquals("bad", received.error.getReason().getMessage());
+    }
+
+    @Test
+    public void rpcError_NativeFormat_ShouldExposeReasonAsJsonString() throws Exception {
+        RPCResponse response = response(null, true);
+        response.error = new RPCError<>(new IllegalArgumentException("bad"));
+
+        // Test
+        JsonObject json = new JsonParser().parse(gson.toJson(response)).getAsJsonObject();
+        RPCResponse received = roundTrip(response);
+        received.setNativeFormat(true);
+
+        // Assert
+        assertTrue(json.getAsJsonObject("error").get("reason").isJsonObject());
+        assertEquals("bad", new JsonParser().parse(received.error.reason).getAsJsonObject()
+                .get("detailMessage").getAsString());
+        assertEquals("bad", received.error.getReason().getMessage());
+    }
+
+    @Test
+    public void rpcError_CreatedLocally_ShouldReturnCause() throws Exception {
+        IllegalStateException cause = new IllegalStateException("local");
+
+        // Test
+        RPCError<IllegalStateException> error = new RPCError<>(cause);
+
+        // Assert
+        assertSame(cause, error.getReason());
+        assertNull(error.reason);
+        assertEquals(IllegalStateException.class.getName(), error.clazz);
+    }
+
+    @Test
+    public void rpcError_ReasonSetDirectly_ShouldBeRelayed() throws Exception {
+        String reason = gson.toJson(new IllegalArgumentException("relayed"));
+        RPCResponse legacy = response(null, false);
+        legacy.error = new RPCError<>(null);
+        legacy.error.reason = reason;
+        legacy.error.clazz = IllegalArgumentException.class.getName();
+        RPCResponse nativeResponse = response(null, true);
+        nativeResponse.error = legacy.error;
+
+        // Test
+        RPCResponse fromLegacy = roundTrip(legacy);
+        RPCResponse fromNative = roundTrip(nativeResponse);
+        fromNative.setNativeFormat(true);
+
+        // Assert
+        assertEquals(reason, fromLegacy.error.reason);
+        assertEquals("relayed", fromLegacy.error.getReason().getMessage());
+        assertEquals("relayed", fromNative.error.getReason().getMessage());
+        assertFalse(fromLegacy.isNativeFormat());
+    }
+}
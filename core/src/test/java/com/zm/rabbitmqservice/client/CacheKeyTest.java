@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.client;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonParser;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ *
+ * @author zmiller
+ */
+public class CacheKeyTest {
+
+    private static String key(String method, String params) {
+        return RMQClient.cacheKey(method, params == null ? null : new JsonParser().parse(params).getAsJsonArray());
+    }
+
+    @Test
+    public void cacheKey_ReorderedMembers_ShouldMatch() {
+
+        // Assert
+        assertEquals(key("m", "[{\"a\": 1, \"b\": {\"x\": [1, 2], \"y\": null}}]"),
+                key("m", "[{\"b\": {\"y\": null, \"x\": [1, 2]}, \"a\": 1}]"));
+    }
+
+    @Test
+    public void cacheKey_NoParams_ShouldMatchEmptyParams() {
+
+        // Assert
+        assertEquals(key("m", null), RMQClient.cacheKey("m", new JsonArray()));
+    }
+
+    @Test
+    public void cacheKey_DifferentCalls_ShouldDiffer() {
+
+        // Assert
+        assertNotEquals(key("m", "[1, 2]"), key("m", "[2, 1]"));
+        assertNotEquals(key("m", "[1]"), key("m", "[\"1\"]"));
+        assertNotEquals(key("m", "[[]]"), key("m", "[{}]"));
+        assertNotEquals(key("m", "[]"), key("n", "[]"));
+        assertNotEquals(key("m", "[{\"a,b\": 1}]"), key("m", "[{\"a\": 1, \"b\": 1}]"));
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.client;
+
+import org.junit.Test;
+
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ *
+ * @author zmiller
+ */
+public class FlowControlTest {
+
+    private static final long TIMEOUT = 5000;
+
+    private final WheelTimer timer = new WheelTimer("flow-control-test", 1, TimeUnit.MILLISECONDS, 64);
+
+    /**
+     * Windows are shared per queue, so every test gets a queue of its own on a host that is never connected.
+     */
+    private static FlowControl flowControl(int limit, OverflowPolicy policy) {
+        FlowControl flowControl = FlowControl.forQueue("flow-control-test", UUID.randomUUID().toString());
+        flowControl.configure(limit, policy);
+        return flowControl;
+    }
+
+    @Test
+    public void flowControl_Off_ShouldAdmitEverything() {
+        FlowControl flowControl = flowControl(1, null);
+
+        // Assert
+        for(int i = 0; i < 10; i++) {
+            assertTrue(flowControl.admit(TIMEOUT, timer).isDone());
+        }
+    }
+
+    @Test
+    public void flowControl_FailFast_ShouldRejectWhenFull() throws Exception {
+        FlowControl flowControl = flowControl(2, OverflowPolicy.FAIL_FAST);
+
+        // Test
+        FlowControl.Ticket first = flowControl.admit(TIMEOUT, timer).get();
+        flowControl.admit(TIMEOUT, timer).get();
+        CompletableFuture<FlowControl.Ticket> rejected = flowControl.admit(TIMEOUT, timer);
+
+        // Assert
+        assertRejected(rejected);
+
+        // Test
+        first.release();
+        first.release();
+
+        // Assert: a ticket frees one permit however often it is released
+        assertTrue(flowControl.admit(TIMEOUT, timer).isDone());
+        assertRejected(flowControl.admit(TIMEOUT, timer));
+    }
+
+    @Test
+    public void flowControl_Block_ShouldAdmitInOrderWithoutBlocking() throws Exception {
+        FlowControl flowControl = flowControl(1, OverflowPolicy.BLOCK);
+
+        // Test
+        FlowControl.Ticket first = flowControl.admit(TIMEOUT, timer).get();
+        CompletableFuture<FlowControl.Ticket> second = flowControl.admit(TIMEOUT, timer);
+        CompletableFuture<FlowControl.Ticket> third = flowControl.admit(TIMEOUT, timer);
+
+        // Assert
+        assertFalse(second.isDone());
+        assertFalse(third.isDone());
+
+        // Test
+        first.release();
+
+        // Assert
+        assertTrue(second.isDone());
+        assertFalse(third.isDone());
+
+        // Test
+        second.get().release();
+
+        // Assert
+        assertTrue(third.isDone());
+    }
+
+    @Test
+    public void flowControl_Block_ShouldFailOnceTheTimeoutElapses() throws Exception {
+        FlowControl flowControl = flowControl(1, OverflowPolicy.BLOCK);
+
+        // Test
+        FlowControl.Ticket first = flowControl.admit(TIMEOUT, timer).get();
+        CompletableFuture<FlowControl.Ticket> expired = flowControl.admit(20, timer);
+
+        // Assert
+        try {
+            expired.get(TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("Expected the admission to expire");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ClientException);
+        }
+
+        // Test
+        first.release();
+
+        // Assert: the expired admission didn't take the permit
+        assertTrue(flowControl.admit(TIMEOUT, timer).isDone());
+    }
+
+    @Test
+    public void flowControl_Shed_ShouldGiveUpOnTheOldestCall() throws Exception {
+        FlowControl flowControl = flowControl(2, OverflowPolicy.SHED);
+        AtomicInteger shed = new AtomicInteger();
+        CompletableFuture<Void> oldest = new CompletableFuture<>();
+        CompletableFuture<Void> newest = new CompletableFuture<>();
+
+        // Test
+        flowControl.admit(TIMEOUT, timer).get().track(oldest, () -> shed.addAndGet(1));
+        flowControl.admit(TIMEOUT, timer).get().track(newest, () -> shed.addAndGet(10));
+        CompletableFuture<FlowControl.Ticket> admitted = flowControl.admit(TIMEOUT, timer);
+
+        // Assert
+        assertTrue(admitted.isDone());
+        assertEquals(1, shed.get());
+    }
+
+    @Test
+    public void flowControl_Shed_ShouldSkipSettledCalls() throws Exception {
+        FlowControl flowControl = flowControl(1, OverflowPolicy.SHED);
+        AtomicInteger shed = new AtomicInteger();
+        CompletableFuture<Void> settled = new CompletableFuture<>();
+
+        // Test
+        flowControl.admit(TIMEOUT, timer).get().track(settled, shed::incrementAndGet);
+        settled.complete(null);
+        FlowControl.Ticket untracked = flowControl.admit(TIMEOUT, timer).get();
+
+        // Assert: nothing is left to shed
+        assertEquals(0, shed.get());
+        assertRejected(flowControl.admit(TIMEOUT, timer));
+
+        // Test
+        untracked.release();
+
+        // Assert
+        assertTrue(flowControl.admit(TIMEOUT, timer).isDone());
+    }
+
+    @Test
+    public void flowControl_ShrunkWindow_ShouldWaitForCallsInFlight() throws Exception {
+        FlowControl flowControl = flowControl(2, OverflowPolicy.FAIL_FAST);
+
+        // Test
+        FlowControl.Ticket first = flowControl.admit(TIMEOUT, timer).get();
+        FlowControl.Ticket second = flowControl.admit(TIMEOUT, timer).get();
+        flowControl.configure(1, OverflowPolicy.FAIL_FAST);
+        first.release();
+
+        // Assert
+        assertRejected(flowControl.admit(TIMEOUT, timer));
+
+        // Test
+        second.release();
+
+        // Assert
+        assertTrue(flowControl.admit(TIMEOUT, timer).isDone());
+    }
+
+    private static void assertRejected(CompletableFuture<FlowControl.Ticket> admission) throws InterruptedException {
+        assertTrue(admission.isDone());
+        try {
+            admission.get();
+            fail("Expected the admission to be rejected");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ClientException);
+        }
+    }
+}
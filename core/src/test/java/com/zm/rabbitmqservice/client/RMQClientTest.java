@@ -0,0 +1,587 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.client;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.zm.rabbitmqservice.RMQConnectionFactory;
+import com.zm.rabbitmqservice.codec.Compression;
+import com.zm.rabbitmqservice.metrics.InMemoryMetrics;
+import com.zm.rabbitmqservice.service.RMQApplication;
+import com.zm.rabbitmqservice.service.RMQApplicationConfig;
+import com.zm.rabbitmqservice.service.ServiceException;
+import com.zm.rabbitmqservice.service.ServiceUnavailableException;
+import com.zm.rabbitmqservice.stubs.InProcessBroker;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Calls a service started with RMQApplication through the in-process broker.
+ *
+ * @author zmiller
+ */
+public class RMQClientTest {
+
+    private static final Gson gson = new Gson();
+    private static final AtomicInteger hosts = new AtomicInteger();
+    private static final String QUEUE = "test";
+
+    public interface Api {
+        String echo(String text, int times);
+        String fail(String message) throws IOException;
+        String hold(String text) throws InterruptedException;
+        void record(String text);
+        boolean gather() throws InterruptedException;
+        boolean virtual() throws ReflectiveOperationException;
+    }
+
+    public static class Service implements Api {
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch release = new CountDownLatch(1);
+        final BlockingQueue<String> recorded = new LinkedBlockingQueue<>();
+        final CountDownLatch gathered = new CountDownLatch(4);
+
+        @Override
+        public String echo(String text, int times) {
+            calls.incrementAndGet();
+            return text + times;
+        }
+
+        @Override
+        public String fail(String message) throws IOException {
+            throw new IOException(message);
+        }
+
+        @Override
+        public String hold(String text) throws InterruptedException {
+            release.await(5, TimeUnit.SECONDS);
+            return text;
+        }
+
+        @Override
+        public void record(String text) {
+            recorded.add(text);
+        }
+
+        @Override
+        public boolean gather() throws InterruptedException {
+            gathered.countDown();
+            return gathered.await(500, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public boolean virtual() throws ReflectiveOperationException {
+            return virtualThreads() && (boolean) Thread.class.getMethod("isVirtual").invoke(Thread.currentThread());
+        }
+    }
+
+    /**
+     * @return true if the JVM supports virtual threads
+     */
+    static boolean virtualThreads() {
+        try {
+            Thread.class.getMethod("isVirtual");
+            return true;
+        }
+        catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private final List<RMQClient> clients = new ArrayList<>();
+    private String host;
+    private InProcessBroker broker;
+
+    /**
+     * Start the service on a host of its own and create a client of it.
+     */
+    RMQClient start(Service service, RMQApplicationConfig config) throws Exception {
+        host = "client-test-" + hosts.incrementAndGet();
+        broker = new InProcessBroker();
+        RMQConnectionFactory.setConnectionFactory(host, broker);
+        RMQApplication.start(host, QUEUE, service, Api.class, config);
+        broker.awaitConsumer(QUEUE, 5, TimeUnit.SECONDS);
+        return client();
+    }
+
+    /**
+     * @return another client of the service that was started last
+     */
+    RMQClient client() {
+        RMQClient client = new RMQClient(host, QUEUE);
+        clients.add(client);
+        return client;
+    }
+
+    static JsonArray params(Object... params) {
+        JsonArray array = new JsonArray();
+        for(Object param : params) {
+            array.add(gson.toJsonTree(param));
+        }
+
+        return array;
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for(RMQClient client : clients) {
+            client.close();
+        }
+    }
+
+    @Test
+    public void call_Reply_ShouldReturnResult() throws Throwable {
+        Service service = new Service();
+        RMQClient client = start(service, new RMQApplicationConfig());
+
+        // Test
+        String result = client.call("echo", params("a", 1), String.class);
+
+        // Assert
+        assertEquals("a1", result);
+        assertEquals(1, service.calls.get());
+    }
+
+    @Test
+    public void call_ServiceError_ShouldBeThrown() throws Throwable {
+        RMQClient client = start(new Service(), new RMQApplicationConfig());
+
+        // Test
+        try {
+            client.call("fail", params("declared"), String.class);
+            fail("Expected the service's error");
+        }
+        catch (IOException e) {
+
+            // Assert
+            assertEquals("declared", e.getMessage());
+        }
+    }
+
+    @Test
+    public void call_ConcurrentCallers_ShouldEachGetTheirOwnReply() throws Throwable {
+        RMQApplicationConfig config = new RMQApplicationConfig();
+        config.setPrefetch(8);
+        config.setWorkers(4);
+        RMQClient first = start(new Service(), config);
+        RMQClient second = client();
+
+        // Test: every caller shares the host's reply consumer
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        List<CompletableFuture<Void>> callers = new ArrayList<>();
+        for(int t = 0; t < 8; t++) {
+            RMQClient client = t % 2 == 0 ? first : second;
+            String text = "caller" + t + "-";
+            callers.add(CompletableFuture.runAsync(() -> {
+                for(int i = 0; i < 50; i++) {
+                    try {
+
+                        // Assert
+                        assertEquals(text + i, client.call("echo", params(text, i), String.class));
+                    }
+                    catch (Throwable e) {
+                        throw new AssertionError(e);
+                    }
+                }
+            }, threads));
+        }
+
+        CompletableFuture.allOf(callers.toArray(new CompletableFuture<?>[0])).get(30, TimeUnit.SECONDS);
+        threads.shutdown();
+    }
+
+    @Test
+    public void callAsync_PendingReply_ShouldNotBlockTheCaller() throws Exception {
+        Service service = new Service();
+        RMQClient client = start(service, new RMQApplicationConfig());
+
+        // Test
+        CompletableFuture<String> held = client.callAsync("hold", params("held"), String.class);
+        Thread.sleep(50);
+
+        // Assert
+        assertFalse(held.isDone());
+        service.release.countDown();
+        assertEquals("held", held.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void callAsync_ManyCalls_ShouldAllComplete() throws Exception {
+        RMQApplicationConfig config = new RMQApplicationConfig();
+        config.setPrefetch(16);
+        config.setWorkers(4);
+        RMQClient client = start(new Service(), config);
+
+        // Test
+        List<CompletableFuture<String>> calls = new ArrayList<>();
+        for(int i = 0; i < 200; i++) {
+            calls.add(client.callAsync("echo", params("a", i), String.class));
+        }
+
+        // Assert
+        for(int i = 0; i < calls.size(); i++) {
+            assertEquals("a" + i, calls.get(i).get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void callAsync_ServiceError_ShouldCompleteExceptionally() throws Exception {
+        RMQClient client = start(new Service(), new RMQApplicationConfig());
+
+        // Test
+        CompletableFuture<String> failed = client.callAsync("fail", params("declared"), String.class);
+
+        // Assert
+        try {
+            failed.get(5, TimeUnit.SECONDS);
+            fail("Expected the service's error");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+            assertEquals("declared", e.getCause().getMessage());
+        }
+    }
+
+    @Test
+    public void callAsync_NoReplyInTime_ShouldTimeOut() throws Exception {
+        Service service = new Service();
+        RMQClient client = start(service, new RMQApplicationConfig());
+        client.setClientTimeout(100);
+
+        // Test
+        long start = System.nanoTime();
+        CompletableFuture<String> held = client.callAsync("hold", params("held"), String.class);
+
+        // Assert
+        try {
+            held.get(5, TimeUnit.SECONDS);
+            fail("Expected the call to time out");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof ServiceUnavailableException);
+            assertEquals(ServiceUnavailableException.Status.IN_QUEUE,
+                    ((ServiceUnavailableException) e.getCause()).getStatus());
+            assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+        }
+        finally {
+            service.release.countDown();
+        }
+    }
+
+    @Test
+    public void call_NoReplyInTime_ShouldThrowServiceUnavailable() throws Throwable {
+        Service service = new Service();
+        RMQClient client = start(service, new RMQApplicationConfig());
+        client.setClientTimeout(100);
+        client.setMessageExpiry(100);
+
+        // Test
+        try {
+            client.call("hold", params("held"), String.class);
+            fail("Expected the call to time out");
+        }
+        catch (ServiceUnavailableException e) {
+
+            // Assert
+            assertEquals(ServiceUnavailableException.Status.EXPIRED, e.getStatus());
+        }
+        finally {
+            service.release.countDown();
+        }
+    }
+
+    @Test
+    public void send_Notification_ShouldInvokeWithoutReply() throws Throwable {
+        Service service = new Service();
+        RMQClient client = start(service, new RMQApplicationConfig());
+
+        // Test
+        client.send("record", params("first"));
+        client.sendAsync("record", params("second")).get(5, TimeUnit.SECONDS);
+        String result = client.call("echo", params("a", 1), String.class);
+
+        // Assert: requests are handled in order, so both notifications were handled before the call
+        assertEquals("a1", result);
+        assertEquals("first", service.recorded.poll());
+        assertEquals("second", service.recorded.poll());
+        assertEquals(3, broker.getPublished(QUEUE));
+        assertEquals(1, broker.getReplies());
+    }
+
+    @Test
+    public void sendAsync_PublisherConfirms_ShouldCompleteOnceConfirmed() throws Exception {
+        Service service = new Service();
+        RMQClient client = start(service, new RMQApplicationConfig());
+        client.setPublisherConfirms(true);
+
+        // Test
+        CompletableFuture<Void> sent = client.sendAsync("record", params("confirmed"));
+
+        // Assert
+        sent.get(5, TimeUnit.SECONDS);
+        assertEquals("confirmed", service.recorded.poll(5, TimeUnit.SECONDS));
+        assertEquals(0, broker.getReplies());
+    }
+
+    private List<Boolean> gather(RMQClient client) throws Exception {
+        List<CompletableFuture<Boolean>> calls = new ArrayList<>();
+        for(int i = 0; i < 4; i++) {
+            calls.add(client.callAsync("gather", params(), Boolean.class));
+        }
+
+        List<Boolean> gathered = new ArrayList<>();
+        for(CompletableFuture<Boolean> call : calls) {
+            gathered.add(call.get(10, TimeUnit.SECONDS));
+        }
+
+        return gathered;
+    }
+
+    @Test
+    public void workers_PrefetchedRequests_ShouldRunConcurrently() throws Exception {
+        RMQApplicationConfig config = new RMQApplicationConfig();
+        config.setPrefetch(4);
+        config.setWorkers(4);
+        RMQClient client = start(new Service(), config);
+
+        // Test: each call only returns true once all four are in the method at the same time
+        List<Boolean> gathered = gather(client);
+
+        // Assert
+        assertEquals(Arrays.asList(true, true, true, true), gathered);
+    }
+
+    @Test
+    public void workers_Ordered_ShouldRunOneAtATime() throws Exception {
+        RMQApplicationConfig config = new RMQApplicationConfig();
+        config.setPrefetch(4);
+        config.setWorkers(4);
+        config.setOrdered(true);
+        Service service = new Service();
+        RMQClient client = start(service, config);
+        client.setClientTimeout(10000);
+
+        // Test
+        for(int i = 0; i < 20; i++) {
+            client.sendAsync("record", params(String.valueOf(i)));
+        }
+
+        List<Boolean> gathered = gather(client);
+
+        // Assert
+        assertEquals(Arrays.asList(false, false, false, true), gathered);
+        for(int i = 0; i < 20; i++) {
+            assertEquals(String.valueOf(i), service.recorded.poll());
+        }
+    }
+
+    @Test
+    public void virtualThreads_ShouldInvokeOnVirtualThreadsWhenSupported() throws Throwable {
+        RMQApplicationConfig config = new RMQApplicationConfig();
+        config.setPrefetch(4);
+        config.setWorkers(4);
+        config.setVirtualThreads(true);
+        RMQClient client = start(new Service(), config);
+
+        // Test
+        boolean virtual = client.call("virtual", params(), Boolean.class);
+        List<Boolean> gathered = gather(client);
+
+        // Assert: older JVMs fall back to the platform workers, which still run the requests concurrently
+        assertEquals(virtualThreads(), virtual);
+        assertEquals(Arrays.asList(true, true, true, true), gathered);
+    }
+
+    @Test
+    public void coalescing_CallsWithinWindow_ShouldShareOneMessage() throws Exception {
+        Service service = new Service();
+        RMQClient client = start(service, new RMQApplicationConfig());
+        client.setCoalescing(1, TimeUnit.SECONDS, 10);
+
+        // Test: the tenth call fills the batch, which is sent right away
+        List<CompletableFuture<String>> calls = new ArrayList<>();
+        for(int i = 0; i < 9; i++) {
+            calls.add(client.callAsync("echo", params("a", i), String.class));
+        }
+
+        CompletableFuture<String> failed = client.callAsync("fail", params("declared"), String.class);
+
+        // Assert
+        for(int i = 0; i < calls.size(); i++) {
+            assertEquals("a" + i, calls.get(i).get(5, TimeUnit.SECONDS));
+        }
+
+        try {
+            failed.get(5, TimeUnit.SECONDS);
+            fail("Expected the service's error");
+        }
+        catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+
+        assertEquals(1, broker.getPublished(QUEUE));
+        assertEquals(9, service.calls.get());
+    }
+
+    @Test
+    public void coalescing_LoneCall_ShouldBeSentOnceTheWindowCloses() throws Exception {
+        RMQClient client = start(new Service(), new RMQApplicationConfig());
+        client.setCoalescing(20, TimeUnit.MILLISECONDS, 10);
+
+        // Test
+        long start = System.nanoTime();
+        String result = client.callAsync("echo", params("a", 1), String.class).get(5, TimeUnit.SECONDS);
+
+        // Assert
+        assertEquals("a1", result);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(1, broker.getPublished(QUEUE));
+    }
+
+    /**
+     * Wait for metrics recorded after the caller got its result
+     */
+    private static void eventually(String message, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while(!condition.getAsBoolean()) {
+            if(System.nanoTime() - deadline > 0) {
+                fail(message);
+            }
+
+            Thread.sleep(5);
+        }
+    }
+
+    @Test
+    public void metrics_Calls_ShouldBeRecordedByClientAndService() throws Throwable {
+        InMemoryMetrics serviceMetrics = new InMemoryMetrics();
+        RMQApplicationConfig config = new RMQApplicationConfig();
+        config.setMetrics(serviceMetrics);
+        Service service = new Service();
+        RMQClient client = start(service, config);
+        InMemoryMetrics clientMetrics = new InMemoryMetrics();
+        client.setMetrics(clientMetrics);
+        client.cacheResults("echo", 1, TimeUnit.MINUTES);
+
+        // Test
+        client.call("echo", params("a", 1), String.class);
+        client.call("echo", params("a", 2), String.class);
+        client.call("echo", params("a", 1), String.class);
+        client.callAsync("missing", params(), String.class).exceptionally(e -> null).get(5, TimeUnit.SECONDS);
+        client.setClientTimeout(50);
+        client.callAsync("hold", params("held"), String.class).exceptionally(e -> null).get(5, TimeUnit.SECONDS);
+        service.release.countDown();
+
+        // Assert
+        eventually("client metrics", () -> clientMetrics.getTimeouts(ServiceUnavailableException.Status.IN_QUEUE) == 1
+                && clientMetrics.getCallLatency("missing").getCount() == 1);
+        assertEquals(0, clientMetrics.getCallsInFlight());
+        assertEquals(2, clientMetrics.getCallLatency("echo").getCount());
+        assertEquals(1, clientMetrics.getResultCacheHits("echo"));
+        eventually("service metrics", () -> serviceMetrics.getInvocationsInFlight() == 0
+                && serviceMetrics.getInvocationTime("hold").getCount() == 1);
+        assertEquals(2, serviceMetrics.getInvocationTime("echo").getCount());
+        assertEquals(1, serviceMetrics.getErrors(ServiceException.Code.NOT_FOUND));
+        assertTrue(serviceMetrics.getParseTime().getCount() >= 4);
+        assertEquals(2, service.calls.get());
+    }
+
+    private static String text(int length) {
+        StringBuilder text = new StringBuilder(length);
+        while(text.length() < length) {
+            text.append("abcdefgh");
+        }
+
+        return text.substring(0, length);
+    }
+
+    @Test
+    public void compression_LargeCall_ShouldRoundTripCompressed() throws Throwable {
+        RMQApplicationConfig config = new RMQApplicationConfig();
+        config.setCompressionThreshold(100);
+        RMQClient client = start(new Service(), config);
+        client.setCompression(Compression.GZIP, 100);
+        String large = text(10000);
+
+        // Test
+        String result = client.call("echo", params(large, 1), String.class);
+        String small = client.call("echo", params("a", 2), String.class);
+
+        // Assert
+        assertEquals(large + "1", result);
+        assertEquals("a2", small);
+    }
+
+    @Test
+    public void compression_ReplyOverMaxSize_ShouldFailTheCall() throws Throwable {
+        RMQApplicationConfig config = new RMQApplicationConfig();
+        config.setCompressionThreshold(100);
+        RMQClient client = start(new Service(), config);
+        client.setCompression(Compression.DEFLATE, 100);
+        client.setMaxReplySize(1000);
+
+        // Test
+        try {
+            client.call("echo", params(text(10000), 1), String.class);
+            fail("Expected the reply to be rejected");
+        }
+        catch (ClientException e) {
+
+            // Assert: the client still works for replies within the limit
+            assertEquals("a1", client.call("echo", params("a", 1), String.class));
+        }
+    }
+
+    @Test
+    public void publisherConfirms_ClientAndService_ShouldCompleteCalls() throws Throwable {
+        RMQApplicationConfig config = new RMQApplicationConfig();
+        config.setPublisherConfirms(true);
+        RMQClient client = start(new Service(), config);
+        client.setPublisherConfirms(true);
+
+        // Test
+        List<CompletableFuture<String>> calls = new ArrayList<>();
+        for(int i = 0; i < 20; i++) {
+            calls.add(client.callAsync("echo", params("a", i), String.class));
+        }
+
+        // Assert
+        for(int i = 0; i < 20; i++) {
+            assertEquals("a" + i, calls.get(i).get(5, TimeUnit.SECONDS));
+        }
+    }
+}
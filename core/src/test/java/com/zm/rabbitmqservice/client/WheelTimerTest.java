@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.client;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author zmiller
+ */
+public class WheelTimerTest {
+
+    // A small wheel, so most delays take several rounds
+    private final WheelTimer timer = new WheelTimer("wheel-timer-test", 1, TimeUnit.MILLISECONDS, 8);
+
+    @Test
+    public void wheelTimer_ScheduledTasks_ShouldFireAfterTheirDelay() throws InterruptedException {
+        int tasks = 50;
+        long[] scheduled = new long[tasks];
+        long[] delays = new long[tasks];
+        AtomicLongArray fired = new AtomicLongArray(tasks);
+        CountDownLatch done = new CountDownLatch(tasks);
+
+        // Test
+        for(int i = 0; i < tasks; i++) {
+            final int task = i;
+            delays[i] = (i * 7) % 40;
+            scheduled[i] = System.nanoTime();
+            timer.schedule(() -> {
+                fired.set(task, System.nanoTime());
+                done.countDown();
+            }, delays[i], TimeUnit.MILLISECONDS);
+        }
+
+        // Assert
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for(int i = 0; i < tasks; i++) {
+            long elapsed = fired.get(i) - scheduled[i];
+            assertTrue("Task " + i + " fired after " + elapsed + "ns instead of " + delays[i] + "ms",
+                    elapsed >= TimeUnit.MILLISECONDS.toNanos(delays[i]));
+        }
+    }
+
+    @Test
+    public void wheelTimer_CancelledTask_ShouldNotFire() throws InterruptedException {
+        AtomicBoolean fired = new AtomicBoolean();
+        CountDownLatch later = new CountDownLatch(1);
+
+        // Test
+        WheelTimer.Timeout timeout = timer.schedule(() -> fired.set(true), 20, TimeUnit.MILLISECONDS);
+        boolean cancelled = timeout.cancel();
+        timer.schedule(later::countDown, 60, TimeUnit.MILLISECONDS);
+
+        // Assert
+        assertTrue(cancelled);
+        assertFalse(timeout.cancel());
+        assertTrue(later.await(5, TimeUnit.SECONDS));
+        assertFalse(fired.get());
+    }
+
+    @Test
+    public void wheelTimer_FiredTask_ShouldNotCancel() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+
+        // Test
+        WheelTimer.Timeout timeout = timer.schedule(done::countDown, 1, TimeUnit.MILLISECONDS);
+
+        // Assert
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertFalse(timeout.cancel());
+    }
+
+    @Test
+    public void wheelTimer_FailingTask_ShouldNotStopTheTimer() throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+
+        // Test
+        timer.schedule(() -> {
+            throw new IllegalStateException("Expected by the test");
+        }, 1, TimeUnit.MILLISECONDS);
+        timer.schedule(done::countDown, 5, TimeUnit.MILLISECONDS);
+
+        // Assert
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.codec;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.zm.rabbitmqservice.RPCRequest;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ *
+ * @author zmiller
+ */
+public class CborCodecTest {
+
+    private final CborCodec codec = new CborCodec();
+
+    @Test
+    public void cborCodec_Request_ShouldRoundTrip() throws IOException {
+
+        // Test
+        RPCRequest request = new RPCRequest();
+        request.id = "abc";
+        request.method = "stringWithParams";
+        request.params = new JsonParser().parse("[\"é ✓\", 42, -7, 1.5, true, null, [1, [2]], {\"a\": {\"b\": []}}]")
+                .getAsJsonArray();
+        RPCRequest decoded = codec.decode(codec.encode(request, RPCRequest.class), RPCRequest.class);
+
+        // Assert
+        assertEquals(request.id, decoded.id);
+        assertEquals(request.method, decoded.method);
+        assertEquals(request.jsonrpc, decoded.jsonrpc);
+        assertEquals(request.params, decoded.params);
+    }
+
+    @Test
+    public void cborCodec_IntegerBoundaries_ShouldRoundTrip() throws IOException {
+        long[] values = {0, 23, 24, 255, 256, 65535, 65536, 4294967295L, 4294967296L, Long.MAX_VALUE,
+                -1, -24, -25, -256, -257, -65537, Long.MIN_VALUE};
+
+        for(long value : values) {
+
+            // Test
+            long decoded = codec.decode(codec.encode(value, Long.class), Long.class);
+
+            // Assert
+            assertEquals(value, decoded);
+        }
+    }
+
+    @Test
+    public void cborCodec_SmallValues_ShouldUseShortestEncoding() throws IOException {
+
+        // Assert
+        assertArrayEquals(new byte[] {0x01}, codec.encode(1, Integer.class));
+        assertArrayEquals(new byte[] {0x18, 0x64}, codec.encode(100, Integer.class));
+        assertArrayEquals(new byte[] {0x20}, codec.encode(-1, Integer.class));
+        assertArrayEquals(new byte[] {(byte) 0xf5}, codec.encode(true, Boolean.class));
+        assertArrayEquals(new byte[] {0x61, 0x61}, codec.encode("a", String.class));
+        assertArrayEquals(new byte[] {(byte) 0xf6}, codec.encode(null, Object.class));
+    }
+
+    @Test
+    public void cborCodec_Doubles_ShouldOnlyNarrowWhenExact() throws IOException {
+
+        // Test
+        byte[] single = codec.encode(1.5, Double.class);
+        byte[] full = codec.encode(0.1, Double.class);
+
+        // Assert
+        assertEquals(5, single.length);
+        assertEquals(9, full.length);
+        assertEquals(1.5, codec.<Double>decode(single, Double.class), 0);
+        assertEquals(0.1, codec.<Double>decode(full, Double.class), 0);
+    }
+
+    @Test
+    public void cborCodec_IndefiniteLengthItems_ShouldDecode() throws IOException {
+
+        // Test
+        byte[] array = {(byte) 0x9f, 0x01, (byte) 0x82, 0x02, 0x03, (byte) 0xff};
+        byte[] map = {(byte) 0xbf, 0x61, 0x61, 0x01, (byte) 0xff};
+        byte[] string = {0x7f, 0x61, 0x61, 0x62, 0x62, 0x63, (byte) 0xff};
+
+        // Assert
+        assertEquals(new JsonParser().parse("[1, [2, 3]]"), codec.decode(array, JsonElement.class));
+        assertEquals(new JsonParser().parse("{\"a\": 1}"), codec.decode(map, JsonElement.class));
+        assertEquals("abc", codec.decode(string, String.class));
+    }
+
+    @Test
+    public void cborCodec_HalfPrecision_ShouldDecode() throws IOException {
+
+        // Assert
+        assertEquals(1.0, codec.<Double>decode(new byte[] {(byte) 0xf9, 0x3c, 0x00}, Double.class), 0);
+        assertEquals(-2.0, codec.<Double>decode(new byte[] {(byte) 0xf9, (byte) 0xc0, 0x00}, Double.class), 0);
+    }
+
+    @Test
+    public void cborCodec_EmptyBody_ShouldDecodeToNull() throws IOException {
+
+        // Assert
+        assertNull(codec.decode(new byte[0], RPCRequest.class));
+    }
+
+    @Test
+    public void cborCodec_TruncatedBody_ShouldFail() throws IOException {
+        JsonObject value = new JsonObject();
+        value.addProperty("method", "stringWithParams");
+        value.addProperty("id", 4294967296L);
+        value.addProperty("ratio", 0.1);
+        JsonArray params = new JsonArray();
+        params.add("abc");
+        params.add(1.5);
+        value.add("params", params);
+        byte[] body = codec.encode(value, JsonObject.class);
+
+        // Every prefix of a definite length item is missing bytes
+        for(int length = 1; length < body.length; length++) {
+            assertMalformed(Arrays.copyOf(body, length));
+        }
+    }
+
+    @Test
+    public void cborCodec_MalformedBody_ShouldFail() {
+
+        // Trailing bytes
+        assertMalformed(new byte[] {0x01, 0x02});
+
+        // Length beyond the message
+        assertMalformed(new byte[] {0x5a, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff});
+        assertMalformed(new byte[] {(byte) 0x9b, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff,
+                (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff});
+
+        // Reserved additional information
+        assertMalformed(new byte[] {0x1c});
+
+        // Unsupported simple value
+        assertMalformed(new byte[] {(byte) 0xe0});
+
+        // Chunk of another major type in an indefinite string
+        assertMalformed(new byte[] {0x7f, 0x41, 0x61, (byte) 0xff});
+
+        // Unterminated indefinite array
+        assertMalformed(new byte[] {(byte) 0x9f, 0x01});
+    }
+
+    @Test
+    public void cborCodec_DeeplyNestedBody_ShouldFail() {
+        byte[] body = new byte[1001];
+        Arrays.fill(body, (byte) 0x81);
+        body[1000] = 0x01;
+
+        // Assert
+        assertMalformed(body);
+    }
+
+    private void assertMalformed(byte[] body) {
+        try {
+            codec.decode(body, JsonElement.class);
+            fail("Expected " + Arrays.toString(body) + " to be rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
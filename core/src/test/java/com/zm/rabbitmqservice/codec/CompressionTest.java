@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.codec;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ *
+ * @author zmiller
+ */
+public class CompressionTest {
+
+    private static byte[] text(int size) {
+        StringBuilder text = new StringBuilder(size);
+        while(text.length() < size) {
+            text.append("{\"jsonrpc\": \"2.0\", \"id\": \"").append(text.length()).append("\"}");
+        }
+
+        return text.substring(0, size).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void compression_Body_ShouldRoundTrip() throws IOException {
+        byte[] body = text(10000);
+
+        for(Compression compression : Compression.values()) {
+
+            // Test
+            byte[] compressed = compression.compress(body);
+
+            // Assert
+            assertTrue(compression + " compressed to " + compressed.length, compressed.length < body.length / 2);
+            assertArrayEquals(body, compression.decompress(compressed, body.length));
+            assertArrayEquals(body, Compression.decode(compressed, compression.getContentEncoding(), body.length));
+        }
+    }
+
+    @Test
+    public void compression_EmptyBody_ShouldRoundTrip() throws IOException {
+        for(Compression compression : Compression.values()) {
+
+            // Test
+            byte[] compressed = compression.compress(new byte[0]);
+
+            // Assert
+            assertEquals(0, compression.decompress(compressed, 0).length);
+        }
+    }
+
+    @Test
+    public void compression_BodyOverMaxSize_ShouldFail() throws IOException {
+        byte[] body = text(10000);
+
+        for(Compression compression : Compression.values()) {
+            byte[] compressed = compression.compress(body);
+
+            // Test
+            try {
+                compression.decompress(compressed, body.length - 1);
+                fail(compression + " should have failed");
+            }
+            catch (IOException e) {
+
+                // Assert
+                assertTrue(e.getMessage(), e.getMessage().contains(String.valueOf(body.length - 1)));
+            }
+        }
+    }
+
+    @Test
+    public void compression_Bomb_ShouldStopAtMaxSize() throws IOException {
+
+        // 64 MB of zeros compress to a few kilobytes
+        byte[] zeros = new byte[64 * 1024 * 1024];
+        byte[] bomb = Compression.GZIP.compress(zeros);
+
+        // Test
+        try {
+            Compression.GZIP.decompress(bomb, 1024 * 1024);
+            fail("The bomb should have been stopped");
+        }
+        catch (IOException e) {
+
+            // Assert
+            assertTrue(bomb.length < 1024 * 1024);
+        }
+    }
+
+    @Test
+    public void compression_CorruptBody_ShouldFail() throws IOException {
+        byte[] body = Compression.GZIP.compress(text(1000));
+        byte[] corrupt = Arrays.copyOf(body, body.length / 2);
+
+        // Test
+        try {
+            Compression.GZIP.decompress(corrupt, 1000);
+            fail("A truncated body should fail");
+        }
+        catch (IOException e) {
+            // Expected
+        }
+
+        try {
+            Compression.DEFLATE.decompress(text(100), 1000);
+            fail("A body that isn't compressed should fail");
+        }
+        catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void compression_Decode_ShouldHonorContentEncoding() throws IOException {
+        byte[] body = text(100);
+
+        // Test
+        try {
+            Compression.decode(body, "br", 1000);
+            fail("Unknown encodings should fail");
+        }
+        catch (IOException e) {
+            // Expected
+        }
+
+        // Assert
+        assertSame(body, Compression.decode(body, null, 1));
+        assertSame(Compression.GZIP, Compression.forContentEncoding(" GZip "));
+        assertSame(Compression.DEFLATE, Compression.forContentEncoding("deflate"));
+        assertNull(Compression.forContentEncoding("identity"));
+        assertNull(Compression.forContentEncoding(null));
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author zmiller
+ */
+public class HistogramTest {
+
+    @Test
+    public void histogram_NothingRecorded_ShouldReportZero() {
+        Histogram histogram = new Histogram();
+
+        // Assert
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getMean(), 0);
+        assertEquals(0, histogram.getValueAtPercentile(99));
+    }
+
+    @Test
+    public void histogram_SmallValues_ShouldBeExact() {
+        Histogram histogram = new Histogram();
+
+        // Test
+        for(int value = 1; value <= 20; value++) {
+            histogram.record(value);
+        }
+
+        // Assert
+        assertEquals(20, histogram.getCount());
+        assertEquals(10.5, histogram.getMean(), 0);
+        assertEquals(1, histogram.getValueAtPercentile(0));
+        assertEquals(10, histogram.getValueAtPercentile(50));
+        assertEquals(19, histogram.getValueAtPercentile(95));
+        assertEquals(20, histogram.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void histogram_LargeValues_ShouldBeWithinPrecision() {
+        Histogram histogram = new Histogram();
+
+        // Test
+        for(int value = 1; value <= 100000; value++) {
+            histogram.record(value);
+        }
+
+        // Assert
+        for(double percentile : new double[] {10, 50, 90, 99, 99.9}) {
+            long expected = (long) (percentile * 1000);
+            long reported = histogram.getValueAtPercentile(percentile);
+            assertTrue("p" + percentile + " was " + reported,
+                    reported >= expected && reported <= expected + expected / 32);
+        }
+
+        assertEquals(100000, histogram.getValueAtPercentile(100));
+        assertEquals(100000, histogram.getMax());
+    }
+
+    @Test
+    public void histogram_Percentile_ShouldNotExceedMax() {
+        Histogram histogram = new Histogram();
+
+        // Test
+        histogram.record(1000);
+
+        // Assert: 1000 shares its bucket with values up to 1007
+        assertEquals(1000, histogram.getValueAtPercentile(100));
+
+        // Test
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(-5);
+
+        // Assert
+        assertEquals(0, histogram.getValueAtPercentile(0));
+        assertEquals(1007, histogram.getValueAtPercentile(50));
+        assertEquals(Long.MAX_VALUE, histogram.getValueAtPercentile(100));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void histogram_PercentileOutOfRange_ShouldFail() {
+        new Histogram().getValueAtPercentile(101);
+    }
+}
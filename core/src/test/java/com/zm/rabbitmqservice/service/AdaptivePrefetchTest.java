@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.service;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ *
+ * @author zmiller
+ */
+public class AdaptivePrefetchTest {
+
+    /**
+     * Deliver a window of requests at once, then process and settle them instantly. The controller measures its
+     * interval with the real clock, so the workers stay idle for a while afterwards.
+     *
+     * @param waited - time every request waited for a worker
+     */
+    private static void process(AdaptivePrefetch prefetch, int requests, long waited) throws InterruptedException {
+        for(int i = 0; i < requests; i++) {
+            prefetch.delivered();
+        }
+
+        for(int i = 0; i < requests; i++) {
+            long started = prefetch.started(System.nanoTime() - waited);
+            prefetch.finished(started);
+            prefetch.settled();
+        }
+
+        Thread.sleep(10);
+    }
+
+    @Test
+    public void adaptivePrefetch_Initial_ShouldBeClamped() {
+
+        // Assert
+        assertEquals(10, new AdaptivePrefetch(2, 10, 50, 4).getPrefetch());
+        assertEquals(2, new AdaptivePrefetch(2, 10, 0, 4).getPrefetch());
+    }
+
+    @Test
+    public void adaptivePrefetch_TooFewCompletions_ShouldNotUpdate() throws InterruptedException {
+        AdaptivePrefetch prefetch = new AdaptivePrefetch(1, 100, 4, 4);
+
+        // Test
+        process(prefetch, 3, 0);
+
+        // Assert
+        assertEquals(0, prefetch.update());
+        assertEquals(4, prefetch.getPrefetch());
+    }
+
+    @Test
+    public void adaptivePrefetch_FullWindowAndIdleWorkers_ShouldGrowUpToMax() throws InterruptedException {
+        AdaptivePrefetch prefetch = new AdaptivePrefetch(1, 20, 4, 4);
+
+        // Test & Assert: at most doubles per update
+        process(prefetch, 4, 0);
+        assertEquals(8, prefetch.update());
+
+        process(prefetch, 8, 0);
+        assertEquals(16, prefetch.update());
+
+        process(prefetch, 16, 0);
+        assertEquals(20, prefetch.update());
+
+        process(prefetch, 20, 0);
+        assertEquals(0, prefetch.update());
+        assertEquals(20, prefetch.getPrefetch());
+    }
+
+    @Test
+    public void adaptivePrefetch_WindowNotFull_ShouldNotGrow() throws InterruptedException {
+        AdaptivePrefetch prefetch = new AdaptivePrefetch(1, 100, 8, 4);
+
+        // Test
+        process(prefetch, 4, 0);
+        process(prefetch, 4, 0);
+
+        // Assert
+        assertEquals(0, prefetch.update());
+        assertEquals(8, prefetch.getPrefetch());
+    }
+
+    @Test
+    public void adaptivePrefetch_WaitingDeliveries_ShouldShrinkDownToTheWorkers() throws InterruptedException {
+        AdaptivePrefetch prefetch = new AdaptivePrefetch(1, 100, 64, 4);
+        long waited = TimeUnit.SECONDS.toNanos(1);
+
+        // Test & Assert: at most halves per update
+        process(prefetch, 4, waited);
+        assertEquals(32, prefetch.update());
+
+        process(prefetch, 4, waited);
+        assertEquals(16, prefetch.update());
+
+        process(prefetch, 4, waited);
+        assertEquals(8, prefetch.update());
+
+        process(prefetch, 4, waited);
+        assertEquals(4, prefetch.update());
+
+        process(prefetch, 4, waited);
+        assertEquals(0, prefetch.update());
+        assertEquals(4, prefetch.getPrefetch());
+    }
+
+    @Test
+    public void adaptivePrefetch_WaitingDeliveries_ShouldNotShrinkBelowMin() throws InterruptedException {
+        AdaptivePrefetch prefetch = new AdaptivePrefetch(10, 100, 64, 4);
+        long waited = TimeUnit.SECONDS.toNanos(1);
+
+        // Test & Assert
+        process(prefetch, 4, waited);
+        assertEquals(32, prefetch.update());
+
+        process(prefetch, 4, waited);
+        assertEquals(16, prefetch.update());
+
+        process(prefetch, 4, waited);
+        assertEquals(10, prefetch.update());
+
+        process(prefetch, 4, waited);
+        assertEquals(0, prefetch.update());
+    }
+
+    @Test
+    public void adaptivePrefetch_NoExecutorLimit_ShouldTreatThePrefetchAsTheWorkers() throws InterruptedException {
+        AdaptivePrefetch prefetch = new AdaptivePrefetch(1, 100, 4, 0);
+
+        // Test: deliveries are processed as they arrive, so a full window grows
+        process(prefetch, 4, 0);
+
+        // Assert
+        assertEquals(8, prefetch.update());
+    }
+}
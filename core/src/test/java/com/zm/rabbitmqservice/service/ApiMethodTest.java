@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.service;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ *
+ * @author zmiller
+ */
+public class ApiMethodTest {
+
+    public static class App {
+        int calls;
+
+        public String concat(String text, int times, boolean upper) {
+            calls++;
+            return (upper ? text.toUpperCase() : text) + times;
+        }
+
+        public long square(long value) {
+            return value * value;
+        }
+
+        public void touch() {
+            calls++;
+        }
+
+        public static String version() {
+            return "1";
+        }
+
+        public String fail(String message) throws IOException {
+            throw new IOException(message);
+        }
+
+        public String crash() {
+            throw new IllegalStateException("crash");
+        }
+    }
+
+    /**
+     * Not public, so only reachable through the dispatch table's access override
+     */
+    static class Hidden {
+        public String greet() {
+            return "hi";
+        }
+    }
+
+    private final App app = new App();
+
+    private ApiMethod resolve(Object app, String name) {
+        for(Method method : app.getClass().getMethods()) {
+            if(method.getName().equals(name)) {
+                return ApiMethod.resolve(app, method);
+            }
+        }
+
+        throw new IllegalArgumentException(name);
+    }
+
+    @Test
+    public void apiMethod_Invoke_ShouldCallTheBoundApplication() throws Throwable {
+        ApiMethod method = resolve(app, "concat");
+
+        // Test
+        Object result = method.invoke(new Object[] {"a", 2, true});
+
+        // Assert
+        assertEquals("A2", result);
+        assertEquals(1, app.calls);
+        assertArrayEquals(new Class<?>[] {String.class, int.class, boolean.class}, method.getParameterTypes());
+    }
+
+    @Test
+    public void apiMethod_PrimitiveResult_ShouldBeBoxed() throws Throwable {
+
+        // Test
+        Object result = resolve(app, "square").invoke(new Object[] {3L});
+
+        // Assert
+        assertEquals(9L, result);
+    }
+
+    @Test
+    public void apiMethod_VoidAndStatic_ShouldBeInvoked() throws Throwable {
+
+        // Test
+        Object touched = resolve(app, "touch").invoke(new Object[0]);
+        Object version = resolve(app, "version").invoke(new Object[0]);
+        Object greeting = resolve(new Hidden(), "greet").invoke(new Object[0]);
+
+        // Assert
+        assertNull(touched);
+        assertEquals(1, app.calls);
+        assertEquals("1", version);
+        assertEquals("hi", greeting);
+    }
+
+    @Test
+    public void apiMethod_Exception_ShouldPropagateUnwrapped() throws Throwable {
+        ApiMethod fail = resolve(app, "fail");
+        ApiMethod crash = resolve(app, "crash");
+
+        // Test
+        try {
+            fail.invoke(new Object[] {"declared"});
+            fail("Expected the method's exception");
+        }
+        catch (IOException e) {
+
+            // Assert
+            assertEquals("declared", e.getMessage());
+            assertTrue(fail.declares(e));
+        }
+
+        try {
+            crash.invoke(new Object[0]);
+            fail("Expected the method's exception");
+        }
+        catch (IllegalStateException e) {
+
+            // Assert
+            assertFalse(crash.declares(e));
+        }
+    }
+
+    @Test
+    public void apiMethod_WrongArgumentType_ShouldFail() throws Throwable {
+        ApiMethod method = resolve(app, "square");
+
+        // Test
+        try {
+            method.invoke(new Object[] {"three"});
+            fail("Expected a class cast");
+        }
+        catch (ClassCastException e) {
+
+            // Assert
+            assertEquals(0, app.calls);
+        }
+
+        assertSame(Long.class, method.invoke(new Object[] {2L}).getClass());
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.service;
+
+import com.google.gson.JsonObject;
+import com.rabbitmq.client.AMQP;
+import com.zm.rabbitmqservice.RPCRequest;
+import com.zm.rabbitmqservice.RPCResponse;
+import com.zm.rabbitmqservice.codec.Compression;
+import com.zm.rabbitmqservice.metrics.InMemoryMetrics;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author zmiller
+ */
+public class AppConsumerTest extends ConsumerTest {
+
+    public static class DeadlineApi {
+        public long remaining() {
+            return RequestContext.current().getRemainingMillis();
+        }
+    }
+
+    public static class SlowApi {
+        public String sleep(int millis) throws InterruptedException {
+            Thread.sleep(millis);
+            return "slept";
+        }
+    }
+
+    public static class FailingApi {
+        public String fail(String message) throws IOException {
+            throw new IOException(message);
+        }
+
+        public String crash() {
+            throw new IllegalStateException("crash");
+        }
+    }
+
+    private final Api api = new Api();
+    private final AppConsumer<Api> consumer = consumer(api, Runnable::run, new RMQApplicationConfig());
+
+    @Test
+    public void appConsumer_NonStringMembers_ShouldReplyWithParseError() {
+
+        // Test
+        deliver(consumer, 1, "1", "{\"jsonrpc\": \"2.0\", \"id\": {}, \"method\": \"echo\", \"params\": [\"a\", 1]}");
+        deliver(consumer, 2, "2", "{\"jsonrpc\": [\"2.0\"], \"id\": \"2\", \"method\": \"echo\", \"params\": [\"a\", 1]}");
+        deliver(consumer, 3, "3", "{\"jsonrpc\": \"2.0\", \"id\": [\"3\"], \"method\": \"echo\", \"params\": [\"a\", 1]}");
+
+        // Assert
+        assertEquals(0, api.calls.get());
+        assertEquals(3, replies.size());
+        assertEquals("COULD_NOT_PARSE_REQUEST", errorReason(replies.get(0)));
+        assertEquals("COULD_NOT_PARSE_REQUEST", errorReason(replies.get(1)));
+        assertEquals("COULD_NOT_PARSE_REQUEST", errorReason(replies.get(2)));
+        assertEquals(Arrays.asList(1L, 2L, 3L), acked);
+    }
+
+    @Test
+    public void appConsumer_PassedDeadline_ShouldDropTheRequest() {
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        RMQApplicationConfig config = new RMQApplicationConfig();
+        config.setMetrics(metrics);
+        AppConsumer<Api> consumer = consumer(api, Runnable::run, config);
+
+        // Test
+        deliver(consumer, 1, "1", request("1", "echo", "[\"a\", 1]"),
+                Collections.singletonMap(RPCRequest.DEADLINE_HEADER, System.currentTimeMillis() - 1));
+
+        // Assert: acked without executing or replying
+        assertEquals(0, api.calls.get());
+        assertTrue(replies.isEmpty());
+        assertEquals(Collections.singletonList(1L), acked);
+        assertEquals(1, metrics.getExpiredRequests());
+    }
+
+    @Test
+    public void appConsumer_Deadline_ShouldBeExposedToTheMethod() {
+        AppConsumer<DeadlineApi> consumer = consumer(new DeadlineApi(), Runnable::run, new RMQApplicationConfig());
+
+        // Test
+        deliver(consumer, 1, "1", request("1", "remaining", "[]"),
+                Collections.singletonMap(RPCRequest.DEADLINE_HEADER, System.currentTimeMillis() + 60000));
+        deliver(consumer, 2, "2", request("2", "remaining", "[]"));
+
+        // Assert
+        long remaining = replies.get(0).getAsJsonObject().get("result").getAsLong();
+        assertTrue("Remaining " + remaining, remaining > 0 && remaining <= 60000);
+        assertEquals(Long.MAX_VALUE, replies.get(1).getAsJsonObject().get("result").getAsLong());
+    }
+
+    private static String text(int length) {
+        StringBuilder text = new StringBuilder(length);
+        while(text.length() < length) {
+            text.append("abcdefgh");
+        }
+
+        return text.substring(0, length);
+    }
+
+    @Test
+    public void appConsumer_CompressedRequest_ShouldBeDecompressed() throws IOException {
+        byte[] body = request("1", "echo", "[\"a\", 1]").getBytes(StandardCharsets.UTF_8);
+
+        // Test
+        deliver(consumer, 1, "1", Compression.GZIP.compress(body), "gzip", Collections.emptyMap());
+        deliver(consumer, 2, "2", Compression.DEFLATE.compress(body), "deflate", Collections.emptyMap());
+
+        // Assert
+        assertEquals(2, api.calls.get());
+        assertEquals("a1", replies.get(0).getAsJsonObject().get("result").getAsString());
+        assertEquals("a1", replies.get(1).getAsJsonObject().get("result").getAsString());
+    }
+
+    @Test
+    public void appConsumer_LargeReply_ShouldBeCompressedIfAccepted() {
+        RMQApplicationConfig config = new RMQApplicationConfig();
+        config.setCompressionThreshold(100);
+        AppConsumer<Api> consumer = consumer(api, Runnable::run, config);
+        Map<String, Object> accept = Collections.singletonMap(Compression.ACCEPT_ENCODING_HEADER, "gzip");
+        String large = text(1000);
+
+        // Test
+        deliver(consumer, 1, "1", request("1", "echo", "[\"" + large + "\", 1]"), accept);
+        deliver(consumer, 2, "2", request("2", "echo", "[\"" + large + "\", 2]"));
+        deliver(consumer, 3, "3", request("3", "echo", "[\"small\", 3]"), accept);
+
+        // Assert
+        assertEquals("gzip", replyProperties.get(0).getContentEncoding());
+        assertEquals(large + "1", replies.get(0).getAsJsonObject().get("result").getAsString());
+        assertNull(replyProperties.get(1).getContentEncoding());
+        assertEquals(large + "2", replies.get(1).getAsJsonObject().get("result").getAsString());
+        assertNull(replyProperties.get(2).getContentEncoding());
+        assertEquals("small3", replies.get(2).getAsJsonObject().get("result").getAsString());
+    }
+
+    @Test
+    public void appConsumer_RequestOverMaxBodySize_ShouldReplyWithParseError() throws IOException {
+        RMQApplicationConfig config = new RMQApplicationConfig();
+        config.setMaxBodySize(1024);
+        AppConsumer<Api> consumer = consumer(api, Runnable::run, config);
+        byte[] body = request("1", "echo", "[\"" + text(2000) + "\", 1]").getBytes(StandardCharsets.UTF_8);
+
+        // Test
+        deliver(consumer, 1, "1", Compression.GZIP.compress(body), "gzip", Collections.emptyMap());
+        deliver(consumer, 2, "2", body, "br", Collections.emptyMap());
+
+        // Assert
+        assertEquals(0, api.calls.get());
+        assertEquals("COULD_NOT_PARSE_REQUEST", errorReason(replies.get(0)));
+        assertEquals("COULD_NOT_PARSE_REQUEST", errorReason(replies.get(1)));
+        assertEquals(Arrays.asList(1L, 2L), acked);
+    }
+
+    private static long header(AMQP.BasicProperties properties, String name) {
+        Object value = properties.getHeaders().get(name);
+        return value == null ? -1 : ((Number) value).longValue();
+    }
+
+    @Test
+    public void appConsumer_TimingHeaders_ShouldStampEveryStage() {
+        RMQApplicationConfig config = new RMQApplicationConfig();
+        config.setTimingHeaders(true);
+        AppConsumer<SlowApi> consumer = consumer(new SlowApi(), Runnable::run, config);
+
+        // Test
+        deliver(consumer, 1, "1", request("1", "sleep", "[20]"),
+                Collections.singletonMap(RPCRequest.PUBLISHED_HEADER, System.currentTimeMillis() - 50));
+
+        // Assert
+        AMQP.BasicProperties reply = replyProperties.get(0);
+        assertTrue(header(reply, RPCResponse.QUEUE_TIME_HEADER) >= 50000);
+        assertTrue(header(reply, RPCResponse.PARSE_TIME_HEADER) >= 0);
+        assertTrue(header(reply, RPCResponse.INVOKE_TIME_HEADER) >= 20000);
+        assertTrue(header(reply, RPCResponse.SERIALIZE_TIME_HEADER) >= 0);
+        assertTrue(RPCResponse.isNativeFormat(reply.getHeaders(), RPCResponse.FORMAT_HEADER));
+    }
+
+    @Test
+    public void appConsumer_TimingHeadersUnknownStages_ShouldBeLeftOut() {
+        RMQApplicationConfig config = new RMQApplicationConfig();
+        config.setTimingHeaders(true);
+        AppConsumer<Api> consumer = consumer(api, Runnable::run, config);
+
+        // Test: no publish time, and a request that can't be parsed
+        deliver(consumer, 1, "1", "{");
+
+        // Assert
+        Map<String, Object> headers = replyProperties.get(0).getHeaders();
+        assertFalse(headers.containsKey(RPCResponse.QUEUE_TIME_HEADER));
+        assertFalse(headers.containsKey(RPCResponse.PARSE_TIME_HEADER));
+        assertFalse(headers.containsKey(RPCResponse.INVOKE_TIME_HEADER));
+        assertTrue(headers.containsKey(RPCResponse.SERIALIZE_TIME_HEADER));
+    }
+
+    @Test
+    public void appConsumer_TimingHeadersDisabled_ShouldNotBeStamped() {
+
+        // Test
+        deliver(consumer, 1, "1", request("1", "echo", "[\"a\", 1]"),
+                Collections.singletonMap(RPCRequest.PUBLISHED_HEADER, System.currentTimeMillis()));
+
+        // Assert
+        Map<String, Object> headers = replyProperties.get(0).getHeaders();
+        assertFalse(headers.containsKey(RPCResponse.QUEUE_TIME_HEADER));
+        assertFalse(headers.containsKey(RPCResponse.SERIALIZE_TIME_HEADER));
+    }
+
+    @Test
+    public void appConsumer_DeclaredException_ShouldBeReturnedAsError() {
+        AppConsumer<FailingApi> consumer = consumer(new FailingApi(), Runnable::run, new RMQApplicationConfig());
+
+        // Test
+        deliver(consumer, 1, "1", request("1", "fail", "[\"declared\"]"));
+        deliver(consumer, 2, "2", request("2", "crash", "[]"));
+
+        // Assert
+        JsonObject declared = replies.get(0).getAsJsonObject().getAsJsonObject("error");
+        assertEquals(IOException.class.getName(), declared.get("clazz").getAsString());
+        assertEquals("declared", declared.getAsJsonObject("reason").get("detailMessage").getAsString());
+        assertEquals("UNKNOWN_EXCEPTION", errorReason(replies.get(1)));
+        assertEquals(Arrays.asList(1L, 2L), acked);
+    }
+
+    @Test
+    public void appConsumer_BadInvocation_ShouldReplyWithTheReason() {
+
+        // Test
+        deliver(consumer, 1, "1", request("1", "missing", "[]"));
+        deliver(consumer, 2, "2", request("2", "echo", "[\"a\"]"));
+        deliver(consumer, 3, "3", request("3", "echo", "[\"a\", \"one\"]"));
+        deliver(consumer, 4, "4", request("4", "echo", "[\"a\", 4]"));
+
+        // Assert
+        assertEquals("NO_SUCH_METHOD", errorReason(replies.get(0)));
+        assertEquals("INVALID_PARAM_COUNT", errorReason(replies.get(1)));
+        assertEquals("COULD_NOT_PARSE_PARAMS", errorReason(replies.get(2)));
+        assertEquals("a4", replies.get(3).getAsJsonObject().get("result").getAsString());
+        assertEquals(1, api.calls.get());
+    }
+
+    @Test
+    public void appConsumer_LegacyCaller_ShouldGetJsonEncodedStrings() {
+        Map<String, Object> legacy = Collections.singletonMap(RPCResponse.ACCEPT_FORMAT_HEADER, 1);
+
+        // Test
+        deliver(consumer, 1, "1", request("1", "echo", "[\"a\", 1]"), legacy);
+        deliver(consumer, 2, "2", request("2", "missing", "[]"), legacy);
+        deliver(consumer, 3, "3", request("3", "echo", "[\"a\", 3]"));
+
+        // Assert
+        assertEquals("\"a1\"", replies.get(0).getAsJsonObject().get("result").getAsString());
+        assertFalse(RPCResponse.isNativeFormat(replyProperties.get(0).getHeaders(), RPCResponse.FORMAT_HEADER));
+        JsonObject error = replies.get(1).getAsJsonObject().getAsJsonObject("error");
+        assertTrue(error.get("reason").getAsJsonPrimitive().isString());
+        assertTrue(error.get("reason").getAsString().contains("NO_SUCH_METHOD"));
+        assertEquals("a3", replies.get(2).getAsJsonObject().get("result").getAsString());
+        assertTrue(RPCResponse.isNativeFormat(replyProperties.get(2).getHeaders(), RPCResponse.FORMAT_HEADER));
+    }
+}
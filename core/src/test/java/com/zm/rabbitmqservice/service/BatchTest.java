@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.service;
+
+import com.google.gson.JsonArray;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author zmiller
+ */
+public class BatchTest extends ConsumerTest {
+
+    private final Api api = new Api();
+    private final AppConsumer<Api> consumer = consumer(api, Runnable::run, new RMQApplicationConfig());
+
+    @Test
+    public void batch_InvalidEntries_ShouldOnlyFailThemselves() {
+
+        // Test
+        deliver(consumer, 1, "batch", "[" + request("1", "echo", "[\"a\", 2]")
+                + ", 7"
+                + ", " + request("3", "missing", "[]")
+                + ", " + request("4", "echo", "[\"a\"]")
+                + ", " + request("5", "echo", "[\"b\", 3]") + "]");
+
+        // Assert
+        assertEquals(1, replies.size());
+        JsonArray responses = replies.get(0).getAsJsonArray();
+        assertEquals(5, responses.size());
+
+        assertEquals("1", responses.get(0).getAsJsonObject().get("id").getAsString());
+        assertEquals("a2", responses.get(0).getAsJsonObject().get("result").getAsString());
+        assertNull(errorReason(responses.get(0)));
+
+        assertFalse(responses.get(1).getAsJsonObject().has("id"));
+        assertEquals("COULD_NOT_PARSE_REQUEST", errorReason(responses.get(1)));
+
+        assertEquals("3", responses.get(2).getAsJsonObject().get("id").getAsString());
+        assertEquals("NO_SUCH_METHOD", errorReason(responses.get(2)));
+
+        assertEquals("4", responses.get(3).getAsJsonObject().get("id").getAsString());
+        assertEquals("INVALID_PARAM_COUNT", errorReason(responses.get(3)));
+
+        assertEquals("b3", responses.get(4).getAsJsonObject().get("result").getAsString());
+        assertEquals(Collections.singletonList(1L), acked);
+    }
+
+    @Test
+    public void batch_Notifications_ShouldBeExecutedWithoutResponse() {
+
+        // Test
+        deliver(consumer, 1, "batch", "[" + request(null, "echo", "[\"a\", 1]")
+                + ", " + request("2", "echo", "[\"b\", 2]")
+                + ", " + request(null, "missing", "[]") + "]");
+
+        // Assert
+        assertEquals(2, api.calls.get());
+        assertEquals(1, replies.size());
+        JsonArray responses = replies.get(0).getAsJsonArray();
+        assertEquals(1, responses.size());
+        assertEquals("b2", responses.get(0).getAsJsonObject().get("result").getAsString());
+    }
+
+    @Test
+    public void batch_OnlyNotifications_ShouldOnlyBeAcked() {
+
+        // Test
+        deliver(consumer, 1, "batch", "[" + request(null, "echo", "[\"a\", 1]")
+                + ", " + request(null, "echo", "[\"b\", 2]") + "]");
+
+        // Assert
+        assertEquals(2, api.calls.get());
+        assertTrue(replies.isEmpty());
+        assertEquals(Collections.singletonList(1L), acked);
+    }
+
+    @Test
+    public void batch_EmptyOrMalformed_ShouldFailAsAWhole() {
+
+        // Test
+        deliver(consumer, 1, "empty", "[]");
+        deliver(consumer, 2, "malformed", "[" + request("1", "echo", "[\"a\", 2]") + ",");
+
+        // Assert
+        assertEquals(0, api.calls.get());
+        assertEquals(2, replies.size());
+        assertEquals("COULD_NOT_PARSE_REQUEST", errorReason(replies.get(0)));
+        assertEquals("COULD_NOT_PARSE_REQUEST", errorReason(replies.get(1)));
+    }
+}
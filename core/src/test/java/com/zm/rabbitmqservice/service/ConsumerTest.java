@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Envelope;
+import com.zm.rabbitmqservice.RPCRequest;
+import com.zm.rabbitmqservice.RPCResponse;
+import com.zm.rabbitmqservice.codec.Codecs;
+import com.zm.rabbitmqservice.codec.Compression;
+
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Delivers raw requests to an AppConsumer over a channel that records the replies and acks.
+ *
+ * @author zmiller
+ */
+abstract class ConsumerTest {
+
+    private static final Gson gson = new Gson();
+    private static final Map<String, Object> NATIVE_FORMAT =
+            Collections.singletonMap(RPCResponse.ACCEPT_FORMAT_HEADER, RPCResponse.NATIVE_FORMAT);
+
+    public static class Api {
+        final AtomicInteger calls = new AtomicInteger();
+
+        public String echo(String text, int times) {
+            calls.incrementAndGet();
+            return text + times;
+        }
+    }
+
+    final List<JsonElement> replies = Collections.synchronizedList(new ArrayList<>());
+    final List<AMQP.BasicProperties> replyProperties = Collections.synchronizedList(new ArrayList<>());
+    final List<Long> acked = Collections.synchronizedList(new ArrayList<>());
+
+    final Channel channel = (Channel) Proxy.newProxyInstance(Channel.class.getClassLoader(),
+            new Class<?>[] {Channel.class}, (proxy, method, args) -> {
+                switch(method.getName()) {
+                    case "basicPublish":
+                        AMQP.BasicProperties props = (AMQP.BasicProperties) args[args.length - 2];
+                        byte[] body = Compression.decode((byte[]) args[args.length - 1], props.getContentEncoding(),
+                                Integer.MAX_VALUE);
+                        replyProperties.add(props);
+                        replies.add(new JsonParser().parse(new String(body, StandardCharsets.UTF_8)));
+                        return null;
+                    case "basicAck":
+                        acked.add((Long) args[0]);
+                        return null;
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    default:
+                        return null;
+                }
+            });
+
+    <T> AppConsumer<T> consumer(T app, Executor executor, RMQApplicationConfig config) {
+        return new AppConsumer<>(channel, app, executor, null, config);
+    }
+
+    /**
+     * @param tag - delivery tag
+     * @param corrId - correlation id, also the id of the request
+     * @param body - raw json request
+     */
+    void deliver(AppConsumer<?> consumer, long tag, String corrId, String body) {
+        deliver(consumer, tag, corrId, body, Collections.emptyMap());
+    }
+
+    /**
+     * @param headers - headers sent along with the native format header
+     */
+    void deliver(AppConsumer<?> consumer, long tag, String corrId, String body, Map<String, Object> headers) {
+        deliver(consumer, tag, corrId, body.getBytes(StandardCharsets.UTF_8), null, headers);
+    }
+
+    /**
+     * @param body - encoded request
+     * @param contentEncoding - compression of the body, null if it isn't compressed
+     */
+    void deliver(AppConsumer<?> consumer, long tag, String corrId, byte[] body, String contentEncoding,
+                 Map<String, Object> headers) {
+        Map<String, Object> sent = new HashMap<>(NATIVE_FORMAT);
+        sent.putAll(headers);
+        AMQP.BasicProperties properties = new AMQP.BasicProperties.Builder()
+                .contentType(Codecs.JSON.getContentType())
+                .contentEncoding(contentEncoding)
+                .correlationId(corrId)
+                .replyTo("reply")
+                .headers(sent)
+                .build();
+
+        consumer.handleDelivery("test", new Envelope(tag, false, "", "test"), properties, body);
+    }
+
+    static String request(String id, String method, String params) {
+        RPCRequest request = new RPCRequest();
+        request.id = id;
+        request.method = method;
+        request.params = params == null ? null : new JsonParser().parse(params).getAsJsonArray();
+        return gson.toJson(request);
+    }
+
+    /**
+     * @param response - response in the native format
+     * @return reason of the response's error, null if it succeeded
+     */
+    static String errorReason(JsonElement response) {
+        JsonElement error = response.getAsJsonObject().get("error");
+        return error == null ? null : error.getAsJsonObject().getAsJsonObject("reason").get("reason").getAsString();
+    }
+}
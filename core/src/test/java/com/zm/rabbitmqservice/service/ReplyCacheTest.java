@@ -0,0 +1,195 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.service;
+
+import com.zm.rabbitmqservice.metrics.InMemoryMetrics;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author zmiller
+ */
+public class ReplyCacheTest extends ConsumerTest {
+
+    public static class SlowApi extends Api {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        public String slow(String text) throws InterruptedException {
+            calls.incrementAndGet();
+            entered.countDown();
+            release.await();
+            return text;
+        }
+    }
+
+    /**
+     * Holds up the first request after it was parsed, then fails it
+     */
+    private static class FailingMetrics extends InMemoryMetrics {
+        final AtomicBoolean fail = new AtomicBoolean(true);
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public void requestParsed(long nanos) {
+            super.requestParsed(nanos);
+            if(fail.getAndSet(false)) {
+                entered.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+
+                throw new IllegalStateException("Expected by the test");
+            }
+        }
+    }
+
+    private final ExecutorService pool = Executors.newCachedThreadPool();
+    private final List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+    private final SlowApi api = new SlowApi();
+    private final RMQApplicationConfig config = new RMQApplicationConfig();
+
+    // Deliveries are processed on the pool, or right away by the delivering thread while inline is set
+    private volatile boolean inline;
+    private final Executor executor = task -> {
+        if(inline) {
+            task.run();
+            return;
+        }
+
+        pool.execute(() -> {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                failures.add(e);
+            }
+        });
+    };
+
+    @Before
+    public void setUp() {
+        config.setReplyCacheSize(100);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    @Test
+    public void replyCache_DuplicateInProgress_ShouldBeAnsweredByTheOriginal() throws InterruptedException {
+        InMemoryMetrics metrics = new InMemoryMetrics();
+        config.setMetrics(metrics);
+        AppConsumer<SlowApi> consumer = consumer(api, executor, config);
+
+        // Test
+        deliver(consumer, 1, "a", request("a", "slow", "[\"x\"]"));
+        assertTrue(api.entered.await(5, TimeUnit.SECONDS));
+        inline = true;
+        deliver(consumer, 2, "a", request("a", "slow", "[\"x\"]"));
+        api.release.countDown();
+
+        // Assert
+        await(() -> replies.size() == 2);
+        assertEquals(1, api.calls.get());
+        assertEquals(replies.get(0), replies.get(1));
+        assertEquals("x", replies.get(0).getAsJsonObject().get("result").getAsString());
+        assertTrue(acked.containsAll(Arrays.asList(1L, 2L)));
+        assertEquals(1, metrics.getReplyCacheHits());
+
+        // Test
+        deliver(consumer, 3, "a", request("a", "slow", "[\"x\"]"));
+
+        // Assert: answered from the cache
+        assertEquals(3, replies.size());
+        assertEquals(replies.get(0), replies.get(2));
+        assertEquals(1, api.calls.get());
+        assertEquals(2, metrics.getReplyCacheHits());
+    }
+
+    @Test
+    public void replyCache_FailedOriginal_ShouldExecuteTheDuplicate() throws InterruptedException {
+        FailingMetrics metrics = new FailingMetrics();
+        config.setMetrics(metrics);
+        AppConsumer<SlowApi> consumer = consumer(api, executor, config);
+
+        // Test
+        deliver(consumer, 1, "a", request("a", "echo", "[\"x\", 1]"));
+        assertTrue(metrics.entered.await(5, TimeUnit.SECONDS));
+        inline = true;
+        deliver(consumer, 2, "a", request("a", "echo", "[\"x\", 1]"));
+        metrics.release.countDown();
+
+        // Assert: the original is answered with the failure and settled, the duplicate executes
+        await(() -> replies.size() == 2);
+        assertEquals(1, api.calls.get());
+        assertEquals("UNKNOWN_EXCEPTION", errorReason(replies.get(0)));
+        assertEquals("x1", replies.get(1).getAsJsonObject().get("result").getAsString());
+        assertEquals(Arrays.asList(1L, 2L), acked);
+        assertTrue(failures.isEmpty());
+        assertEquals(0, metrics.getReplyCacheHits());
+
+        // Test
+        deliver(consumer, 3, "a", request("a", "echo", "[\"x\", 1]"));
+
+        // Assert: the duplicate's reply was cached, not the failure
+        assertEquals(replies.get(1), replies.get(2));
+        assertEquals(1, api.calls.get());
+    }
+
+    @Test
+    public void replyCache_DifferentRequests_ShouldEachExecute() {
+        inline = true;
+        AppConsumer<SlowApi> consumer = consumer(api, executor, config);
+
+        // Test
+        deliver(consumer, 1, "a", request("a", "echo", "[\"x\", 1]"));
+        deliver(consumer, 2, "b", request("b", "echo", "[\"x\", 1]"));
+
+        // Assert
+        assertEquals(2, api.calls.get());
+        assertEquals(2, replies.size());
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while(!condition.getAsBoolean()) {
+            assertTrue("Timed out waiting for the consumer", System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
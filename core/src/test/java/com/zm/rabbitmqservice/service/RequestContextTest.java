@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.service;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ *
+ * @author zmiller
+ */
+public class RequestContextTest {
+
+    @Test
+    public void requestContext_OutsideInvocation_ShouldHaveNoDeadline() {
+        RequestContext context = RequestContext.current();
+
+        // Assert
+        assertFalse(context.hasDeadline());
+        assertFalse(context.isExpired());
+        assertEquals(Long.MAX_VALUE, context.getRemainingMillis());
+    }
+
+    @Test
+    public void requestContext_Deadline_ShouldCountDown() {
+        long deadline = System.currentTimeMillis() + 60000;
+        AtomicLong remaining = new AtomicLong();
+
+        // Test
+        RequestContext.run(deadline, () -> remaining.set(RequestContext.current().getRemainingMillis()));
+
+        // Assert
+        assertTrue(remaining.get() > 0 && remaining.get() <= 60000);
+        assertFalse(RequestContext.current().hasDeadline());
+    }
+
+    @Test
+    public void requestContext_PassedDeadline_ShouldBeExpired() {
+        long deadline = System.currentTimeMillis() - 10;
+
+        // Test & Assert
+        RequestContext.run(deadline, () -> {
+            assertTrue(RequestContext.current().isExpired());
+            assertTrue(RequestContext.current().getRemainingMillis() <= -10);
+        });
+    }
+
+    @Test
+    public void requestContext_NestedInvocation_ShouldRestoreTheOuterContext() {
+        long outer = System.currentTimeMillis() + 60000;
+
+        // Test & Assert
+        RequestContext.run(outer, () -> {
+            RequestContext.run(0, () -> assertFalse(RequestContext.current().hasDeadline()));
+            assertEquals(outer, RequestContext.current().getDeadline());
+        });
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonSyntaxException;
+import com.zm.rabbitmqservice.codec.Codecs;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+/**
+ *
+ * @author zmiller
+ */
+public class RequestDecoderTest {
+
+    public static class Api {
+        public String echo(String text, int times) {
+            return text + times;
+        }
+    }
+
+    private final RequestDecoder decoder;
+
+    public RequestDecoderTest() throws NoSuchMethodException {
+        Map<String, ApiMethod> methods = Collections.singletonMap("echo",
+                ApiMethod.resolve(new Api(), Api.class.getMethod("echo", String.class, int.class)));
+        decoder = new RequestDecoder(new Gson(), methods);
+    }
+
+    private RequestDecoder.DecodedRequest decode(String body) throws IOException {
+        return decoder.decode(body.getBytes(StandardCharsets.UTF_8), Codecs.JSON);
+    }
+
+    /**
+     * Assert the request was decoded without binding its parameters, which are left for the consumer to validate.
+     */
+    private static void assertUnbound(RequestDecoder.DecodedRequest decoded, String method, String params) {
+        assertEquals(method, decoded.request.method);
+        assertNull(decoded.params);
+        assertEquals(new JsonParser().parse(params), decoded.request.params);
+    }
+
+    @Test
+    public void requestDecoder_KnownMethod_ShouldBindParams() throws IOException {
+
+        // Test
+        RequestDecoder.DecodedRequest decoded = decode(
+                "{\"jsonrpc\": \"2.0\", \"id\": \"1\", \"method\": \"echo\", \"params\": [\"a\", 2], \"extra\": {}}");
+
+        // Assert
+        assertEquals("2.0", decoded.request.jsonrpc);
+        assertEquals("1", decoded.request.id);
+        assertEquals("echo", decoded.request.method);
+        assertNull(decoded.request.params);
+        assertArrayEquals(new Object[] {"a", 2}, decoded.params);
+        assertNull(decoded.batch);
+    }
+
+    @Test
+    public void requestDecoder_ParamsBeforeMethod_ShouldFallBack() throws IOException {
+
+        // Test
+        RequestDecoder.DecodedRequest decoded = decode("{\"params\": [\"a\", 2], \"method\": \"echo\", \"id\": \"1\"}");
+
+        // Assert
+        assertUnbound(decoded, "echo", "[\"a\", 2]");
+        assertEquals("1", decoded.request.id);
+    }
+
+    @Test
+    public void requestDecoder_WrongArity_ShouldFallBack() throws IOException {
+
+        // Assert
+        assertUnbound(decode("{\"method\": \"echo\", \"params\": [\"a\"]}"), "echo", "[\"a\"]");
+        assertUnbound(decode("{\"method\": \"echo\", \"params\": [\"a\", 2, 3]}"), "echo", "[\"a\", 2, 3]");
+        assertUnbound(decode("{\"method\": \"echo\", \"params\": []}"), "echo", "[]");
+    }
+
+    @Test
+    public void requestDecoder_WrongTypes_ShouldFallBack() throws IOException {
+
+        // Assert
+        assertUnbound(decode("{\"method\": \"echo\", \"params\": [\"a\", \"b\"]}"), "echo", "[\"a\", \"b\"]");
+        assertUnbound(decode("{\"method\": \"echo\", \"params\": [\"a\", {\"x\": 1}]}"), "echo", "[\"a\", {\"x\": 1}]");
+    }
+
+    @Test
+    public void requestDecoder_UnknownMethod_ShouldFallBack() throws IOException {
+
+        // Assert
+        assertUnbound(decode("{\"method\": \"missing\", \"params\": [\"a\", 2]}"), "missing", "[\"a\", 2]");
+    }
+
+    @Test
+    public void requestDecoder_MethodRedefinedAfterParams_ShouldFallBack() throws IOException {
+
+        // Assert
+        assertUnbound(decode("{\"method\": \"echo\", \"params\": [\"a\", 2], \"method\": \"missing\"}"),
+                "missing", "[\"a\", 2]");
+    }
+
+    @Test
+    public void requestDecoder_OtherCodec_ShouldLeaveParamsUnbound() throws IOException {
+        byte[] body = Codecs.CBOR.encode(new JsonParser().parse("{\"method\": \"echo\", \"params\": [\"a\", 2]}"),
+                JsonElement.class);
+
+        // Test
+        RequestDecoder.DecodedRequest decoded = decoder.decode(body, Codecs.CBOR);
+
+        // Assert
+        assertUnbound(decoded, "echo", "[\"a\", 2]");
+    }
+
+    @Test
+    public void requestDecoder_Batch_ShouldDecodeEachEntry() throws IOException {
+
+        // Test
+        RequestDecoder.DecodedRequest decoded = decode(" [{\"id\": \"1\", \"method\": \"echo\", \"params\": [\"a\", 2]},"
+                + " 7, {\"method\": \"echo\", \"params\": [\"]}\", 3]}, {\"params\": [1], \"method\": \"echo\"}] ");
+
+        // Assert
+        assertEquals(4, decoded.batch.size());
+        assertArrayEquals(new Object[] {"a", 2}, decoded.batch.get(0).params);
+        assertNull(decoded.batch.get(1).request);
+        assertNull(decoded.batch.get(2).request.id);
+        assertArrayEquals(new Object[] {"]}", 3}, decoded.batch.get(2).params);
+        assertUnbound(decoded.batch.get(3), "echo", "[1]");
+    }
+
+    @Test
+    public void requestDecoder_MalformedInput_ShouldFail() {
+
+        // Assert
+        assertMalformed("garbage");
+        assertMalformed("42");
+        assertMalformed("[]");
+        assertMalformed("   ");
+        assertMalformed("[{\"method\": \"echo\"},");
+        assertMalformed("[{\"method\": \"echo\"}] []");
+        assertMalformed("{\"method\": \"echo\"} {}");
+    }
+
+    @Test
+    public void requestDecoder_NonStringMembers_ShouldFail() {
+
+        // Assert
+        assertMalformed("{\"jsonrpc\": \"2.0\", \"id\": {}, \"method\": \"echo\", \"params\": [\"a\", 1]}");
+        assertMalformed("{\"jsonrpc\": [2], \"id\": \"1\", \"method\": \"echo\", \"params\": [\"a\", 1]}");
+        assertMalformed("{\"jsonrpc\": \"2.0\", \"id\": \"1\", \"method\": {\"name\": \"echo\"}}");
+        assertMalformed("{\"jsonrpc\": \"2.0\", \"id\": \"1\", \"method\": \"echo\", \"params\": \"garbage\"}");
+    }
+
+    private void assertMalformed(String body) {
+        try {
+            decode(body);
+            fail("Expected " + body + " to be rejected");
+        } catch (JsonSyntaxException | IOException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,369 @@
+/*
+ * Copyright (C) 2017 zmiller
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.zm.rabbitmqservice.stubs;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.ConfirmListener;
+import com.rabbitmq.client.Connection;
+import com.rabbitmq.client.ConnectionFactory;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.impl.AMQImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for a RabbitMQ broker, so the client and the consumer can be tested without a RabbitMQ server
+ * and measured without a network or a broker's own overhead in the numbers. Register it with
+ * RMQConnectionFactory.setConnectionFactory for a made up host. The benchmarks get it from the test jar.
+ *
+ * Only what the library uses is supported: the default exchange, queues with round-robin consumers, direct reply-to,
+ * publisher confirms, which are acked right away, and manual acks, which are ignored. Like a real channel, every
+ * channel delivers to its consumers in order on its own thread. Prefetch is not enforced and messages published to a
+ * queue without consumers wait until one subscribes.
+ *
+ * @author zmiller
+ */
+public class InProcessBroker extends ConnectionFactory {
+
+    private static final Logger log = LoggerFactory.getLogger(InProcessBroker.class);
+    private static final String REPLY_TO = "amq.rabbitmq.reply-to";
+
+    private final ConcurrentHashMap<String, Queue> queues = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Subscriber> replyTo = new ConcurrentHashMap<>();
+    private final AtomicLong replies = new AtomicLong();
+    private final AtomicInteger channelIds = new AtomicInteger();
+
+    @Override
+    public Connection newConnection() {
+        return proxy(Connection.class, new BrokerConnection());
+    }
+
+    /**
+     * Wait for a consumer to subscribe to the queue, e.g. the one of an application started with RMQApplication, so
+     * deliveries can be handed to it without going through the broker.
+     *
+     * @param queue - queue the consumer subscribes to
+     * @param timeout - maximum time to wait
+     * @param unit - unit of the timeout
+     * @return consumer of the queue
+     * @throws TimeoutException if no consumer subscribed within the timeout
+     * @throws InterruptedException if the thread was interrupted while waiting
+     */
+    public Consumer awaitConsumer(String queue, long timeout, TimeUnit unit) throws TimeoutException, InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while(true) {
+            for(Subscriber subscriber : queue(queue).subscribers) {
+                if(subscriber.channel.open) {
+                    return subscriber.consumer;
+                }
+            }
+
+            if(System.nanoTime() - deadline > 0) {
+                throw new TimeoutException("Nothing subscribed to " + queue);
+            }
+
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * @param queue - name of the queue
+     * @return number of messages published to the queue
+     */
+    public long getPublished(String queue) {
+        return queue(queue).published.get();
+    }
+
+    /**
+     * @return number of messages published to direct reply-to pseudo queues
+     */
+    public long getReplies() {
+        return replies.get();
+    }
+
+    private Queue queue(String name) {
+        return queues.computeIfAbsent(name, n -> new Queue());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(InProcessBroker.class.getClassLoader(), new Class<?>[] {type}, handler);
+    }
+
+    /**
+     * Handles the methods of Object for a proxy, proxies are only equal to themselves.
+     */
+    private static Object identity(Object proxy, Method method, Object[] args) {
+        switch (method.getName()) {
+            case "hashCode":
+                return System.identityHashCode(proxy);
+            case "equals":
+                return proxy == args[0];
+            case "toString":
+                return proxy.getClass().getInterfaces()[0].getSimpleName() + "@" + System.identityHashCode(proxy);
+            default:
+                throw new UnsupportedOperationException(method.getName() + " is not supported by the in-process broker");
+        }
+    }
+
+    /**
+     * Work run on a channel's dispatcher thread
+     */
+    private interface Task {
+        void run() throws Exception;
+    }
+
+    private static final class Message {
+        private final String exchange;
+        private final String routingKey;
+        private final AMQP.BasicProperties properties;
+        private final byte[] body;
+
+        private Message(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) {
+            this.exchange = exchange;
+            this.routingKey = routingKey;
+            this.properties = properties;
+            this.body = body;
+        }
+    }
+
+    /**
+     * A consumer registered on one of the broker's channels
+     */
+    private static final class Subscriber {
+        private final BrokerChannel channel;
+        private final String consumerTag;
+        private final Consumer consumer;
+
+        private Subscriber(BrokerChannel channel, String consumerTag, Consumer consumer) {
+            this.channel = channel;
+            this.consumerTag = consumerTag;
+            this.consumer = consumer;
+        }
+
+        private void deliver(Message message) {
+            channel.dispatch(() -> {
+                Envelope envelope = new Envelope(channel.deliveryTags.incrementAndGet(), false,
+                        message.exchange, message.routingKey);
+                consumer.handleDelivery(consumerTag, envelope, message.properties, message.body);
+            });
+        }
+    }
+
+    private static final class Queue {
+        private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+        private final ArrayDeque<Message> backlog = new ArrayDeque<>();
+        private final AtomicLong published = new AtomicLong();
+        private int next;
+
+        private synchronized void publish(Message message) {
+            published.incrementAndGet();
+            subscribers.removeIf(s -> !s.channel.open);
+            if(subscribers.isEmpty()) {
+                backlog.add(message);
+                return;
+            }
+
+            subscribers.get(next++ % subscribers.size()).deliver(message);
+        }
+
+        private synchronized void subscribe(Subscriber subscriber) {
+            subscribers.add(subscriber);
+            Message message;
+            while((message = backlog.poll()) != null) {
+                subscriber.deliver(message);
+            }
+        }
+    }
+
+    private final class BrokerConnection implements InvocationHandler {
+        private volatile boolean open = true;
+        private final List<BrokerChannel> channels = new CopyOnWriteArrayList<>();
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            switch (method.getName()) {
+                case "createChannel":
+                    BrokerChannel channel = new BrokerChannel(proxy, channelIds.incrementAndGet());
+                    channels.add(channel);
+                    return channel.proxy;
+                case "isOpen":
+                    return open;
+                case "close":
+                case "abort":
+                    open = false;
+                    for(BrokerChannel c : channels) {
+                        c.close();
+                    }
+
+                    return null;
+                case "addShutdownListener":
+                case "removeShutdownListener":
+                case "addBlockedListener":
+                    return null;
+                default:
+                    return identity(proxy, method, args);
+            }
+        }
+    }
+
+    private final class BrokerChannel implements InvocationHandler {
+        private final Object connection;
+        private final int number;
+        private final Channel proxy;
+        private final ExecutorService dispatcher;
+        private final AtomicLong deliveryTags = new AtomicLong();
+        private final AtomicLong publishSeqNo = new AtomicLong();
+        private final AtomicInteger consumerTags = new AtomicInteger();
+        private final List<ConfirmListener> confirmListeners = new CopyOnWriteArrayList<>();
+        private volatile boolean confirms;
+        private volatile boolean open = true;
+
+        private BrokerChannel(Object connection, int number) {
+            this.connection = connection;
+            this.number = number;
+            this.proxy = proxy(Channel.class, this);
+            this.dispatcher = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "in-process-broker-channel-" + number);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        private void dispatch(Task delivery) {
+            if(open) {
+                dispatcher.execute(() -> {
+                    try {
+                        delivery.run();
+                    }
+                    catch (Exception e) {
+                        log.error("Delivery on channel {} failed", number, e);
+                    }
+                });
+            }
+        }
+
+        private void close() {
+            open = false;
+            dispatcher.shutdown();
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+            switch (method.getName()) {
+                case "basicPublish":
+                    publish((String) args[0], (String) args[1],
+                            (AMQP.BasicProperties) args[args.length - 2], (byte[]) args[args.length - 1]);
+                    return null;
+                case "basicConsume":
+                    return consume((String) args[0], (Consumer) args[args.length - 1]);
+                case "queueDeclare":
+                    String queue = args == null ? "amq.gen-" + number : (String) args[0];
+                    queue(queue);
+                    return new AMQImpl.Queue.DeclareOk(queue, 0, 0);
+                case "confirmSelect":
+                    confirms = true;
+                    return new AMQImpl.Confirm.SelectOk();
+                case "addConfirmListener":
+                    confirmListeners.add((ConfirmListener) args[0]);
+                    return null;
+                case "getNextPublishSeqNo":
+                    return confirms ? publishSeqNo.get() + 1 : 0L;
+                case "getChannelNumber":
+                    return number;
+                case "getConnection":
+                    return connection;
+                case "isOpen":
+                    return open;
+                case "close":
+                case "abort":
+                    close();
+                    return null;
+                case "basicQos":
+                case "basicAck":
+                case "basicNack":
+                case "basicReject":
+                case "addShutdownListener":
+                case "removeShutdownListener":
+                    return null;
+                default:
+                    return identity(proxy, method, args);
+            }
+        }
+
+        /**
+         * Route the message through the default exchange. Requests asking for a direct reply get the pseudo queue of
+         * this channel as their reply address.
+         */
+        private void publish(String exchange, String routingKey, AMQP.BasicProperties properties, byte[] body) {
+            if(properties != null && REPLY_TO.equals(properties.getReplyTo())) {
+                properties = properties.builder().replyTo(REPLY_TO + "." + number).build();
+            }
+
+            Message message = new Message(exchange, routingKey, properties, body);
+            if(routingKey.startsWith(REPLY_TO + ".")) {
+                replies.incrementAndGet();
+                Subscriber subscriber = replyTo.get(routingKey);
+                if(subscriber != null && subscriber.channel.open) {
+                    subscriber.deliver(message);
+                }
+            }
+            else {
+                queue(routingKey).publish(message);
+            }
+
+            if(confirms) {
+                long sequence = publishSeqNo.incrementAndGet();
+                dispatch(() -> {
+                    for(ConfirmListener listener : confirmListeners) {
+                        listener.handleAck(sequence, false);
+                    }
+                });
+            }
+        }
+
+        private String consume(String queue, Consumer consumer) {
+            String tag = "in-process-" + number + "-" + consumerTags.incrementAndGet();
+            Subscriber subscriber = new Subscriber(this, tag, consumer);
+            if(REPLY_TO.equals(queue)) {
+                replyTo.put(REPLY_TO + "." + number, subscriber);
+            }
+            else {
+                queue(queue).subscribe(subscriber);
+            }
+
+            dispatch(() -> consumer.handleConsumeOk(tag));
+            return tag;
+        }
+    }
+}